@@ -0,0 +1,473 @@
+/*
+ * Luke Diamond
+ * 01/22/2018
+ * Grade 11 Final Project
+ * Mr. Patterson
+ */
+
+package rasterizer;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.zip.CRC32;
+
+/**
+ * Headless frame benchmark. Renders the demo scene without a window while
+ * a camera path (scripted, or recorded in the demo) plays back with a
+ * fixed time step, so every run renders the same frames no matter how
+ * fast they are. Frame times are reported as percentiles along with
+ * throughput and allocation rate, and written to a JSON file; with a
+ * baseline file from an earlier run, the benchmark fails if the mean or
+ * median frame time regressed past a tolerance. The tail percentiles vary
+ * too much between runs of the same build to gate on by default, so they
+ * are only reported unless a tail tolerance is given.
+ *
+ * Usage: java rasterizer.Benchmark [options]
+ *
+ *     --frames N       Frames to measure (default 600).
+ *     --warmup N       Frames to render first, unmeasured (default 120).
+ *     --size WxH       Screen size (default 640x480).
+ *     --scale S        Resolution scale (default 1.0).
+ *     --step S         Time step in seconds (default 1/60).
+ *     --depth FORMAT   Depth format: FLOAT32, UNORM16 or FIXED24 (default
+ *                      FLOAT32).
+ *     --reversed B     Whether depth is reversed (default false).
+ *     --path FILE      Camera path to play (default a scripted path).
+ *     --out FILE       Results file (default benchmark.json).
+ *     --baseline FILE  Results to compare against.
+ *     --tolerance T    Allowed mean and median slowdown over the
+ *                      baseline (default 0.1).
+ *     --tail-tolerance T
+ *                      Allowed p95 and p99 slowdown over the baseline
+ *                      (default none, so they are not checked).
+ *
+ * The exit code is 0 on success, 1 if the results regressed and 2 if the
+ * benchmark could not run or its configuration differs from the
+ * baseline's.
+ */
+public class Benchmark {
+    // Defaults of the options.
+    private static final int DEFAULT_FRAMES = 600;
+    private static final int DEFAULT_WARMUP = 120;
+    private static final float DEFAULT_STEP = 1.0f / 60.0f;
+    private static final float DEFAULT_TOLERANCE = 0.1f;
+    // Results that must match the baseline's for a fair comparison, and
+    // the frame times compared (larger is worse): steady ones checked
+    // against the tolerance, and tail ones against the tail tolerance.
+    private static final String[] CONFIGURATION = {
+        "frames", "warmup", "width", "height", "scale", "step", "path_keys",
+        "depth_format", "reversed_depth"
+    };
+    private static final String[] STEADY = {
+        "mean_ms", "p50_ms"
+    };
+    private static final String[] TAIL = {
+        "p95_ms", "p99_ms"
+    };
+    // A number in a results file.
+    private static final Pattern RESULT =
+        Pattern.compile("\"(\\w+)\"\\s*:\\s*(-?[0-9.]+(?:[eE][-+]?[0-9]+)?)");
+
+    // Options.
+    private int m_frames = DEFAULT_FRAMES;
+    private int m_warmup = DEFAULT_WARMUP;
+    private int m_width = 640;
+    private int m_height = 480;
+    private float m_scale = 1.0f;
+    private float m_step = DEFAULT_STEP;
+    private Rasterizer.DepthFormat m_depthFormat =
+        Rasterizer.DepthFormat.FLOAT32;
+    private boolean m_reversedDepth = false;
+    private CameraPath m_path = null;
+    private File m_out = new File("benchmark.json");
+    private File m_baseline = null;
+    private float m_tolerance = DEFAULT_TOLERANCE;
+    private float m_tailTolerance = Float.POSITIVE_INFINITY;
+
+    // Scene time, advanced by the update listener.
+    private float m_time = 0.0f;
+
+    /**
+     * Construct a benchmark from command-line options.
+     * @param args The options.
+     * @throws IOException If the camera path cannot be loaded.
+     */
+    public Benchmark(String[] args) throws IOException {
+        for (int i = 0; i < args.length; ++i) {
+            String option = args[i];
+            if (i + 1 >= args.length) {
+                throw new IllegalArgumentException(
+                    "Missing value for " + option);
+            }
+            String value = args[++i];
+            switch (option) {
+                case "--frames":
+                    m_frames = Math.max(Integer.parseInt(value), 1);
+                    break;
+                case "--warmup":
+                    m_warmup = Math.max(Integer.parseInt(value), 0);
+                    break;
+                case "--size":
+                    String[] size = value.split("x");
+                    if (size.length != 2) {
+                        throw new IllegalArgumentException(
+                            "Size must be WxH: " + value);
+                    }
+                    m_width = Integer.parseInt(size[0]);
+                    m_height = Integer.parseInt(size[1]);
+                    break;
+                case "--scale":
+                    m_scale = Float.parseFloat(value);
+                    break;
+                case "--step":
+                    m_step = Float.parseFloat(value);
+                    break;
+                case "--depth":
+                    m_depthFormat = Rasterizer.DepthFormat.valueOf(value);
+                    break;
+                case "--reversed":
+                    m_reversedDepth = Boolean.parseBoolean(value);
+                    break;
+                case "--path":
+                    m_path = new CameraPath(value);
+                    break;
+                case "--out":
+                    m_out = new File(value);
+                    break;
+                case "--baseline":
+                    m_baseline = new File(value);
+                    break;
+                case "--tolerance":
+                    m_tolerance = Float.parseFloat(value);
+                    break;
+                case "--tail-tolerance":
+                    m_tailTolerance = Float.parseFloat(value);
+                    break;
+                default:
+                    throw new IllegalArgumentException(
+                        "Unknown option: " + option);
+            }
+        }
+        if (!(m_step > 0.0f)) {
+            throw new IllegalArgumentException("Step must be positive");
+        }
+        if (m_path == null) m_path = scriptedPath();
+    }
+
+    /**
+     * Build the default camera path: up to the mesh, around it on both
+     * sides, above it, and back.
+     * @return The path.
+     */
+    private static CameraPath scriptedPath() {
+        CameraPath path = new CameraPath();
+        path.addKey(0.0f, new Vector3(0, 0, 0), new Vector3(0, 0, 0));
+        path.addKey(2.0f, new Vector3(0, 0, 3), new Vector3(0, 0, 0));
+        path.addKey(4.0f, new Vector3(-2, 1, 4), new Vector3(15, 40, 0));
+        path.addKey(6.0f, new Vector3(2, 1, 4), new Vector3(15, -40, 0));
+        path.addKey(8.0f, new Vector3(0, 3, 2), new Vector3(40, 0, 0));
+        path.addKey(10.0f, new Vector3(0, 0, 0), new Vector3(0, 0, 0));
+        return path;
+    }
+
+    /**
+     * Render the warmup and measured frames.
+     * @return The results, by name.
+     */
+    public Map<String, Double> run() {
+        RasterPanel panel = new RasterPanel(m_width, m_height);
+        panel.getResolutionController().setEnabled(false);
+        panel.getResolutionController().setBounds(m_scale, m_scale);
+        panel.setFixedTimeStep(m_step);
+        panel.setDepthFormat(m_depthFormat);
+        panel.setReversedDepth(m_reversedDepth);
+        Mesh mesh = SoftwareRenderer.loadScene(panel);
+        panel.setUpdateListener(new IUpdateListener() {
+            /**
+             * Advance the scene by the fixed step.
+             * @param delta The time step.
+             */
+            @Override
+            public void update(float delta) {
+                m_time += delta;
+                pose(panel, mesh);
+            }
+        });
+
+        // Warm up (loading and compiling), then start the scene over.
+        m_time = 0.0f;
+        pose(panel, mesh);
+        for (int i = 0; i < m_warmup; ++i) {
+            panel.renderFrame();
+        }
+        m_time = 0.0f;
+        pose(panel, mesh);
+        System.gc();
+
+        ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        long allocated = allocatedBytes(threads);
+        long gcCount = gcCount();
+        long gcTime = gcTime();
+        long[] times = new long[m_frames];
+        long start = System.nanoTime();
+        for (int i = 0; i < m_frames; ++i) {
+            long frameStart = System.nanoTime();
+            panel.renderFrame();
+            times[i] = System.nanoTime() - frameStart;
+        }
+        double seconds = (System.nanoTime() - start) * 1E-9;
+        allocated = allocatedBytes(threads) - allocated;
+
+        // Checksum the last frame, to tell whether runs rendered the same.
+        Rasterizer r = panel.getRasterizer();
+        int[] pixels = new int[r.getWidth() * r.getHeight()];
+        r.copyColor(pixels);
+        CRC32 crc = new CRC32();
+        for (int p : pixels) {
+            crc.update(p >> 16);
+            crc.update(p >> 8);
+            crc.update(p);
+        }
+
+        long[] sorted = times.clone();
+        Arrays.sort(sorted);
+        long total = 0;
+        for (long t : times) {
+            total += t;
+        }
+        Map<String, Double> results = new LinkedHashMap<String, Double>();
+        results.put("frames", (double) m_frames);
+        results.put("warmup", (double) m_warmup);
+        results.put("width", (double) m_width);
+        results.put("height", (double) m_height);
+        results.put("scale", (double) m_scale);
+        results.put("step", (double) m_step);
+        results.put("path_keys", (double) m_path.getKeyCount());
+        results.put("depth_format", (double) m_depthFormat.ordinal());
+        results.put("reversed_depth", m_reversedDepth ? 1.0 : 0.0);
+        results.put("threads", (double) r.getThreadCount());
+        results.put("mean_ms", total / (double) m_frames * 1E-6);
+        results.put("p50_ms", percentile(sorted, 0.50) * 1E-6);
+        results.put("p95_ms", percentile(sorted, 0.95) * 1E-6);
+        results.put("p99_ms", percentile(sorted, 0.99) * 1E-6);
+        results.put("max_ms", sorted[sorted.length - 1] * 1E-6);
+        results.put("fps", m_frames / seconds);
+        if (allocated >= 0) {
+            results.put("alloc_mb_per_s", allocated / seconds / 1048576.0);
+            results.put("alloc_bytes_per_frame", allocated / (double) m_frames);
+        }
+        results.put("gc_count", (double) (gcCount() - gcCount));
+        results.put("gc_ms", (double) (gcTime() - gcTime));
+        results.put("frame_crc", (double) crc.getValue());
+        return results;
+    }
+
+    /**
+     * Move the camera and the mesh to where they are at the scene time.
+     * @param panel The panel.
+     * @param mesh The spinning mesh.
+     */
+    private void pose(RasterPanel panel, Mesh mesh) {
+        m_path.apply(panel, m_time);
+        mesh.setRotation(0.0f, SoftwareRenderer.SPIN_SPEED * m_time, 0.0f);
+    }
+
+    /**
+     * Get a percentile of sorted values (nearest rank).
+     * @param sorted The values in ascending order.
+     * @param p The percentile, in range (0, 1].
+     * @return The value at the percentile.
+     */
+    private static long percentile(long[] sorted, double p) {
+        int rank = (int) Math.ceil(p * sorted.length) - 1;
+        return sorted[Math.min(Math.max(rank, 0), sorted.length - 1)];
+    }
+
+    /**
+     * Get the bytes allocated by every live thread so far.
+     * @param threads The thread management bean.
+     * @return The allocated bytes, or -1 if the JVM does not track them.
+     */
+    private static long allocatedBytes(ThreadMXBean threads) {
+        if (!(threads instanceof com.sun.management.ThreadMXBean)) return -1;
+        com.sun.management.ThreadMXBean t =
+            (com.sun.management.ThreadMXBean) threads;
+        if (!t.isThreadAllocatedMemoryEnabled()) return -1;
+        long total = 0;
+        for (long bytes : t.getThreadAllocatedBytes(t.getAllThreadIds())) {
+            if (bytes > 0) total += bytes;
+        }
+        return total;
+    }
+
+    /**
+     * Get the number of garbage collections so far.
+     * @return The collection count.
+     */
+    private static long gcCount() {
+        long count = 0;
+        for (GarbageCollectorMXBean gc :
+            ManagementFactory.getGarbageCollectorMXBeans()) {
+            count += Math.max(gc.getCollectionCount(), 0);
+        }
+        return count;
+    }
+
+    /**
+     * Get the time spent collecting garbage so far.
+     * @return The collection time in milliseconds.
+     */
+    private static long gcTime() {
+        long time = 0;
+        for (GarbageCollectorMXBean gc :
+            ManagementFactory.getGarbageCollectorMXBeans()) {
+            time += Math.max(gc.getCollectionTime(), 0);
+        }
+        return time;
+    }
+
+    /**
+     * Write results to a file as a JSON object.
+     * @param results The results, by name.
+     * @param file The file to write.
+     * @throws IOException If the file cannot be written.
+     */
+    public static void write(Map<String, Double> results, File file)
+        throws IOException {
+        BufferedWriter w = new BufferedWriter(new FileWriter(file));
+        try {
+            w.write("{");
+            boolean first = true;
+            for (Map.Entry<String, Double> e : results.entrySet()) {
+                w.write(first ? "\n" : ",\n");
+                first = false;
+                double v = e.getValue();
+                w.write(
+                    "  \"" + e.getKey() + "\": "
+                    + (v == Math.rint(v) && Math.abs(v) < 1E15
+                    ? Long.toString((long) v) : Double.toString(v)));
+            }
+            w.write("\n}\n");
+        } finally {
+            w.close();
+        }
+    }
+
+    /**
+     * Read results written by write.
+     * @param file The file to read.
+     * @return The results, by name.
+     * @throws IOException If the file cannot be read.
+     */
+    public static Map<String, Double> read(File file) throws IOException {
+        String text = new String(Files.readAllBytes(file.toPath()), "UTF-8");
+        Map<String, Double> results = new LinkedHashMap<String, Double>();
+        Matcher m = RESULT.matcher(text);
+        while (m.find()) {
+            results.put(m.group(1), Double.parseDouble(m.group(2)));
+        }
+        return results;
+    }
+
+    /**
+     * Compare results against a baseline, printing each difference.
+     * @param results The results of this run.
+     * @param baseline The results of the baseline run.
+     * @return 0 if no frame time regressed past its tolerance, 1 if one
+     * did, or 2 if the runs are not comparable.
+     */
+    public int compare(
+        Map<String, Double> results, Map<String, Double> baseline) {
+        for (String key : CONFIGURATION) {
+            if (!results.get(key).equals(baseline.get(key))) {
+                System.out.println(
+                    "Configuration differs from baseline: " + key + " "
+                    + results.get(key) + " vs " + baseline.get(key));
+                return 2;
+            }
+        }
+        int status = 0;
+        for (String key : STEADY) {
+            if (compareTime(key, results, baseline, m_tolerance)) status = 1;
+        }
+        for (String key : TAIL) {
+            if (compareTime(key, results, baseline, m_tailTolerance)) {
+                status = 1;
+            }
+        }
+        if (!results.get("frame_crc").equals(baseline.get("frame_crc"))) {
+            System.out.println("Note: the last frame differs from baseline.");
+        }
+        return status;
+    }
+
+    /**
+     * Compare one frame time against the baseline, printing the difference.
+     * @param key The name of the frame time.
+     * @param results The results of this run.
+     * @param baseline The results of the baseline run.
+     * @param tolerance The allowed slowdown (infinite to only report it).
+     * @return True if the frame time regressed past the tolerance.
+     */
+    private static boolean compareTime(
+        String key, Map<String, Double> results, Map<String, Double> baseline,
+        float tolerance) {
+        Double old = baseline.get(key);
+        if (old == null) return false;
+        double change = results.get(key) / old - 1.0;
+        boolean regressed = change > tolerance;
+        System.out.printf(
+            "%-8s %8.3f -> %8.3f ms (%+.1f%%)%s%n",
+            key,
+            old,
+            results.get(key),
+            change * 100.0,
+            regressed
+            ? " REGRESSED"
+            : Float.isInfinite(tolerance) ? " (not checked)" : "");
+        return regressed;
+    }
+
+    /**
+     * Run the benchmark.
+     * @param args The command-line options.
+     */
+    public static void main(String[] args) {
+        // Render without a display.
+        System.setProperty("java.awt.headless", "true");
+        int status;
+        try {
+            Benchmark b = new Benchmark(args);
+            Map<String, Double> results = b.run();
+            write(results, b.m_out);
+            System.out.printf(
+                "%d frames: mean %.3f p50 %.3f p95 %.3f p99 %.3f max %.3f ms"
+                + ", %.1f fps%n",
+                b.m_frames,
+                results.get("mean_ms"),
+                results.get("p50_ms"),
+                results.get("p95_ms"),
+                results.get("p99_ms"),
+                results.get("max_ms"),
+                results.get("fps"));
+            System.out.println("Results written to " + b.m_out);
+            status = b.m_baseline == null
+                ? 0 : b.compare(results, read(b.m_baseline));
+        } catch (IOException | IllegalArgumentException e) {
+            System.err.println(e.getMessage());
+            status = 2;
+        }
+        System.exit(status);
+    }
+}
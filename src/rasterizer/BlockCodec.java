@@ -0,0 +1,249 @@
+/*
+ * Luke Diamond
+ * 01/22/2018
+ * Grade 11 Final Project
+ * Mr. Patterson
+ */
+
+package rasterizer;
+
+/**
+ * BC1 (DXT1) style block compression. Each 4x4 block of texels is stored
+ * in 64 bits: two RGB565 endpoint colors and a 2-bit index per texel
+ * choosing between the endpoints and two colors a third and two thirds of
+ * the way between them (4 bits per texel, an eighth of packed ARGB).
+ * Blocks are always encoded opaque.
+ *
+ * A block is held in two ints: the endpoints (first in the low half) and
+ * the indices (texel (x, y) of the block at bits 2 * (y * 4 + x)).
+ */
+public class BlockCodec {
+    // Side length of a block in texels.
+    public static final int BLOCK_SIZE = 4;
+    // Number of ints per encoded block.
+    public static final int BLOCK_INTS = 2;
+
+    /**
+     * Encode a level into blocks. Partial blocks at the right and bottom
+     * edges repeat the last column/row.
+     * @param linear The texels of the level in row order (packed ARGB).
+     * @param w The width of the level.
+     * @param h The height of the level.
+     * @return The blocks in row order, BLOCK_INTS ints each.
+     */
+    public static int[] encode(int[] linear, int w, int h) {
+        int blocksX = (w + BLOCK_SIZE - 1) / BLOCK_SIZE;
+        int blocksY = (h + BLOCK_SIZE - 1) / BLOCK_SIZE;
+        int[] blocks = new int[blocksX * blocksY * BLOCK_INTS];
+        int[] texels = new int[BLOCK_SIZE * BLOCK_SIZE];
+
+        for (int by = 0; by < blocksY; ++by) {
+            for (int bx = 0; bx < blocksX; ++bx) {
+                // Gather the block's texels.
+                for (int y = 0; y < BLOCK_SIZE; ++y) {
+                    int sy = Math.min(by * BLOCK_SIZE + y, h - 1);
+                    for (int x = 0; x < BLOCK_SIZE; ++x) {
+                        int sx = Math.min(bx * BLOCK_SIZE + x, w - 1);
+                        texels[y * BLOCK_SIZE + x] = linear[sy * w + sx];
+                    }
+                }
+                encodeBlock(
+                    texels, blocks, (by * blocksX + bx) * BLOCK_INTS);
+            }
+        }
+        return blocks;
+    }
+
+    /**
+     * Encode one block.
+     * @param texels The 16 texels of the block in row order.
+     * @param out The array to write the block to.
+     * @param offset The position in out to write the block at.
+     */
+    private static void encodeBlock(int[] texels, int[] out, int offset) {
+        // Use the block's bounding box as the endpoints, inset slightly
+        // so the in-between colors land closer to the actual texels.
+        int minR = 255, minG = 255, minB = 255;
+        int maxR = 0, maxG = 0, maxB = 0;
+        for (int c : texels) {
+            int r = (c >> 16) & 0xFF;
+            int g = (c >> 8) & 0xFF;
+            int b = c & 0xFF;
+            minR = Math.min(minR, r);
+            minG = Math.min(minG, g);
+            minB = Math.min(minB, b);
+            maxR = Math.max(maxR, r);
+            maxG = Math.max(maxG, g);
+            maxB = Math.max(maxB, b);
+        }
+        int insetR = (maxR - minR) >> 4;
+        int insetG = (maxG - minG) >> 4;
+        int insetB = (maxB - minB) >> 4;
+        int c0 = pack565(maxR - insetR, maxG - insetG, maxB - insetB);
+        int c1 = pack565(minR + insetR, minG + insetG, minB + insetB);
+
+        // The first endpoint must be the greater for the four color mode.
+        if (c0 < c1) {
+            int t = c0;
+            c0 = c1;
+            c1 = t;
+        }
+        int[] palette = new int[4];
+        buildPalette(c0, c1, palette);
+
+        // Pick the closest palette color for each texel.
+        int indices = 0;
+        if (c0 != c1) {
+            for (int i = 0; i < texels.length; ++i) {
+                int best = 0;
+                int bestDist = Integer.MAX_VALUE;
+                for (int p = 0; p < 4; ++p) {
+                    int dist = colorDistance(texels[i], palette[p]);
+                    if (dist < bestDist) {
+                        bestDist = dist;
+                        best = p;
+                    }
+                }
+                indices |= best << (i * 2);
+            }
+        }
+        out[offset] = c0 | (c1 << 16);
+        out[offset + 1] = indices;
+    }
+
+    /**
+     * Decode one block.
+     * @param blocks The encoded blocks.
+     * @param offset The position of the block in blocks.
+     * @param out The array to write the 16 texels (packed ARGB, row order)
+     * to.
+     */
+    public static void decode(int[] blocks, int offset, int[] out) {
+        int endpoints = blocks[offset];
+        int indices = blocks[offset + 1];
+        int c0 = endpoints & 0xFFFF;
+        int c1 = endpoints >>> 16;
+        int p0 = unpack565(c0);
+        int p1 = unpack565(c1);
+        int p2 = p0;
+        int p3 = p0;
+        if (c0 > c1) {
+            p2 = mix(p0, p1, 2, 1);
+            p3 = mix(p0, p1, 1, 2);
+        }
+        for (int i = 0; i < 16; ++i) {
+            switch ((indices >>> (i * 2)) & 3) {
+                case 0: out[i] = p0; break;
+                case 1: out[i] = p1; break;
+                case 2: out[i] = p2; break;
+                default: out[i] = p3; break;
+            }
+        }
+    }
+
+    /**
+     * Build the four palette colors of a block.
+     * @param c0 The first endpoint (RGB565).
+     * @param c1 The second endpoint (RGB565).
+     * @param palette The array to write the colors (packed ARGB) to.
+     */
+    private static void buildPalette(int c0, int c1, int[] palette) {
+        palette[0] = unpack565(c0);
+        palette[1] = unpack565(c1);
+        palette[2] = mix(palette[0], palette[1], 2, 1);
+        palette[3] = mix(palette[0], palette[1], 1, 2);
+    }
+
+    /**
+     * Pack an 8-bit per channel color into RGB565, rounding to nearest.
+     * @param r The red channel.
+     * @param g The green channel.
+     * @param b The blue channel.
+     * @return The RGB565 color.
+     */
+    private static int pack565(int r, int g, int b) {
+        return
+            (Math.min((r * 31 + 127) / 255, 31) << 11)
+            | (Math.min((g * 63 + 127) / 255, 63) << 5)
+            | Math.min((b * 31 + 127) / 255, 31);
+    }
+
+    /**
+     * Expand an RGB565 color to opaque packed ARGB.
+     * @param c The RGB565 color.
+     * @return The packed ARGB color.
+     */
+    private static int unpack565(int c) {
+        int r = (c >> 11) & 31;
+        int g = (c >> 5) & 63;
+        int b = c & 31;
+        // Replicate the high bits into the low bits so 31/63 map to 255.
+        r = (r << 3) | (r >> 2);
+        g = (g << 2) | (g >> 4);
+        b = (b << 3) | (b >> 2);
+        return 0xFF000000 | (r << 16) | (g << 8) | b;
+    }
+
+    /**
+     * Blend two colors with integer weights.
+     * @param a The first color (packed ARGB).
+     * @param b The second color (packed ARGB).
+     * @param wa The weight of the first color.
+     * @param wb The weight of the second color.
+     * @return The weighted average (opaque packed ARGB).
+     */
+    private static int mix(int a, int b, int wa, int wb) {
+        int sum = wa + wb;
+        int r = (((a >> 16) & 0xFF) * wa + ((b >> 16) & 0xFF) * wb) / sum;
+        int g = (((a >> 8) & 0xFF) * wa + ((b >> 8) & 0xFF) * wb) / sum;
+        int bl = ((a & 0xFF) * wa + (b & 0xFF) * wb) / sum;
+        return 0xFF000000 | (r << 16) | (g << 8) | bl;
+    }
+
+    /**
+     * Compute the squared distance between two colors.
+     * @param a The first color (packed ARGB).
+     * @param b The second color (packed ARGB).
+     * @return The squared RGB distance.
+     */
+    private static int colorDistance(int a, int b) {
+        int dr = ((a >> 16) & 0xFF) - ((b >> 16) & 0xFF);
+        int dg = ((a >> 8) & 0xFF) - ((b >> 8) & 0xFF);
+        int db = (a & 0xFF) - (b & 0xFF);
+        return dr * dr + dg * dg + db * db;
+    }
+
+    /**
+     * Small direct-mapped cache of decoded blocks. Neighbouring fragments
+     * (and the four taps of a bilinear sample) mostly read the same
+     * blocks, so each block is only decoded once while it is in use. A
+     * cache must only be used by one thread.
+     */
+    public static class Cache {
+        // Number of cached blocks (a power of two).
+        private static final int SIZE = 64;
+
+        // Encoded level array and block offset of each cached block.
+        private final int[][] m_owners = new int[SIZE][];
+        private final int[] m_offsets = new int[SIZE];
+        // Decoded texels of each cached block.
+        private final int[][] m_texels = new int[SIZE][16];
+
+        /**
+         * Get a decoded block, decoding it if it is not cached.
+         * @param blocks The encoded blocks of a level.
+         * @param offset The position of the block in blocks.
+         * @return The 16 decoded texels of the block in row order.
+         */
+        public int[] get(int[] blocks, int offset) {
+            int slot = (offset / BLOCK_INTS) & (SIZE - 1);
+            int[] texels = m_texels[slot];
+            if (m_owners[slot] != blocks || m_offsets[slot] != offset) {
+                decode(blocks, offset, texels);
+                m_owners[slot] = blocks;
+                m_offsets[slot] = offset;
+            }
+            return texels;
+        }
+    }
+}
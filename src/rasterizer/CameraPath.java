@@ -0,0 +1,179 @@
+/*
+ * Luke Diamond
+ * 01/22/2018
+ * Grade 11 Final Project
+ * Mr. Patterson
+ */
+
+package rasterizer;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+
+/**
+ * Camera path: camera positions and rotations at points in time, played
+ * back by interpolating linearly between them. Paths are scripted or
+ * recorded, and saved as text with one key per line:
+ *
+ *     time x y z pitch yaw roll
+ *
+ * Blank lines and lines starting with '#' are ignored.
+ */
+public class CameraPath {
+    /**
+     * Camera state at a point in time.
+     */
+    private static class Key {
+        final float time;
+        final Vector3 position;
+        final Vector3 rotation;
+
+        Key(float time_, Vector3 position_, Vector3 rotation_) {
+            time = time_;
+            position = position_;
+            rotation = rotation_;
+        }
+    }
+
+    // Keys in time order.
+    private ArrayList<Key> m_keys = new ArrayList<Key>();
+
+    /**
+     * Construct an empty path.
+     */
+    public CameraPath() {
+    }
+
+    /**
+     * Load a path from a file.
+     * @param path The path of the file.
+     * @throws IOException If the file cannot be read or a line is not a
+     * key.
+     */
+    public CameraPath(String path) throws IOException {
+        BufferedReader reader = new BufferedReader(new FileReader(path));
+        try {
+            String line;
+            int number = 0;
+            while ((line = reader.readLine()) != null) {
+                ++number;
+                line = line.trim();
+                if (line.isEmpty() || line.startsWith("#")) continue;
+                String[] v = line.split("\\s+");
+                if (v.length != 7) {
+                    throw new IOException(
+                        path + ":" + number + ": expected 7 values");
+                }
+                try {
+                    addKey(
+                        Float.parseFloat(v[0]),
+                        new Vector3(
+                            Float.parseFloat(v[1]),
+                            Float.parseFloat(v[2]),
+                            Float.parseFloat(v[3])),
+                        new Vector3(
+                            Float.parseFloat(v[4]),
+                            Float.parseFloat(v[5]),
+                            Float.parseFloat(v[6])));
+                } catch (NumberFormatException e) {
+                    throw new IOException(
+                        path + ":" + number + ": " + e.getMessage());
+                }
+            }
+        } finally {
+            reader.close();
+        }
+    }
+
+    /**
+     * Add a key, after the keys at or before its time.
+     * @param time The time of the key in seconds.
+     * @param position The camera position.
+     * @param rotation The camera rotation (pitch, yaw and roll in degrees).
+     */
+    public void addKey(float time, Vector3 position, Vector3 rotation) {
+        int i = m_keys.size();
+        while (i > 0 && m_keys.get(i - 1).time > time) --i;
+        m_keys.add(i, new Key(time, position, rotation));
+    }
+
+    /**
+     * Get the number of keys.
+     * @return The key count.
+     */
+    public int getKeyCount() {
+        return m_keys.size();
+    }
+
+    /**
+     * Get the time of the last key.
+     * @return The length of the path in seconds.
+     */
+    public float getDuration() {
+        return m_keys.isEmpty() ? 0.0f : m_keys.get(m_keys.size() - 1).time;
+    }
+
+    /**
+     * Move a panel's camera to where the path is at a time. Times outside
+     * the path hold the first or last key.
+     * @param panel The panel whose camera to move.
+     * @param time The time in seconds.
+     */
+    public void apply(RasterPanel panel, float time) {
+        if (m_keys.isEmpty()) return;
+        // Find the keys around the time.
+        int next = 0;
+        while (next < m_keys.size() && m_keys.get(next).time <= time) {
+            ++next;
+        }
+        Key a = m_keys.get(Math.max(next - 1, 0));
+        Key b = m_keys.get(Math.min(next, m_keys.size() - 1));
+        float span = b.time - a.time;
+        float t = span > 0.0f ? (time - a.time) / span : 0.0f;
+        t = Math.min(Math.max(t, 0.0f), 1.0f);
+        panel.setCameraPosition(lerp(a.position, b.position, t));
+        panel.setCameraRotation(lerp(a.rotation, b.rotation, t));
+    }
+
+    /**
+     * Linearly interpolate two vectors.
+     * @param a The first vector.
+     * @param b The second vector.
+     * @param t The weight of the second vector.
+     * @return The interpolated vector.
+     */
+    private static Vector3 lerp(Vector3 a, Vector3 b, float t) {
+        return new Vector3(
+            a.x + (b.x - a.x) * t,
+            a.y + (b.y - a.y) * t,
+            a.z + (b.z - a.z) * t);
+    }
+
+    /**
+     * Save the path to a file.
+     * @param file The file to write.
+     * @throws IOException If the file cannot be written.
+     */
+    public void save(File file) throws IOException {
+        PrintWriter w = new PrintWriter(new FileWriter(file));
+        try {
+            w.println("# time x y z pitch yaw roll");
+            for (Key k : m_keys) {
+                w.println(
+                    k.time + " "
+                    + k.position.x + " " + k.position.y + " "
+                    + k.position.z + " "
+                    + k.rotation.x + " " + k.rotation.y + " "
+                    + k.rotation.z);
+            }
+        } finally {
+            w.close();
+        }
+        if (w.checkError()) throw new IOException("Cannot write " + file);
+    }
+}
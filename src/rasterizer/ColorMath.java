@@ -0,0 +1,140 @@
+/*
+ * Luke Diamond
+ * 01/22/2018
+ * Grade 11 Final Project
+ * Mr. Patterson
+ */
+
+package rasterizer;
+
+/**
+ * Color arithmetic on packed ARGB ints, without allocation or floating
+ * point. Weights and scales are fixed point with 256 meaning 1.0.
+ *
+ * Most operations work on two channels at once: masking a color with
+ * 0x00FF00FF leaves blue and red in separate 16-bit lanes, and shifting it
+ * right by 8 first does the same for green and alpha. Each lane has room
+ * for a channel times a weight of up to 256 without spilling into the
+ * next lane.
+ */
+public class ColorMath {
+    // Masks of the blue/red and green/alpha lanes.
+    private static final int RB = 0x00FF00FF;
+    private static final int AG = 0xFF00FF00;
+    // The bit above each lane, set when a lane overflows 8 bits.
+    private static final int LANE_CARRY = 0x01000100;
+
+    /**
+     * Convert a float weight in range [0, 1] to fixed point.
+     * @param alpha The weight (clamped to [0, 1]).
+     * @return The weight in range [0, 256].
+     */
+    public static int weight(float alpha) {
+        if (!(alpha > 0.0f)) return 0;
+        if (alpha >= 1.0f) return 256;
+        return (int) (alpha * 256.0f + 0.5f);
+    }
+
+    /**
+     * Linearly interpolate two colors.
+     * @param a The first color.
+     * @param b The second color.
+     * @param t The weight of the second color, in range [0, 256].
+     * @return The blended color.
+     */
+    public static int lerp(int a, int b, int t) {
+        int s = 256 - t;
+        int rb = (((a & RB) * s + (b & RB) * t) >>> 8) & RB;
+        int ag = (((a >>> 8) & RB) * s + ((b >>> 8) & RB) * t) & AG;
+        return rb | ag;
+    }
+
+    /**
+     * Scale every channel of a color (including alpha) by a weight.
+     * @param c The color.
+     * @param s The scale, in range [0, 256].
+     * @return The scaled color.
+     */
+    public static int scale(int c, int s) {
+        int rb = (((c & RB) * s) >>> 8) & RB;
+        int ag = (((c >>> 8) & RB) * s) & AG;
+        return rb | ag;
+    }
+
+    /**
+     * Multiply two colors channel by channel (modulate).
+     * @param a The first color.
+     * @param b The second color.
+     * @return The product, with 255 as 1.0.
+     */
+    public static int multiply(int a, int b) {
+        int result = 0;
+        for (int shift = 0; shift < 32; shift += 8) {
+            int p = ((a >>> shift) & 0xFF) * ((b >>> shift) & 0xFF) + 128;
+            // (p + p / 256) / 256 is p / 255 rounded, without a divide.
+            result |= ((p + (p >>> 8)) >>> 8) << shift;
+        }
+        return result;
+    }
+
+    /**
+     * Add two colors channel by channel, clamping each channel at 255.
+     * @param a The first color.
+     * @param b The second color.
+     * @return The saturated sum.
+     */
+    public static int addSaturate(int a, int b) {
+        int rb = (a & RB) + (b & RB);
+        int ag = ((a >>> 8) & RB) + ((b >>> 8) & RB);
+        // Turn each lane's carry bit into a full lane mask.
+        int rbCarry = rb & LANE_CARRY;
+        int agCarry = ag & LANE_CARRY;
+        rb = (rb | (rbCarry - (rbCarry >>> 8))) & RB;
+        ag = (ag | (agCarry - (agCarry >>> 8))) & RB;
+        return rb | (ag << 8);
+    }
+
+    /**
+     * Average four colors channel by channel, rounding to nearest.
+     * @param a The first color.
+     * @param b The second color.
+     * @param c The third color.
+     * @param d The fourth color.
+     * @return The average color.
+     */
+    public static int average4(int a, int b, int c, int d) {
+        int rb =
+            (((a & RB) + (b & RB) + (c & RB) + (d & RB) + 0x00020002) >>> 2)
+            & RB;
+        int ag =
+            ((((a >>> 8) & RB) + ((b >>> 8) & RB)
+            + ((c >>> 8) & RB) + ((d >>> 8) & RB) + 0x00020002) >>> 2)
+            & RB;
+        return rb | (ag << 8);
+    }
+
+    /**
+     * Pack an opaque color from channels in range [0, 1].
+     * @param r The red channel.
+     * @param g The green channel.
+     * @param b The blue channel.
+     * @return The opaque packed RGB color.
+     */
+    public static int pack(float r, float g, float b) {
+        return 0xFF000000
+            | (channel(r) << 16)
+            | (channel(g) << 8)
+            | channel(b);
+    }
+
+    /**
+     * Convert a channel in range [0, 1] to 8 bits.
+     * @param v The channel value (clamped to [0, 1]).
+     * @return The channel in range [0, 255].
+     */
+    private static int channel(float v) {
+        if (!(v > 0.0f)) return 0;
+        if (v >= 1.0f) return 255;
+        return (int) (v * 255.0f + 0.5f);
+    }
+}
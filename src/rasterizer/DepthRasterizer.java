@@ -0,0 +1,247 @@
+/*
+ * Luke Diamond
+ * 01/22/2018
+ * Grade 11 Final Project
+ * Mr. Patterson
+ */
+
+package rasterizer;
+
+import java.nio.FloatBuffer;
+import java.nio.IntBuffer;
+import java.util.Arrays;
+
+/**
+ * Depth-only rasterizer for rendering shadow maps. Triangles are only
+ * transformed, clipped and filled with their depth: there are no varyings,
+ * no shading and no back-face culling (so single-sided geometry such as
+ * floors still casts shadows from behind).
+ *
+ * Depth is stored as 1/w, which is linear in screen space and can be
+ * compared with the view depth of any point without knowing the
+ * projection's depth range. Larger values are closer, and a cleared
+ * target holds zero (infinitely far).
+ */
+public class DepthRasterizer {
+    // Distance of the near plane in view depth.
+    private static final float NEAR = 0.01f;
+
+    // Current target (1/w per pixel, row order) and its size.
+    private float[] m_target;
+    private int m_width;
+    private int m_height;
+
+    // Transformed verts (clip x, y and w of each).
+    private float[] m_clip = new float[0];
+    // Near-plane clipping scratch (x/y/w of up to 4 verts in and out).
+    private final float[] m_clipIn = new float[12];
+    private final float[] m_clipOut = new float[12];
+
+    // Number of triangles filled since the target was set.
+    private int m_triangles = 0;
+
+    /**
+     * Set the target to render to, and clear it.
+     * @param target The depth target (1/w per pixel, in row order).
+     * @param width The width of the target in pixels.
+     * @param height The height of the target in pixels.
+     */
+    public void setTarget(float[] target, int width, int height) {
+        m_target = target;
+        m_width = width;
+        m_height = height;
+        m_triangles = 0;
+        Arrays.fill(target, 0.0f);
+    }
+
+    /**
+     * Render the depth of a mesh.
+     * @param res The mesh to render.
+     * @param transform The transform from the mesh's object space to clip
+     * space (clip w must be view depth).
+     */
+    public void draw(MeshResource res, Matrix4 transform) {
+        FloatBuffer vertices = res.getVertexData();
+        IntBuffer indices = res.getIndices();
+        int vertexCount = vertices.limit() / MeshResource.VERTEX_STRIDE;
+        if (m_clip.length < vertexCount * 3) {
+            m_clip = new float[vertexCount * 3];
+        }
+
+        // Transform every vertex (only x, y and w are needed).
+        Matrix4 m = transform;
+        float[] clip = m_clip;
+        for (int v = 0; v < vertexCount; ++v) {
+            int base =
+                v * MeshResource.VERTEX_STRIDE + MeshResource.POSITION_OFFSET;
+            float x = vertices.get(base);
+            float y = vertices.get(base + 1);
+            float z = vertices.get(base + 2);
+            clip[v * 3 + 0] = m.a.x * x + m.a.y * y + m.a.z * z + m.a.w;
+            clip[v * 3 + 1] = m.b.x * x + m.b.y * y + m.b.z * z + m.b.w;
+            clip[v * 3 + 2] = m.d.x * x + m.d.y * y + m.d.z * z + m.d.w;
+        }
+
+        int end = res.getTriCount() * 3;
+        for (int i = 0; i < end; i += 3) {
+            int a = indices.get(i) * 3;
+            int b = indices.get(i + 1) * 3;
+            int c = indices.get(i + 2) * 3;
+            // Reject triangles entirely outside one side of the frustum.
+            float xa = clip[a], ya = clip[a + 1], wa = clip[a + 2];
+            float xb = clip[b], yb = clip[b + 1], wb = clip[b + 2];
+            float xc = clip[c], yc = clip[c + 1], wc = clip[c + 2];
+            if (
+                (xa < -wa && xb < -wb && xc < -wc)
+                || (xa > wa && xb > wb && xc > wc)
+                || (ya < -wa && yb < -wb && yc < -wc)
+                || (ya > wa && yb > wb && yc > wc)) {
+                continue;
+            }
+            boolean inA = wa >= NEAR;
+            boolean inB = wb >= NEAR;
+            boolean inC = wc >= NEAR;
+            if (inA && inB && inC) {
+                fill(clip, a, clip, b, clip, c);
+            } else if (inA || inB || inC) {
+                clipAndFill(clip, a, b, c);
+            }
+        }
+    }
+
+    /**
+     * Clip a triangle crossing the near plane and fill what is left.
+     * @param clip The transformed verts.
+     * @param a The position of the first vertex in clip.
+     * @param b The position of the second vertex in clip.
+     * @param c The position of the third vertex in clip.
+     */
+    private void clipAndFill(float[] clip, int a, int b, int c) {
+        float[] in = m_clipIn;
+        float[] out = m_clipOut;
+        System.arraycopy(clip, a, in, 0, 3);
+        System.arraycopy(clip, b, in, 3, 3);
+        System.arraycopy(clip, c, in, 6, 3);
+        int count = 0;
+        for (int i = 0; i < 3; ++i) {
+            int p = i * 3;
+            int q = ((i + 1) % 3) * 3;
+            float dp = in[p + 2] - NEAR;
+            float dq = in[q + 2] - NEAR;
+            if (dp >= 0.0f) {
+                System.arraycopy(in, p, out, count * 3, 3);
+                ++count;
+            }
+            if ((dp >= 0.0f) != (dq >= 0.0f)) {
+                // Add the intersection of the edge with the plane.
+                float t = dp / (dp - dq);
+                int o = count * 3;
+                for (int k = 0; k < 3; ++k) {
+                    out[o + k] = in[p + k] + (in[q + k] - in[p + k]) * t;
+                }
+                ++count;
+            }
+        }
+        // Fan the polygon into triangles.
+        for (int i = 1; i + 1 < count; ++i) {
+            fill(out, 0, out, i * 3, out, (i + 1) * 3);
+        }
+    }
+
+    /**
+     * Fill a triangle in front of the near plane, keeping the closest
+     * depth of each pixel whose center it covers.
+     * @param va The array holding the first vertex.
+     * @param a The position of the first vertex.
+     * @param vb The array holding the second vertex.
+     * @param b The position of the second vertex.
+     * @param vc The array holding the third vertex.
+     * @param c The position of the third vertex.
+     */
+    private void fill(
+        float[] va, int a,
+        float[] vb, int b,
+        float[] vc, int c) {
+        // Project to pixel coordinates.
+        float qa = 1.0f / va[a + 2];
+        float qb = 1.0f / vb[b + 2];
+        float qc = 1.0f / vc[c + 2];
+        float xa = (va[a] * qa + 1.0f) * 0.5f * m_width;
+        float ya = (va[a + 1] * qa + 1.0f) * 0.5f * m_height;
+        float xb = (vb[b] * qb + 1.0f) * 0.5f * m_width;
+        float yb = (vb[b + 1] * qb + 1.0f) * 0.5f * m_height;
+        float xc = (vc[c] * qc + 1.0f) * 0.5f * m_width;
+        float yc = (vc[c + 1] * qc + 1.0f) * 0.5f * m_height;
+
+        float area = (xb - xa) * (yc - ya) - (xc - xa) * (yb - ya);
+        if (area == 0.0f || area != area) return;
+        // Either winding is filled, so flip the edges of the other.
+        float sign = area > 0.0f ? 1.0f : -1.0f;
+
+        // Pixels whose centers may be covered.
+        int minX = Math.max(
+            (int) Math.ceil(Math.min(xa, Math.min(xb, xc)) - 0.5f), 0);
+        int minY = Math.max(
+            (int) Math.ceil(Math.min(ya, Math.min(yb, yc)) - 0.5f), 0);
+        int maxX = Math.min(
+            (int) Math.floor(Math.max(xa, Math.max(xb, xc)) - 0.5f),
+            m_width - 1);
+        int maxY = Math.min(
+            (int) Math.floor(Math.max(ya, Math.max(yb, yc)) - 0.5f),
+            m_height - 1);
+        if (minX > maxX || minY > maxY) return;
+
+        // Edge equations, positive inside.
+        float a0 = (ya - yb) * sign;
+        float b0 = (xb - xa) * sign;
+        float c0 = (xa * yb - ya * xb) * sign;
+        float a1 = (yb - yc) * sign;
+        float b1 = (xc - xb) * sign;
+        float c1 = (xb * yc - yb * xc) * sign;
+        float a2 = (yc - ya) * sign;
+        float b2 = (xa - xc) * sign;
+        float c2 = (xc * ya - yc * xa) * sign;
+
+        // Plane of 1/w.
+        float inv = 1.0f / area;
+        float dqb = qb - qa;
+        float dqc = qc - qa;
+        float gx = (dqb * (yc - ya) - dqc * (yb - ya)) * inv;
+        float gy = (dqc * (xb - xa) - dqb * (xc - xa)) * inv;
+        float gc = qa - gx * xa - gy * ya;
+
+        float[] target = m_target;
+        for (int y = minY; y <= maxY; ++y) {
+            float py = y + 0.5f;
+            float px = minX + 0.5f;
+            float e0 = a0 * px + b0 * py + c0;
+            float e1 = a1 * px + b1 * py + c1;
+            float e2 = a2 * px + b2 * py + c2;
+            float q = gx * px + gy * py + gc;
+            int row = y * m_width;
+            boolean inside = false;
+            for (int x = minX; x <= maxX; ++x) {
+                if (e0 >= 0.0f && e1 >= 0.0f && e2 >= 0.0f) {
+                    inside = true;
+                    if (q > target[row + x]) target[row + x] = q;
+                } else if (inside) {
+                    // Triangles are convex, so the span has ended.
+                    break;
+                }
+                e0 += a0;
+                e1 += a1;
+                e2 += a2;
+                q += gx;
+            }
+        }
+        ++m_triangles;
+    }
+
+    /**
+     * Get the number of triangles filled since the target was set.
+     * @return The filled triangle count.
+     */
+    public int getTriangleCount() {
+        return m_triangles;
+    }
+}
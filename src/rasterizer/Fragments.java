@@ -0,0 +1,78 @@
+/*
+ * Luke Diamond
+ * 01/22/2018
+ * Grade 11 Final Project
+ * Mr. Patterson
+ */
+
+package rasterizer;
+
+/**
+ * A span of fragments of one triangle, passed to the fragment stage. The
+ * rasterizer fills in the position and perspective-correct varyings of
+ * each fragment, and the fragment shader writes their colors.
+ */
+public class Fragments {
+	// Maximum number of varyings per vertex.
+	public static final int MAX_VARYINGS = 16;
+
+	// Number of fragments in the span.
+	public int count;
+	// Row of the span, and column of each fragment (in pixels).
+	public int y;
+	public final int[] x;
+	// Clip-space w (view depth) of each fragment.
+	public final float[] w;
+	// Interpolated varyings, varyingCount floats per fragment.
+	public int varyingCount;
+	public final float[] varyings;
+	// Output colors (packed RGB).
+	public final int[] color;
+	// World-space outward facing normal of the triangle.
+	public float normalX;
+	public float normalY;
+	public float normalZ;
+	// Lights that may reach the span (the first lightCount of lights).
+	public Light[] lights;
+	public int lightCount;
+
+	// Screen-space gradients of 1/w and of each varying divided by w, for
+	// computing varying derivatives.
+	float m_invWdx;
+	float m_invWdy;
+	final float[] m_dx = new float[MAX_VARYINGS];
+	final float[] m_dy = new float[MAX_VARYINGS];
+
+	/**
+	 * Construct a fragment span.
+	 * @param capacity The maximum number of fragments in a span.
+	 */
+	public Fragments(int capacity) {
+		x = new int[capacity];
+		w = new float[capacity];
+		varyings = new float[capacity * MAX_VARYINGS];
+		color = new int[capacity];
+	}
+
+	/**
+	 * Get the rate of change of a varying per pixel to the right.
+	 * @param i The fragment index.
+	 * @param k The varying index.
+	 * @return The horizontal derivative of the varying at the fragment.
+	 */
+	public float ddx(int i, int k) {
+		float value = varyings[i * varyingCount + k];
+		return (m_dx[k] - value * m_invWdx) * w[i];
+	}
+
+	/**
+	 * Get the rate of change of a varying per pixel downwards.
+	 * @param i The fragment index.
+	 * @param k The varying index.
+	 * @return The vertical derivative of the varying at the fragment.
+	 */
+	public float ddy(int i, int k) {
+		float value = varyings[i * varyingCount + k];
+		return (m_dy[k] - value * m_invWdy) * w[i];
+	}
+}
@@ -0,0 +1,437 @@
+/*
+ * Luke Diamond
+ * 01/22/2018
+ * Grade 11 Final Project
+ * Mr. Patterson
+ */
+
+package rasterizer;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
+import java.awt.image.DirectColorModel;
+import java.awt.image.Raster;
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+import javax.imageio.ImageIO;
+
+/**
+ * Records rendered frames to disk without stalling the render thread.
+ * Capturing a frame only copies its pixels into a pooled buffer and queues
+ * it; background encoder threads write the queued frames as a numbered PNG
+ * sequence, or as a raw RGB or Y4M (YUV 4:2:0) stream.
+ *
+ * The pool bounds the memory and the backlog. When every buffer is waiting
+ * to be encoded, a capture either waits for one (BLOCK, slowing rendering
+ * down to the encoders' pace) or drops the frame (DROP, keeping the frame
+ * rate and counting the loss).
+ *
+ * Streams have a fixed size (that of the first frame), and frames of other
+ * sizes (for example after the render resolution changes) are resampled to
+ * it. They are written by a single encoder thread to keep frames in order;
+ * PNG frames are independent files, so any number of threads encode them.
+ */
+public class FrameRecorder {
+    /**
+     * Output formats.
+     */
+    public enum Format {
+        // One PNG file per frame, in a directory.
+        PNG,
+        // A stream of packed 8-bit RGB frames.
+        RAW,
+        // A YUV4MPEG2 stream (4:2:0, full range), playable by most video
+        // tools.
+        Y4M
+    }
+
+    /**
+     * What to do with a frame when every buffer is waiting to be encoded.
+     */
+    public enum Policy {
+        // Wait for a buffer to be freed.
+        BLOCK,
+        // Drop the frame.
+        DROP
+    }
+
+    // Color model of captured frames (packed RGB).
+    private static final DirectColorModel COLOR_MODEL =
+        new DirectColorModel(24, 0xFF0000, 0x00FF00, 0x0000FF);
+
+    /**
+     * A captured frame waiting to be encoded.
+     */
+    private static class Capture {
+        int[] pixels = new int[0];
+        int width;
+        int height;
+        long index;
+        // Time the frame was captured (System.nanoTime).
+        long time;
+    }
+
+    // Output location (directory for PNG, file otherwise) and format.
+    private final File m_output;
+    private final Format m_format;
+    private final Policy m_policy;
+    // Frame rate written to Y4M headers.
+    private final int m_fps;
+
+    // Free buffers, and captured frames waiting for an encoder.
+    private final BlockingQueue<Capture> m_free;
+    private final BlockingQueue<Capture> m_queue;
+    private final Thread[] m_encoders;
+    // Marker telling an encoder to exit.
+    private final Capture m_end = new Capture();
+
+    // Stream output, its frame size (0 until the first frame) and the
+    // frame scratch it is encoded into.
+    private OutputStream m_stream;
+    private int m_streamWidth = 0;
+    private int m_streamHeight = 0;
+    private byte[] m_bytes = new byte[0];
+
+    // Statistics.
+    private long m_captured = 0;
+    private long m_dropped = 0;
+    private final AtomicLong m_encoded = new AtomicLong();
+    private final AtomicLong m_latencySum = new AtomicLong();
+    private final AtomicLong m_latencyMax = new AtomicLong();
+    // First error an encoder hit, rethrown by close.
+    private volatile IOException m_error;
+    private boolean m_closed = false;
+
+    /**
+     * Construct a recorder and start its encoder threads.
+     * @param output The directory to write PNG frames to, or the file to
+     * write a stream to.
+     * @param format The output format.
+     * @param policy What to do with frames when the encoders fall behind.
+     * @param threads The number of encoder threads (streams use one).
+     * @param buffers The number of frames that may wait to be encoded.
+     * @param fps The frame rate recorded in Y4M headers.
+     * @throws IOException If the output cannot be created.
+     */
+    public FrameRecorder(
+        File output, Format format, Policy policy, int threads, int buffers,
+        int fps) throws IOException {
+        m_output = output;
+        m_format = format;
+        m_policy = policy;
+        m_fps = Math.max(fps, 1);
+        if (format == Format.PNG) {
+            if (!output.isDirectory() && !output.mkdirs()) {
+                throw new IOException("Cannot create directory: " + output);
+            }
+        } else {
+            m_stream = new BufferedOutputStream(
+                new FileOutputStream(output), 1 << 20);
+            threads = 1;
+        }
+
+        buffers = Math.max(buffers, 1);
+        m_free = new ArrayBlockingQueue<Capture>(buffers);
+        m_queue = new ArrayBlockingQueue<Capture>(buffers + threads);
+        for (int i = 0; i < buffers; ++i) {
+            m_free.add(new Capture());
+        }
+        m_encoders = new Thread[Math.max(threads, 1)];
+        for (int i = 0; i < m_encoders.length; ++i) {
+            m_encoders[i] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    encodeLoop();
+                }
+            }, "Encoder " + i);
+            m_encoders[i].setDaemon(true);
+            m_encoders[i].start();
+        }
+    }
+
+    /**
+     * Capture the last frame a rasterizer rendered. Must be called from one
+     * thread at a time, between frames.
+     * @param r The rasterizer.
+     * @return False if the frame was dropped.
+     */
+    public boolean capture(Rasterizer r) {
+        if (m_closed) return false;
+        Capture c;
+        if (m_policy == Policy.BLOCK) {
+            try {
+                c = m_free.take();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                c = null;
+            }
+        } else {
+            c = m_free.poll();
+        }
+        if (c == null) {
+            ++m_dropped;
+            return false;
+        }
+
+        // Copy the frame into the buffer.
+        c.width = r.getWidth();
+        c.height = r.getHeight();
+        if (c.pixels.length < c.width * c.height) {
+            c.pixels = new int[c.width * c.height];
+        }
+        r.copyColor(c.pixels);
+        c.index = m_captured++;
+        c.time = System.nanoTime();
+        m_queue.add(c);
+        return true;
+    }
+
+    /**
+     * Encode captured frames until told to exit.
+     */
+    private void encodeLoop() {
+        for (;;) {
+            Capture c;
+            try {
+                c = m_queue.take();
+            } catch (InterruptedException e) {
+                return;
+            }
+            if (c == m_end) return;
+            try {
+                if (m_format == Format.PNG) {
+                    writePng(c);
+                } else {
+                    writeFrame(c);
+                }
+            } catch (IOException e) {
+                // Keep the first error for close, and drop the frame.
+                if (m_error == null) m_error = e;
+                e.printStackTrace();
+            }
+
+            // Record the time from capture to encoded.
+            long latency = System.nanoTime() - c.time;
+            m_latencySum.addAndGet(latency);
+            long max = m_latencyMax.get();
+            while (latency > max && !m_latencyMax.compareAndSet(max, latency)) {
+                max = m_latencyMax.get();
+            }
+            m_encoded.incrementAndGet();
+            m_free.add(c);
+        }
+    }
+
+    /**
+     * Write a frame as a numbered PNG file.
+     * @param c The frame.
+     * @throws IOException If the file cannot be written.
+     */
+    private void writePng(Capture c) throws IOException {
+        // View the buffer as an image rather than copying it.
+        BufferedImage image = new BufferedImage(
+            COLOR_MODEL,
+            Raster.createPackedRaster(
+                new DataBufferInt(c.pixels, c.width * c.height),
+                c.width,
+                c.height,
+                c.width,
+                COLOR_MODEL.getMasks(),
+                null),
+            false,
+            null);
+        File file =
+            new File(m_output, String.format("frame_%06d.png", c.index));
+        if (!ImageIO.write(image, "png", file)) {
+            throw new IOException("No PNG writer available");
+        }
+    }
+
+    /**
+     * Write a frame to the stream, resampled to the stream's size.
+     * @param c The frame.
+     * @throws IOException If the stream cannot be written.
+     */
+    private void writeFrame(Capture c) throws IOException {
+        if (m_streamWidth == 0) {
+            // The first frame sets the size of the stream.
+            m_streamWidth = c.width;
+            m_streamHeight = c.height;
+            if (m_format == Format.Y4M) {
+                String header =
+                    "YUV4MPEG2 W" + m_streamWidth + " H" + m_streamHeight
+                    + " F" + m_fps + ":1 Ip A1:1 C420jpeg XCOLORRANGE=FULL\n";
+                m_stream.write(header.getBytes(StandardCharsets.US_ASCII));
+            }
+        }
+        int w = m_streamWidth;
+        int h = m_streamHeight;
+        if (m_format == Format.RAW) {
+            if (m_bytes.length < w * h * 3) m_bytes = new byte[w * h * 3];
+            int o = 0;
+            for (int y = 0; y < h; ++y) {
+                int row = (y * c.height / h) * c.width;
+                for (int x = 0; x < w; ++x) {
+                    int p = c.pixels[row + x * c.width / w];
+                    m_bytes[o++] = (byte) (p >> 16);
+                    m_bytes[o++] = (byte) (p >> 8);
+                    m_bytes[o++] = (byte) p;
+                }
+            }
+            m_stream.write(m_bytes, 0, o);
+        } else {
+            m_stream.write(
+                "FRAME\n".getBytes(StandardCharsets.US_ASCII));
+            int size = toYuv(c, w, h);
+            m_stream.write(m_bytes, 0, size);
+        }
+    }
+
+    /**
+     * Convert a frame to planar YUV 4:2:0 (BT.601, full range) in the
+     * scratch buffer, resampling it to a size.
+     * @param c The frame.
+     * @param w The width to convert to.
+     * @param h The height to convert to.
+     * @return The number of bytes written.
+     */
+    private int toYuv(Capture c, int w, int h) {
+        int cw = (w + 1) / 2;
+        int ch = (h + 1) / 2;
+        int size = w * h + cw * ch * 2;
+        if (m_bytes.length < size) m_bytes = new byte[size];
+        byte[] b = m_bytes;
+        int uBase = w * h;
+        int vBase = uBase + cw * ch;
+
+        // Luma per pixel (weights scaled by 65536).
+        for (int y = 0; y < h; ++y) {
+            int row = (y * c.height / h) * c.width;
+            for (int x = 0; x < w; ++x) {
+                int p = c.pixels[row + x * c.width / w];
+                int r = (p >> 16) & 0xFF;
+                int g = (p >> 8) & 0xFF;
+                int bl = p & 0xFF;
+                b[y * w + x] =
+                    (byte) ((19595 * r + 38470 * g + 7471 * bl + 32768) >> 16);
+            }
+        }
+        // Chroma per 2x2 block, from the block's average color.
+        for (int y = 0; y < ch; ++y) {
+            for (int x = 0; x < cw; ++x) {
+                int r = 0;
+                int g = 0;
+                int bl = 0;
+                int n = 0;
+                for (int dy = 0; dy < 2; ++dy) {
+                    int sy = y * 2 + dy;
+                    if (sy >= h) break;
+                    int row = (sy * c.height / h) * c.width;
+                    for (int dx = 0; dx < 2; ++dx) {
+                        int sx = x * 2 + dx;
+                        if (sx >= w) break;
+                        int p = c.pixels[row + sx * c.width / w];
+                        r += (p >> 16) & 0xFF;
+                        g += (p >> 8) & 0xFF;
+                        bl += p & 0xFF;
+                        ++n;
+                    }
+                }
+                r /= n;
+                g /= n;
+                bl /= n;
+                int u = (-11059 * r - 21709 * g + 32768 * bl + 8421376) >> 16;
+                int v = (32768 * r - 27439 * g - 5329 * bl + 8421376) >> 16;
+                b[uBase + y * cw + x] = (byte) Math.min(Math.max(u, 0), 255);
+                b[vBase + y * cw + x] = (byte) Math.min(Math.max(v, 0), 255);
+            }
+        }
+        return size;
+    }
+
+    /**
+     * Stop capturing, wait for the queued frames to be encoded and close
+     * the output.
+     * @throws IOException If a frame or the output could not be written.
+     */
+    public void close() throws IOException {
+        if (m_closed) return;
+        m_closed = true;
+        for (int i = 0; i < m_encoders.length; ++i) {
+            m_queue.add(m_end);
+        }
+        try {
+            for (Thread t : m_encoders) {
+                t.join();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        if (m_stream != null) m_stream.close();
+        if (m_error != null) throw m_error;
+    }
+
+    /**
+     * Get the output format.
+     * @return The format frames are written in.
+     */
+    public Format getFormat() {
+        return m_format;
+    }
+
+    /**
+     * Get the number of frames captured.
+     * @return The captured frame count.
+     */
+    public long getCapturedFrames() {
+        return m_captured;
+    }
+
+    /**
+     * Get the number of frames dropped because the encoders fell behind.
+     * @return The dropped frame count.
+     */
+    public long getDroppedFrames() {
+        return m_dropped;
+    }
+
+    /**
+     * Get the number of frames encoded.
+     * @return The encoded frame count.
+     */
+    public long getEncodedFrames() {
+        return m_encoded.get();
+    }
+
+    /**
+     * Get the number of captured frames waiting to be encoded.
+     * @return The backlog.
+     */
+    public int getBacklog() {
+        return m_queue.size();
+    }
+
+    /**
+     * Get the average time from capturing a frame to it being encoded.
+     * @return The average latency in milliseconds.
+     */
+    public float getAverageLatency() {
+        long n = m_encoded.get();
+        return n > 0 ? m_latencySum.get() / (float) n * 1E-6f : 0.0f;
+    }
+
+    /**
+     * Get the longest time from capturing a frame to it being encoded.
+     * @return The largest latency in milliseconds.
+     */
+    public float getMaxLatency() {
+        return m_latencyMax.get() * 1E-6f;
+    }
+}
@@ -0,0 +1,97 @@
+/*
+ * Luke Diamond
+ * 01/22/2018
+ * Grade 11 Final Project
+ * Mr. Patterson
+ */
+
+package rasterizer;
+
+/**
+ * View frustum, as six planes extracted from a view-projection matrix.
+ * Used to reject bounding spheres that are entirely off screen.
+ */
+public class Frustum {
+	// Frustum planes (xyz = inward normal, w = distance), normalized.
+	private Vector4[] m_planes;
+
+	/**
+	 * Constructs a frustum from a combined view-projection matrix.
+	 * @param viewProj The view-projection matrix (world->clip).
+	 */
+	public Frustum(Matrix4 viewProj) {
+		this(viewProj, false);
+	}
+
+	/**
+	 * Constructs a frustum from a combined view-projection matrix.
+	 * @param viewProj The view-projection matrix (world->clip).
+	 * @param reversed Whether the projection reverses depth (keeping
+	 * 0 <= z <= w rather than -w <= z <= w).
+	 */
+	public Frustum(Matrix4 viewProj, boolean reversed) {
+		// Each clip-space bound -w <= x/y/z <= w is a plane made from the
+		// w row plus or minus the x/y/z row (and z >= 0 from the z row
+		// alone when reversed).
+		Vector4 r0 = viewProj.a;
+		Vector4 r1 = viewProj.b;
+		Vector4 r2 = viewProj.c;
+		Vector4 r3 = viewProj.d;
+		m_planes = new Vector4[] {
+			plane(r3, r0, 1.0f),
+			plane(r3, r0, -1.0f),
+			plane(r3, r1, 1.0f),
+			plane(r3, r1, -1.0f),
+			reversed
+				? plane(new Vector4(0.0f, 0.0f, 0.0f, 0.0f), r2, 1.0f)
+				: plane(r3, r2, 1.0f),
+			plane(r3, r2, -1.0f)
+		};
+	}
+
+	/**
+	 * Combine two matrix rows into a normalized plane.
+	 * @param w The w row of the matrix.
+	 * @param r The x/y/z row of the matrix.
+	 * @param sign Whether to add or subtract the x/y/z row.
+	 * @return The normalized plane.
+	 */
+	private static Vector4 plane(Vector4 w, Vector4 r, float sign) {
+		Vector4 p = new Vector4(
+			w.x + sign * r.x,
+			w.y + sign * r.y,
+			w.z + sign * r.z,
+			w.w + sign * r.w);
+		// Normalize so the plane equation gives true distances.
+		float len = new Vector3(p).length();
+		return new Vector4(p.x / len, p.y / len, p.z / len, p.w / len);
+	}
+
+	/**
+	 * Check whether a sphere is at least partially inside the frustum.
+	 * @param center The world-space center of the sphere.
+	 * @param radius The world-space radius of the sphere.
+	 * @return False if the sphere is entirely outside one of the planes.
+	 */
+	public boolean intersectsSphere(Vector3 center, float radius) {
+		return intersectsSphere(center.x, center.y, center.z, radius);
+	}
+
+	/**
+	 * Check whether a sphere is at least partially inside the frustum.
+	 * @param x The world-space x coordinate of the center of the sphere.
+	 * @param y The world-space y coordinate of the center of the sphere.
+	 * @param z The world-space z coordinate of the center of the sphere.
+	 * @param radius The world-space radius of the sphere.
+	 * @return False if the sphere is entirely outside one of the planes.
+	 */
+	public boolean intersectsSphere(float x, float y, float z, float radius) {
+		for (int i = 0; i < m_planes.length; ++i) {
+			Vector4 p = m_planes[i];
+			// Signed distance from the plane to the sphere's center.
+			float dist = p.x * x + p.y * y + p.z * z + p.w;
+			if (dist < -radius) return false;
+		}
+		return true;
+	}
+}
@@ -0,0 +1,23 @@
+/*
+ * Luke Diamond
+ * 01/22/2018
+ * Grade 11 Final Project
+ * Mr. Patterson
+ */
+
+package rasterizer;
+
+/**
+ * Fragment stage of a material. Computes the color of the fragments of a
+ * triangle that passed the depth test. Fragments are shaded a span at a
+ * time so the per-fragment loop stays inside a single shader class.
+ */
+public interface IFragmentShader {
+	/**
+	 * Shade a span of fragments, writing the packed RGB color of each to
+	 * frags.color.
+	 * @param u The uniforms of the draw.
+	 * @param frags The fragments and their interpolated varyings.
+	 */
+	public void shade(Uniforms u, Fragments frags);
+}
@@ -0,0 +1,21 @@
+/*
+ * Luke Diamond
+ * 01/22/2018
+ * Grade 11 Final Project
+ * Mr. Patterson
+ */
+
+package rasterizer;
+
+/**
+ * A task split into independent parts, run in parallel by the render
+ * threads (see Rasterizer.runParallel). Parts may run in any order and on
+ * any thread, so each must only write its own results.
+ */
+public interface IParallelTask {
+	/**
+	 * Run one part of the task.
+	 * @param part The index of the part.
+	 */
+	public void run(int part);
+}
@@ -0,0 +1,44 @@
+/*
+ * Luke Diamond
+ * 01/22/2018
+ * Grade 11 Final Project
+ * Mr. Patterson
+ */
+
+package rasterizer;
+
+import java.nio.FloatBuffer;
+
+/**
+ * Vertex stage of a material. Transforms vertices to clip space and
+ * computes the varyings that are interpolated across each triangle for the
+ * fragment stage. Vertices are shaded in batches so the per-vertex loop
+ * stays inside a single shader class.
+ */
+public interface IVertexShader {
+	/**
+	 * Get the number of varyings (floats) output for each vertex.
+	 * @return The varying count.
+	 */
+	public int getVaryingCount();
+
+	/**
+	 * Shade a batch of vertices. Each vertex writes 4 + getVaryingCount()
+	 * floats to the output: its clip-space x/y/z/w position followed by
+	 * its varyings.
+	 * @param u The uniforms of the draw.
+	 * @param vertices The interleaved vertex data (see MeshResource).
+	 * @param indices The indices of the verts to shade.
+	 * @param count The number of verts to shade.
+	 * @param out The array to write the shaded verts to (one after
+	 * another, in the order of indices).
+	 * @param offset The position in out to write the first vert to.
+	 */
+	public void shade(
+		Uniforms u,
+		FloatBuffer vertices,
+		int[] indices,
+		int count,
+		float[] out,
+		int offset);
+}
@@ -0,0 +1,239 @@
+/*
+ * Luke Diamond
+ * 01/22/2018
+ * Grade 11 Final Project
+ * Mr. Patterson
+ */
+
+package rasterizer;
+
+/**
+ * Many copies (instances) of one mesh resource, each with its own
+ * transform and optionally its own tint. Transforms are packed into one
+ * float array, INSTANCE_STRIDE floats per instance: the top three rows of
+ * the instance's 4x4 transform, row after row (the bottom row is always
+ * 0, 0, 0, 1). Tints are packed RGB and replace the batch color, which
+ * untextured materials are drawn with.
+ *
+ * Every instance shares the resource's vertex data. Instances are culled
+ * and given a detail level each frame, and only visible instances are
+ * submitted, so the cost of a batch grows with its visible instances
+ * rather than its total triangles.
+ */
+public class InstanceBatch {
+	// Floats per instance in the transform array.
+	public static final int INSTANCE_STRIDE = 12;
+
+	// Mesh data (detail level chain) and texture.
+	private MeshResource m_resource;
+	private int m_textureID;
+	// Material to shade the instances with, and their color (packed RGB)
+	// when they have no tints.
+	private Material m_material = Material.LIT;
+	private int m_color = 0xFFFFFF;
+	// Packed transforms and tints (null if untinted) of the instances.
+	private float[] m_transforms = new float[0];
+	private int[] m_tints = null;
+	private int m_count = 0;
+	// Detail level of each instance.
+	private byte[] m_lods = new byte[0];
+	// Incremented whenever the instances, material or color change.
+	private int m_revision = 0;
+
+	/**
+	 * Constructs an empty batch of a mesh resource.
+	 * @param texID The handle of the texture to sample when rasterizing the
+	 * instances (see RasterPanel.addTexture).
+	 * @param res The MeshResource every instance draws.
+	 */
+	public InstanceBatch(int texID, MeshResource res) {
+		m_textureID = texID;
+		m_resource = res;
+	}
+
+	/**
+	 * Sets the instances. The arrays are kept rather than copied; call
+	 * invalidate after changing them in place.
+	 * @param transforms The packed transforms (INSTANCE_STRIDE floats per
+	 * instance).
+	 * @param tints The color of each instance (packed RGB), or null to
+	 * draw every instance with the batch color.
+	 * @param count The number of instances.
+	 */
+	public void setInstances(float[] transforms, int[] tints, int count) {
+		if (transforms.length < count * INSTANCE_STRIDE) {
+			throw new IllegalArgumentException(
+				"Not enough transforms for " + count + " instances");
+		}
+		if (tints != null && tints.length < count) {
+			throw new IllegalArgumentException(
+				"Not enough tints for " + count + " instances");
+		}
+		m_transforms = transforms;
+		m_tints = tints;
+		m_count = count;
+		if (m_lods.length < count) m_lods = new byte[count];
+		++m_revision;
+	}
+
+	/**
+	 * Marks the instances as changed, after their arrays were changed in
+	 * place.
+	 */
+	public void invalidate() {
+		++m_revision;
+	}
+
+	/**
+	 * Packs a transform into a transform array.
+	 * @param transforms The packed transforms.
+	 * @param instance The instance whose transform to set.
+	 * @param m The transform (its bottom row is ignored).
+	 */
+	public static void setTransform(
+		float[] transforms, int instance, Matrix4 m) {
+		int o = instance * INSTANCE_STRIDE;
+		Vector4[] rows = { m.a, m.b, m.c };
+		for (Vector4 r : rows) {
+			transforms[o++] = r.x;
+			transforms[o++] = r.y;
+			transforms[o++] = r.z;
+			transforms[o++] = r.w;
+		}
+	}
+
+	/**
+	 * Get the transform of an instance.
+	 * @param instance The instance.
+	 * @return The instance's transformation matrix.
+	 */
+	public Matrix4 getTransformMatrix(int instance) {
+		float[] t = m_transforms;
+		int o = instance * INSTANCE_STRIDE;
+		return new Matrix4(
+			new Vector4(t[o], t[o + 1], t[o + 2], t[o + 3]),
+			new Vector4(t[o + 4], t[o + 5], t[o + 6], t[o + 7]),
+			new Vector4(t[o + 8], t[o + 9], t[o + 10], t[o + 11]),
+			new Vector4(0.0f, 0.0f, 0.0f, 1.0f));
+	}
+
+	/**
+	 * Get the largest scale factor of an instance's transform, for scaling
+	 * bounds.
+	 * @param instance The instance.
+	 * @return The length of the longest transformed axis.
+	 */
+	public float getMaxScale(int instance) {
+		float[] t = m_transforms;
+		int o = instance * INSTANCE_STRIDE;
+		float max = 0.0f;
+		for (int axis = 0; axis < 3; ++axis) {
+			float x = t[o + axis];
+			float y = t[o + 4 + axis];
+			float z = t[o + 8 + axis];
+			max = Math.max(max, x * x + y * y + z * z);
+		}
+		return (float) Math.sqrt(max);
+	}
+
+	/**
+	 * Select the detail level to draw an instance at from the projected
+	 * size of its bounding sphere (see MeshResource.selectLod).
+	 * @param instance The instance.
+	 * @param screenRadius The projected bounding sphere radius in pixels.
+	 * @return The selected detail level.
+	 */
+	public int selectLod(int instance, float screenRadius) {
+		int lod = MeshResource.selectLod(
+			m_resource.getLodRadii(), m_lods[instance], screenRadius);
+		m_lods[instance] = (byte) lod;
+		return lod;
+	}
+
+	/**
+	 * Get the detail level an instance was last drawn at.
+	 * @param instance The instance.
+	 * @return The detail level index (0 is full detail).
+	 */
+	public final int getLod(int instance) {
+		return m_lods[instance];
+	}
+
+	/**
+	 * Get the packed transforms of the instances.
+	 * @return The transform array.
+	 */
+	public final float[] getTransforms() {
+		return m_transforms;
+	}
+
+	/**
+	 * Get the color of an instance.
+	 * @param instance The instance.
+	 * @return The instance's tint, or the batch color if it has none.
+	 */
+	public final int getColor(int instance) {
+		return m_tints != null ? m_tints[instance] : m_color;
+	}
+
+	/**
+	 * Get the number of instances.
+	 * @return The instance count.
+	 */
+	public final int getCount() {
+		return m_count;
+	}
+
+	/**
+	 * Get the mesh resource every instance draws.
+	 * @return The MeshResource of the batch (full detail).
+	 */
+	public final MeshResource getResource() {
+		return m_resource;
+	}
+
+	/**
+	 * Get the texture of the instances.
+	 * @return The texture handle.
+	 */
+	public final int getTextureID() {
+		return m_textureID;
+	}
+
+	/**
+	 * Sets the material to shade the instances with.
+	 * @param material The material.
+	 */
+	public void setMaterial(Material material) {
+		if (material == m_material) return;
+		m_material = material;
+		++m_revision;
+	}
+
+	/**
+	 * Get the material of the instances.
+	 * @return The material.
+	 */
+	public final Material getMaterial() {
+		return m_material;
+	}
+
+	/**
+	 * Sets the color of untinted instances, used by untextured materials.
+	 * @param color The color (packed RGB).
+	 */
+	public void setColor(int color) {
+		if (color == m_color) return;
+		m_color = color;
+		++m_revision;
+	}
+
+	/**
+	 * Get the revision of the batch, which changes whenever its instances,
+	 * material or color do.
+	 * @return The revision counter.
+	 */
+	public final int getRevision() {
+		return m_revision;
+	}
+}
@@ -0,0 +1,58 @@
+/*
+ * Luke Diamond
+ * 01/22/2018
+ * Grade 11 Final Project
+ * Mr. Patterson
+ */
+
+package rasterizer;
+
+/**
+ * A point light. Its brightness falls off with the inverse square of the
+ * distance, and it is ignored entirely beyond its range, which lets the
+ * rasterizer only give each screen tile the lights that can reach it.
+ */
+public class Light {
+	// Brightness (relative to full) below which a light is out of range.
+	public static final float CUTOFF = 1.0f / 256.0f;
+
+	// World-space position.
+	public Vector3 position;
+	// Color (packed RGB).
+	public int color;
+	// Brightness at a distance of zero.
+	public float intensity;
+	// Distance beyond which the light has no effect.
+	public float range;
+	// Shadow map, or null if the light casts no shadows.
+	public ShadowMap shadow;
+
+	/**
+	 * Constructs a light, with its range where it fades below CUTOFF.
+	 * @param position_ The world-space position of the light.
+	 * @param color_ The color of the light (packed RGB).
+	 * @param intensity_ The brightness of the light.
+	 */
+	public Light(Vector3 position_, int color_, float intensity_) {
+		this(
+			position_,
+			color_,
+			intensity_,
+			(float) Math.sqrt(Math.max(intensity_ / CUTOFF - 1.0f, 0.0f)));
+	}
+
+	/**
+	 * Constructs a light.
+	 * @param position_ The world-space position of the light.
+	 * @param color_ The color of the light (packed RGB).
+	 * @param intensity_ The brightness of the light.
+	 * @param range_ The distance beyond which the light has no effect.
+	 */
+	public Light(Vector3 position_, int color_, float intensity_, float range_) {
+		// Initialize all members.
+		position = position_;
+		color = color_;
+		intensity = intensity_;
+		range = range_;
+	}
+}
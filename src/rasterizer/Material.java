@@ -0,0 +1,83 @@
+/*
+ * Luke Diamond
+ * 01/22/2018
+ * Grade 11 Final Project
+ * Mr. Patterson
+ */
+
+package rasterizer;
+
+/**
+ * A vertex/fragment shader pair. Draws are grouped by material before
+ * rasterization, so each shader runs over long runs of triangles.
+ */
+public class Material {
+    // Textured, lit by the scene's point lights (per pixel, flat normals).
+    public static final Material LIT =
+        new Material(new Shaders.LitVertex(), new Shaders.LitFragment());
+    // Textured, lit by the scene's point lights per vertex (smooth normals).
+    public static final Material GOURAUD =
+        new Material(
+            new Shaders.GouraudVertex(), new Shaders.GouraudFragment());
+    // Textured without lighting.
+    public static final Material TEXTURED =
+        new Material(
+            new Shaders.TexturedVertex(), new Shaders.TexturedFragment());
+    // Interpolated per-vertex color (from the vertex normals).
+    public static final Material VERTEX_COLOR =
+        new Material(new Shaders.ColorVertex(), new Shaders.ColorFragment());
+    // Solid mesh color.
+    public static final Material UNLIT =
+        new Material(new Shaders.UnlitVertex(), new Shaders.UnlitFragment());
+
+    // ID of the next material created.
+    private static int s_nextID = 0;
+
+    // Shaders.
+    private final IVertexShader m_vertexShader;
+    private final IFragmentShader m_fragmentShader;
+    // Unique ID, for ordering draws by material.
+    private final int m_id;
+
+    /**
+     * Construct a material from a shader pair.
+     * @param vertexShader The vertex shader.
+     * @param fragmentShader The fragment shader.
+     */
+    public Material(
+        IVertexShader vertexShader, IFragmentShader fragmentShader) {
+        if (vertexShader.getVaryingCount() > Fragments.MAX_VARYINGS) {
+            throw new IllegalArgumentException(
+                "Too many varyings: " + vertexShader.getVaryingCount());
+        }
+        m_vertexShader = vertexShader;
+        m_fragmentShader = fragmentShader;
+        synchronized (Material.class) {
+            m_id = s_nextID++;
+        }
+    }
+
+    /**
+     * Get the vertex shader.
+     * @return The vertex shader.
+     */
+    public IVertexShader getVertexShader() {
+        return m_vertexShader;
+    }
+
+    /**
+     * Get the fragment shader.
+     * @return The fragment shader.
+     */
+    public IFragmentShader getFragmentShader() {
+        return m_fragmentShader;
+    }
+
+    /**
+     * Get the unique ID of the material.
+     * @return The material ID.
+     */
+    public int getID() {
+        return m_id;
+    }
+}
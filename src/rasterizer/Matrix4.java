@@ -46,6 +46,30 @@ public class Matrix4 {
 			new Vector4(a.w, b.w, c.w, d.w));
 	}
 
+	/**
+	 * Computes the matrix that transforms normals: the inverse transpose of
+	 * the upper 3x3, which keeps normals perpendicular to their surface
+	 * under non-uniform scaling.
+	 * @return The normal matrix (without translation).
+	 */
+	public Matrix4 normalMatrix() {
+		Vector3 x = new Vector3(a);
+		Vector3 y = new Vector3(b);
+		Vector3 z = new Vector3(c);
+		// Each row of the inverse transpose is the cross product of the
+		// other two rows, over the determinant.
+		Vector3 yz = y.cross(z);
+		Vector3 zx = z.cross(x);
+		Vector3 xy = x.cross(y);
+		float det = x.dot(yz);
+		float inv = det != 0.0f ? 1.0f / det : 1.0f;
+		return new Matrix4(
+			new Vector4(yz.mult(inv), 0.0f),
+			new Vector4(zx.mult(inv), 0.0f),
+			new Vector4(xy.mult(inv), 0.0f),
+			new Vector4(0.0f, 0.0f, 0.0f, 1.0f));
+	}
+
 	/**
 	 * Computes a matrix-vector product.
 	 * @param other The vector to multiply by
@@ -122,6 +146,35 @@ public class Matrix4 {
 			new Vector4(0.0f, 0.0f, 1.0f, 0.0f));
 	}
 
+	/**
+	 * Creates a perspective projection matrix with reversed depth: the near
+	 * plane maps to a depth of 1 and the far plane to 0, so floating-point
+	 * depth keeps its precision far from the camera. Clip z stays between 0
+	 * and w (see Rasterizer.setReversedDepth).
+	 * @param aspect The aspect ratio of the render target.
+	 * @param fov The vertical field-of-view of the camera.
+	 * @param near The near viewing plane for the frustum.
+	 * @param far The far viewing plane for the frustum.
+	 * @return The computed perspective projection matrix.
+	 */
+	public static Matrix4 perspectiveReversed(
+		float aspect,
+		float fov,
+		float near,
+		float far) {
+		// Compute the tangent of half of the vertical FOV.
+		float tanHFOV = (float) Math.tan(Math.toRadians(fov) / 2.0f);
+		// Compute the near/far terms (z = near at the near plane, 0 at the
+		// far plane).
+		float nf0 = near / (near - far);
+		float nf1 = (far * near) / (far - near);
+		return new Matrix4(
+			new Vector4(1.0f / (aspect * tanHFOV), 0.0f, 0.0f, 0.0f),
+			new Vector4(0.0f, 1.0f / tanHFOV, 0.0f, 0.0f),
+			new Vector4(0.0f, 0.0f, nf0, nf1),
+			new Vector4(0.0f, 0.0f, 1.0f, 0.0f));
+	}
+
 	/**
 	 * Create a translation matrix.
 	 * @param pos The position to use for the translation.
@@ -201,6 +254,19 @@ public class Matrix4 {
 			new Vector4(0.0f, 0.0f, 0.0f, 1.0f));
 	}
 
+	/**
+	 * Create a combined X/Y/Z rotation matrix.
+	 * @param r The pitch/yaw/roll angles of the rotation (in degrees).
+	 * @return The generated rotation matrix.
+	 */
+	public static Matrix4 rotation(Vector3 r) {
+		// Combine the rotations (X applied first, then Y, then Z).
+		return
+			Matrix4.rotationZ(r.z)
+			.mult(Matrix4.rotationY(r.y))
+			.mult(Matrix4.rotationX(r.x));
+	}
+
 	/**
 	 * Compute a linear combination of position/rotation/scaling matrices.
 	 * @param p The position for the translation matrix.
@@ -212,10 +278,7 @@ public class Matrix4 {
 		// Compute the translation matrix.
 		Matrix4 translationMatrix = Matrix4.translation(p);
 		// Compute the rotation matrix (from X/Y/Z rotation matrices).
-		Matrix4 rotationMatrix =
-			Matrix4.rotationZ(r.z)
-			.mult(Matrix4.rotationY(r.y))
-			.mult(Matrix4.rotationX(r.x));
+		Matrix4 rotationMatrix = Matrix4.rotation(r);
 		// Compute the scale matrix.
 		Matrix4 scaleMatrix = Matrix4.scale(s);
 		// Return the combination of all 3 matrices.
@@ -13,48 +13,109 @@ import rasterizer.Vector2;
  * Handles the state of a mesh in 3-dimensional space.
  */
 public class Mesh {
-	// Mesh buffers.
-	private Vector3[] m_verts;
-	private Vector2[] m_coords;
-	private int m_triCount;
+	// Mesh data (detail level chain) and currently selected detail level.
+	private MeshResource m_resource;
+	private int m_lod;
 	private int m_textureID;
+	// Material to shade the mesh with, and its base color (packed RGB).
+	private volatile Material m_material = Material.LIT;
+	private volatile int m_color = 0xFFFFFF;
+	// Incremented whenever the transform, material or color changes, after
+	// the new value is written (see publish).
+	private volatile int m_revision = 0;
+
+	/**
+	 * Transform of a mesh. Transforms never change; setting a mesh's
+	 * position, rotation or scale publishes a new one, so a mesh moved by
+	 * one thread while another renders it is never seen half moved.
+	 */
+	public static final class Transform {
+		// Position, rotation (pitch, yaw and roll in degrees) and scale.
+		private final Vector3 m_position;
+		private final Vector3 m_rotation;
+		private final Vector3 m_scale;
+
+		/**
+		 * Constructs a transform. The vectors are kept rather than copied.
+		 * @param position The position.
+		 * @param rotation The rotation.
+		 * @param scale The scale.
+		 */
+		Transform(Vector3 position, Vector3 rotation, Vector3 scale) {
+			m_position = position;
+			m_rotation = rotation;
+			m_scale = scale;
+		}
+
+		/**
+		 * Get the transformation matrix.
+		 * @return The combined pos/rot/scale matrix.
+		 */
+		public Matrix4 getMatrix() {
+			return Matrix4.transform(m_position, m_rotation, m_scale);
+		}
+
+		/**
+		 * Get the rotation matrix (without position/scale).
+		 * @return The rotation matrix.
+		 */
+		public Matrix4 getRotationMatrix() {
+			return Matrix4.rotation(m_rotation);
+		}
+
+		/**
+		 * Get the largest absolute scale factor, for scaling bounds.
+		 * @return The largest absolute x/y/z scale.
+		 */
+		public float getMaxScale() {
+			return Math.max(
+				Math.abs(m_scale.x),
+				Math.max(Math.abs(m_scale.y), Math.abs(m_scale.z)));
+		}
+
+		/**
+		 * Check if every axis is scaled by the same amount, in which case
+		 * normals are only rotated by the transform. A mirroring scale
+		 * does not count, as it also reflects the normals.
+		 * @return True if the x/y/z scales are equal, including sign.
+		 */
+		public boolean hasUniformScale() {
+			return m_scale.x == m_scale.y && m_scale.y == m_scale.z;
+		}
+	}
 
 	// Transform state.
-	Vector3 m_position;
-	Vector3 m_rotation;
-	Vector3 m_scale;
+	private volatile Transform m_transform = new Transform(
+		new Vector3(0.0f, 0.0f, 0.0f),
+		new Vector3(0.0f, 0.0f, 0.0f),
+		new Vector3(1.0f, 1.0f, 1.0f));
 
 	/**
 	 * Constructs a mesh from vertex/texture coordinate arrays and a texture ID.
-	 * @param texID The default texture to sample when rasterizing the mesh.
+	 * @param texID The handle of the texture to sample when rasterizing the
+	 * mesh (see RasterPanel.addTexture).
 	 * @param verts The vertex array to rasterize.
 	 * @param coords The texture coordinate array for texture mapping. 
 	 */
 	public Mesh(int texID, Vector3[] verts, Vector2[] coords) {
 		// Initialize all members.
-		m_position = new Vector3(0.0f, 0.0f, 0.0f);
-		m_rotation = new Vector3(0.0f, 0.0f, 0.0f);
-		m_scale = new Vector3(1.0f, 1.0f, 1.0f);
-		m_triCount = verts.length / 3;
 		m_textureID = texID;
-		m_verts = verts;
-		m_coords = coords;
+		// Build meshlets and detail levels from the arrays.
+		m_resource = new MeshResource(verts, coords);
+		m_lod = 0;
 	}
 
 	/**
 	 * Constructs a mesh from a texture ID and mesh resource.
-	 * @param texID The default texture to sample when rasterizing the mesh.
+	 * @param texID The handle of the texture to sample when rasterizing the
+	 * mesh (see RasterPanel.addTexture).
 	 * @param res The MeshResource to derive the mesh data from.
 	 */
 	public Mesh(int texID, MeshResource res) {
 		// Initialize all members.
-		m_position = new Vector3(0.0f, 0.0f, 0.0f);
-		m_rotation = new Vector3(0.0f, 0.0f, 0.0f);
-		m_scale = new Vector3(1.0f, 1.0f, 1.0f);
 		m_textureID = texID;
-		m_verts = res.getVerts();
-		m_coords = res.getCoords();
-		m_triCount = m_verts.length / 3;
+		m_resource = res;
+		m_lod = 0;
 	}
 
 	/**
@@ -64,10 +125,11 @@ public class Mesh {
 	 * @param z The z-scale (depth) to assign.
 	 */
 	public void setScale(float x, float y, float z) {
-		// Assign new scale.
-		m_scale.x = x;
-		m_scale.y = y;
-		m_scale.z = z;
+		Transform t = m_transform;
+		if (x == t.m_scale.x && y == t.m_scale.y && z == t.m_scale.z) return;
+		// Publish the new scale.
+		publish(
+			new Transform(t.m_position, t.m_rotation, new Vector3(x, y, z)));
 	}
 
 	/**
@@ -77,10 +139,17 @@ public class Mesh {
 	 * @param roll The roll (z-axis rotation) to assign.
 	 */
 	public void setRotation(float pitch, float yaw, float roll) {
-		// Assign new rotation
-		m_rotation.x = pitch;
-		m_rotation.y = yaw;
-		m_rotation.z = roll;
+		Transform t = m_transform;
+		if (
+			pitch == t.m_rotation.x
+			&& yaw == t.m_rotation.y
+			&& roll == t.m_rotation.z) {
+			return;
+		}
+		// Publish the new rotation.
+		publish(
+			new Transform(
+				t.m_position, new Vector3(pitch, yaw, roll), t.m_scale));
 	}
 
 	/**
@@ -90,10 +159,50 @@ public class Mesh {
 	 * @param z The z coordinate of the center of the mesh.
 	 */
 	public void setPosition(float x, float y, float z) {
-		// Assign new position.
-		m_position.x = x;
-		m_position.y = y;
-		m_position.z = z;
+		Transform t = m_transform;
+		if (
+			x == t.m_position.x
+			&& y == t.m_position.y
+			&& z == t.m_position.z) {
+			return;
+		}
+		// Publish the new position.
+		publish(new Transform(new Vector3(x, y, z), t.m_rotation, t.m_scale));
+	}
+
+	/**
+	 * Sets the position, rotation and scale of the mesh at once, so no frame
+	 * sees only some of them changed.
+	 * @param position The position of the center of the mesh.
+	 * @param rotation The rotation (pitch, yaw and roll in degrees).
+	 * @param scale The x/y/z scale.
+	 */
+	public void setTransform(
+		Vector3 position, Vector3 rotation, Vector3 scale) {
+		publish(
+			new Transform(
+				new Vector3(position.x, position.y, position.z),
+				new Vector3(rotation.x, rotation.y, rotation.z),
+				new Vector3(scale.x, scale.y, scale.z)));
+	}
+
+	/**
+	 * Replace the transform, then count the change. Renderers read the
+	 * revision before the transform, so they never miss a change. A mesh
+	 * should only be moved by one thread at a time.
+	 * @param t The new transform.
+	 */
+	private void publish(Transform t) {
+		m_transform = t;
+		++m_revision;
+	}
+
+	/**
+	 * Get the current transform of the mesh.
+	 * @return The transform (which never changes).
+	 */
+	public final Transform getTransform() {
+		return m_transform;
 	}
 
 	/**
@@ -101,7 +210,7 @@ public class Mesh {
 	 * @return The mesh verts.
 	 */
 	public final Vector3[] getVerts() {
-		return m_verts;
+		return m_resource.getLod(m_lod).getVerts();
 	}
 
 	/**
@@ -109,7 +218,40 @@ public class Mesh {
 	 * @return The mesh transformation matrix (combined pos/rot/scale).
 	 */
 	public Matrix4 getTransformMatrix() {
-		return Matrix4.transform(m_position, m_rotation, m_scale);
+		return m_transform.getMatrix();
+	}
+
+	/**
+	 * Get the rotation matrix of the mesh (without position/scale).
+	 * @return The mesh rotation matrix.
+	 */
+	public Matrix4 getRotationMatrix() {
+		return m_transform.getRotationMatrix();
+	}
+
+	/**
+	 * Get the largest absolute scale factor of the mesh, for scaling bounds.
+	 * @return The largest absolute x/y/z scale.
+	 */
+	public float getMaxScale() {
+		return m_transform.getMaxScale();
+	}
+
+	/**
+	 * Check if the mesh is scaled by the same amount on every axis, in which
+	 * case normals are only rotated by the transform.
+	 * @return True if the x/y/z scales are equal, including sign.
+	 */
+	public boolean hasUniformScale() {
+		return m_transform.hasUniformScale();
+	}
+
+	/**
+	 * Get the meshlets of the mesh.
+	 * @return The mesh's meshlets, in triangle order.
+	 */
+	public final Meshlet[] getMeshlets() {
+		return m_resource.getLod(m_lod).getMeshlets();
 	}
 
 	/**
@@ -117,7 +259,7 @@ public class Mesh {
 	 * @return The mesh texture coordinates.
 	 */
 	public final Vector2[] getCoords() {
-		return m_coords;
+		return m_resource.getLod(m_lod).getCoords();
 	}
 
 	/**
@@ -125,7 +267,90 @@ public class Mesh {
 	 * @return The polycount of the mesh.
 	 */
 	public final int getTriCount() {
-		return m_triCount;
+		return m_resource.getLod(m_lod).getTriCount();
+	}
+
+	/**
+	 * Get the mesh resource (full detail level) the mesh draws.
+	 * @return The mesh resource.
+	 */
+	public final MeshResource getResource() {
+		return m_resource;
+	}
+
+	/**
+	 * Get the currently selected detail level.
+	 * @return The detail level index (0 is full detail).
+	 */
+	public final int getLod() {
+		return m_lod;
+	}
+
+	/**
+	 * Select the detail level to draw from the projected size of the
+	 * mesh's bounding sphere. Levels only change once the size passes a
+	 * level's threshold by the hysteresis margin.
+	 * @param screenRadius The projected bounding sphere radius in pixels.
+	 * @return The selected detail level.
+	 */
+	public int selectLod(float screenRadius) {
+		m_lod = MeshResource.selectLod(
+			m_resource.getLodRadii(), m_lod, screenRadius);
+		return m_lod;
+	}
+
+	/**
+	 * Get the detail level resource currently drawn.
+	 * @return The mesh resource of the selected detail level.
+	 */
+	public final MeshResource getLodResource() {
+		return m_resource.getLod(m_lod);
+	}
+
+	/**
+	 * Set the material to shade the mesh with.
+	 * @param material The material to assign.
+	 */
+	public void setMaterial(Material material) {
+		if (material == m_material) return;
+		m_material = material;
+		++m_revision;
+	}
+
+	/**
+	 * Get the material the mesh is shaded with.
+	 * @return The mesh material.
+	 */
+	public final Material getMaterial() {
+		return m_material;
+	}
+
+	/**
+	 * Set the base color of the mesh, used by untextured materials.
+	 * @param color The color to assign (packed RGB).
+	 */
+	public void setColor(int color) {
+		if (color == m_color) return;
+		m_color = color;
+		++m_revision;
+	}
+
+	/**
+	 * Get the revision of the mesh, which changes whenever its transform,
+	 * material or color does (for finding meshes that changed between
+	 * frames).
+	 * @return The revision number.
+	 */
+	public final int getRevision() {
+		return m_revision;
+	}
+
+	/**
+	 * Get the base color of the mesh.
+	 * @return The mesh color (packed RGB).
+	 */
+	public final int getColor() {
+		return m_color;
 	}
 
 	/**
@@ -0,0 +1,300 @@
+/*
+ * Luke Diamond
+ * 01/22/2018
+ * Grade 11 Final Project
+ * Mr. Patterson
+ */
+
+package rasterizer;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.nio.IntBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+
+/**
+ * Binary mesh cache. After a model is parsed, its detail levels (vertex
+ * data, indices, meshlets and bounds) are written next to it in a compact
+ * binary file. Later loads map that file and use the vertex and index data
+ * straight from the mapped memory, skipping the text parse entirely.
+ *
+ * The cache header records the size and modification time of the source
+ * file, and a cache that does not match them is ignored and rewritten.
+ *
+ * File layout (little-endian):
+ *   header: magic, version, vertex stride, level count, source size,
+ *           source modification time
+ *   per level: vertex count, index count, meshlet count, padding,
+ *              bounds (x/y/z/radius), vertex floats, index ints,
+ *              meshlets (offset, count, sphere x/y/z/radius,
+ *              cone x/y/z/cutoff)
+ */
+public class MeshCache {
+    // Cache file identification.
+    private static final int MAGIC = 0x4348534D;
+    private static final int VERSION = 3;
+    // File extension appended to the source path.
+    public static final String EXTENSION = ".mcache";
+
+    // Sizes (in bytes) of the fixed-size records.
+    private static final int HEADER_SIZE = 32;
+    private static final int LEVEL_HEADER_SIZE = 32;
+    private static final int MESHLET_SIZE = 40;
+
+    // Whether the cache is read and written.
+    private static volatile boolean s_enabled = true;
+
+    /**
+     * Enable or disable the mesh cache.
+     * @param enabled False to always parse models from text.
+     */
+    public static void setEnabled(boolean enabled) {
+        s_enabled = enabled;
+    }
+
+    /**
+     * Get the cache file path for a model.
+     * @param path The model file path.
+     * @return The cache file path.
+     */
+    public static String cachePath(String path) {
+        return path + EXTENSION;
+    }
+
+    /**
+     * Read the cached detail levels of a model, if the cache is up to date.
+     * @param path The model file path.
+     * @return The detail level chain, or null on a cache miss.
+     */
+    public static MeshResource[] read(String path) {
+        if (!s_enabled) return null;
+        File source = new File(path);
+        File cache = new File(cachePath(path));
+        if (!source.isFile() || !cache.isFile()) return null;
+
+        try (RandomAccessFile file = new RandomAccessFile(cache, "r");
+            FileChannel channel = file.getChannel()) {
+            // Check the header against the source file.
+            ByteBuffer header = readAt(channel, 0, HEADER_SIZE);
+            if (header.getInt() != MAGIC
+                || header.getInt() != VERSION
+                || header.getInt() != MeshResource.VERTEX_STRIDE) {
+                return null;
+            }
+            int levelCount = header.getInt();
+            if (header.getLong() != source.length()
+                || header.getLong() != source.lastModified()) {
+                return null;
+            }
+
+            // Map each level's vertex/index data and read its meshlets.
+            MeshResource[] levels = new MeshResource[levelCount];
+            long pos = HEADER_SIZE;
+            for (int l = 0; l < levelCount; ++l) {
+                ByteBuffer lh = readAt(channel, pos, LEVEL_HEADER_SIZE);
+                int vertexCount = lh.getInt();
+                int indexCount = lh.getInt();
+                int meshletCount = lh.getInt();
+                lh.getInt();
+                Vector3 center =
+                    new Vector3(lh.getFloat(), lh.getFloat(), lh.getFloat());
+                float radius = lh.getFloat();
+                pos += LEVEL_HEADER_SIZE;
+
+                long vertexBytes =
+                    (long) vertexCount * MeshResource.VERTEX_STRIDE * 4;
+                FloatBuffer vertices = map(channel, pos, vertexBytes)
+                    .asFloatBuffer();
+                pos += vertexBytes;
+
+                long indexBytes = (long) indexCount * 4;
+                IntBuffer indices = map(channel, pos, indexBytes)
+                    .asIntBuffer();
+                pos += indexBytes;
+
+                long meshletBytes = (long) meshletCount * MESHLET_SIZE;
+                ByteBuffer mb = readAt(channel, pos, (int) meshletBytes);
+                Meshlet[] meshlets = new Meshlet[meshletCount];
+                for (int m = 0; m < meshletCount; ++m) {
+                    int offset = mb.getInt();
+                    int count = mb.getInt();
+                    Vector3 mc = new Vector3(
+                        mb.getFloat(), mb.getFloat(), mb.getFloat());
+                    float mr = mb.getFloat();
+                    Vector3 axis = new Vector3(
+                        mb.getFloat(), mb.getFloat(), mb.getFloat());
+                    meshlets[m] =
+                        new Meshlet(offset, count, mc, mr, axis, mb.getFloat());
+                }
+                pos += meshletBytes;
+
+                levels[l] = new MeshResource(
+                    vertices, indices, meshlets, center, radius);
+            }
+            return levels;
+        } catch (IOException e) {
+            // Treat unreadable caches as a miss.
+            e.printStackTrace();
+            return null;
+        }
+    }
+
+    /**
+     * Write the detail levels of a model to its cache file. Failures are
+     * reported but otherwise ignored, since the cache is only a speedup.
+     * @param path The model file path.
+     * @param levels The detail level chain to write.
+     */
+    public static void write(String path, MeshResource[] levels) {
+        if (!s_enabled) return;
+        File source = new File(path);
+        File cache = new File(cachePath(path));
+        File temp = new File(cachePath(path) + ".tmp");
+
+        try {
+            try (RandomAccessFile file = new RandomAccessFile(temp, "rw");
+                FileChannel channel = file.getChannel()) {
+                file.setLength(0);
+                Output out = new Output(channel);
+
+                // Header.
+                out.putInt(MAGIC);
+                out.putInt(VERSION);
+                out.putInt(MeshResource.VERTEX_STRIDE);
+                out.putInt(levels.length);
+                out.putLong(source.length());
+                out.putLong(source.lastModified());
+
+                for (MeshResource level : levels) {
+                    FloatBuffer vertices = level.getVertexData();
+                    IntBuffer indices = level.getIndices();
+                    Meshlet[] meshlets = level.getMeshlets();
+                    Vector3 center = level.getBoundsCenter();
+
+                    // Level header.
+                    out.putInt(vertices.limit() / MeshResource.VERTEX_STRIDE);
+                    out.putInt(indices.limit());
+                    out.putInt(meshlets.length);
+                    out.putInt(0);
+                    out.putFloat(center.x);
+                    out.putFloat(center.y);
+                    out.putFloat(center.z);
+                    out.putFloat(level.getBoundsRadius());
+
+                    // Vertex, index and meshlet data.
+                    for (int i = 0; i < vertices.limit(); ++i) {
+                        out.putFloat(vertices.get(i));
+                    }
+                    for (int i = 0; i < indices.limit(); ++i) {
+                        out.putInt(indices.get(i));
+                    }
+                    for (Meshlet m : meshlets) {
+                        out.putInt(m.offset);
+                        out.putInt(m.count);
+                        out.putFloat(m.center.x);
+                        out.putFloat(m.center.y);
+                        out.putFloat(m.center.z);
+                        out.putFloat(m.radius);
+                        out.putFloat(m.coneAxis.x);
+                        out.putFloat(m.coneAxis.y);
+                        out.putFloat(m.coneAxis.z);
+                        out.putFloat(m.coneCutoff);
+                    }
+                }
+                out.flush();
+            }
+
+            // Replace the old cache in one step so readers never see a
+            // partly written file.
+            Files.move(
+                temp.toPath(),
+                cache.toPath(),
+                StandardCopyOption.REPLACE_EXISTING,
+                StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            // Print the stack trace if the cache could not be written.
+            e.printStackTrace();
+            temp.delete();
+        }
+    }
+
+    /**
+     * Read a small block of a file into a little-endian buffer.
+     * @param channel The file to read.
+     * @param pos The position to read from.
+     * @param size The number of bytes to read.
+     * @return The bytes read, ready for reading.
+     * @throws IOException If the file is too short or cannot be read.
+     */
+    private static ByteBuffer readAt(FileChannel channel, long pos, int size)
+        throws IOException {
+        ByteBuffer b = ByteBuffer.allocate(size).order(ByteOrder.LITTLE_ENDIAN);
+        while (b.hasRemaining()) {
+            if (channel.read(b, pos + b.position()) < 0) {
+                throw new IOException("Mesh cache is truncated");
+            }
+        }
+        b.flip();
+        return b;
+    }
+
+    /**
+     * Map a region of a file as a little-endian buffer.
+     * @param channel The file to map.
+     * @param pos The start of the region.
+     * @param size The size of the region in bytes.
+     * @return The mapped region.
+     * @throws IOException If the region is outside the file.
+     */
+    private static ByteBuffer map(FileChannel channel, long pos, long size)
+        throws IOException {
+        if (pos + size > channel.size()) {
+            throw new IOException("Mesh cache is truncated");
+        }
+        return channel.map(FileChannel.MapMode.READ_ONLY, pos, size)
+            .order(ByteOrder.LITTLE_ENDIAN);
+    }
+
+    /**
+     * Buffered little-endian output to a file channel.
+     */
+    private static class Output {
+        private final FileChannel m_channel;
+        private final ByteBuffer m_buffer;
+
+        Output(FileChannel channel) {
+            m_channel = channel;
+            m_buffer =
+                ByteBuffer.allocate(1 << 20).order(ByteOrder.LITTLE_ENDIAN);
+        }
+
+        void putInt(int v) throws IOException {
+            if (m_buffer.remaining() < 4) flush();
+            m_buffer.putInt(v);
+        }
+
+        void putLong(long v) throws IOException {
+            if (m_buffer.remaining() < 8) flush();
+            m_buffer.putLong(v);
+        }
+
+        void putFloat(float v) throws IOException {
+            if (m_buffer.remaining() < 4) flush();
+            m_buffer.putFloat(v);
+        }
+
+        void flush() throws IOException {
+            m_buffer.flip();
+            while (m_buffer.hasRemaining()) {
+                m_channel.write(m_buffer);
+            }
+            m_buffer.clear();
+        }
+    }
+}
@@ -7,147 +7,587 @@
 
 package rasterizer;
 
-import java.io.File;
-import java.io.FileNotFoundException;
 import java.io.IOException;
-import java.io.BufferedReader;
-import java.io.FileReader;
+import java.nio.FloatBuffer;
+import java.nio.IntBuffer;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
 
 /**
  * Mesh resource class, for loading a 3D model from the disk.
+ *
+ * Geometry is stored as an indexed triangle list. Each vertex is
+ * VERTEX_STRIDE interleaved floats: x/y/z position, u/v texture coordinate
+ * and x/y/z normal. Verts the model gives no normal are given a smooth
+ * normal averaged from the triangles around their position.
  */
 public class MeshResource {
-    // Vert/coord data.
+    // Floats per vertex in the interleaved vertex data.
+    public static final int VERTEX_STRIDE = 8;
+    // Offsets of each attribute within a vertex.
+    public static final int POSITION_OFFSET = 0;
+    public static final int COORD_OFFSET = 3;
+    public static final int NORMAL_OFFSET = 5;
+
+    // Interleaved vertex data and triangle indices (in meshlet order). These
+    // wrap heap arrays for parsed meshes, or point straight into the mapped
+    // cache file for cached meshes, so they are only read with absolute gets.
+    private FloatBuffer m_vertices;
+    private IntBuffer m_indices;
+    // Per-corner vert/coord arrays, expanded from the indexed data on first
+    // use.
     private Vector3[] m_verts;
     private Vector2[] m_coords;
+    // Meshlets (contiguous triangle ranges) for cluster culling.
+    private Meshlet[] m_meshlets;
+    // Object-space bounding sphere.
+    private Vector3 m_boundsCenter;
+    private float m_boundsRadius;
+    // Level-of-detail chain (index 0 is this resource), and the screen
+    // radius below which each level has more triangles than it can
+    // usefully show (computed on first use).
+    private MeshResource[] m_lods;
+    private float[] m_lodRadii;
+
+    // Maximum number of detail levels, including the full-detail mesh.
+    public static final int MAX_LODS = 5;
+    // Fraction of triangles kept from one detail level to the next.
+    public static final float LOD_RATIO = 0.5f;
+    // Meshes are not simplified below this many triangles.
+    public static final int MIN_LOD_TRIANGLES = 64;
+    // Screen area (in pixels) each front-facing triangle should cover before
+    // a more detailed level is used.
+    public static final float PIXELS_PER_TRIANGLE = 4.0f;
+    // Fraction the screen size must pass a level's threshold by before the
+    // level changes, to avoid flickering between levels.
+    public static final float LOD_HYSTERESIS = 0.15f;
+
+    /**
+     * Key for welding identical position/texture coordinate pairs.
+     */
+    private static class VertexKey {
+        private final int x;
+        private final int y;
+        private final int z;
+        private final int u;
+        private final int v;
+
+        VertexKey(Vector3 p, Vector2 t) {
+            x = Float.floatToIntBits(p.x);
+            y = Float.floatToIntBits(p.y);
+            z = Float.floatToIntBits(p.z);
+            u = Float.floatToIntBits(t.x);
+            v = Float.floatToIntBits(t.y);
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof VertexKey)) return false;
+            VertexKey k = (VertexKey) o;
+            return x == k.x && y == k.y && z == k.z && u == k.u && v == k.v;
+        }
+
+        @Override
+        public int hashCode() {
+            return (((x * 31 + y) * 31 + z) * 31 + u) * 31 + v;
+        }
+    }
 
     /**
      * Construct a mesh resource given a mesh file path.
      * @param path The file path of the model to load.
      */
-	public MeshResource(String path) {
-        // Open the file at the given path.
-		File file = new File(path);
-
-        // Create the vert/texcoord/index dynamic arrays for mesh data loading.
-        ArrayList<Vector3> verts = new ArrayList<Vector3>();
-        ArrayList<Vector2> coords = new ArrayList<Vector2>();
-        ArrayList<Integer> vindices = new ArrayList<Integer>();
-        ArrayList<Integer> tindices = new ArrayList<Integer>();
+    public MeshResource(String path) {
+        // Use the binary cache of the file if it is up to date.
+        MeshResource[] cached = MeshCache.read(path);
+        if (cached != null) {
+            adoptChain(cached);
+            return;
+        }
 
-        // Try opening a buffered reader on the specified mesh file.
-        BufferedReader freader = null;
+        // Parse the file.
         try {
-            freader = new BufferedReader(new FileReader(file));
-        } catch (FileNotFoundException e) {
-            // Print stack trace and crash if an exception occurred.
+            indexCorners(new ObjParser(path));
+        } catch (IOException | IllegalStateException e) {
+            // Print stack trace and crash if the model could not be loaded.
             e.printStackTrace();
             System.exit(-1);
         }
 
-        // Declare line to be read by the reader.
-        String line = null;
-        do {
-            // Try to read a line from the file.
-            try {
-                line = freader.readLine();
-            } catch (IOException e) {
-                // Print stack trace and break if an exception occurred.
-                e.printStackTrace();
-                break;
+        // Build meshlets and detail levels from the loaded triangles, then
+        // cache the result for the next launch.
+        setGeometry(m_vertices.array(), m_indices.array());
+        buildLods();
+        MeshCache.write(path, m_lods);
+    }
+
+    /**
+     * Construct a mesh resource from vertex/texture coordinate arrays,
+     * generating its detail levels.
+     * @param verts The vertex array, three verts per triangle.
+     * @param coords The texture coordinate array matching the verts.
+     */
+    public MeshResource(Vector3[] verts, Vector2[] coords) {
+        // Weld corners with identical attributes into shared verts.
+        HashMap<VertexKey, Integer> welded = new HashMap<VertexKey, Integer>();
+        float[] vertices = new float[verts.length * VERTEX_STRIDE];
+        int[] indices = new int[verts.length - verts.length % 3];
+        for (int i = 0; i < indices.length; ++i) {
+            VertexKey key = new VertexKey(verts[i], coords[i]);
+            Integer id = welded.get(key);
+            if (id == null) {
+                id = welded.size();
+                welded.put(key, id);
+                int base = id * VERTEX_STRIDE;
+                vertices[base + POSITION_OFFSET + 0] = verts[i].x;
+                vertices[base + POSITION_OFFSET + 1] = verts[i].y;
+                vertices[base + POSITION_OFFSET + 2] = verts[i].z;
+                vertices[base + COORD_OFFSET + 0] = coords[i].x;
+                vertices[base + COORD_OFFSET + 1] = coords[i].y;
             }
+            indices[i] = id;
+        }
+
+        setGeometry(
+            Arrays.copyOf(vertices, welded.size() * VERTEX_STRIDE), indices);
+        buildLods();
+    }
+
+    /**
+     * Construct a single detail level from indexed vertex data.
+     * @param vertices The interleaved vertex data.
+     * @param indices The triangle indices, three per triangle.
+     * @param lods The detail level chain this level belongs to.
+     */
+    private MeshResource(
+        float[] vertices,
+        int[] indices,
+        MeshResource[] lods) {
+        setGeometry(vertices, indices);
+        m_lods = lods;
+    }
+
+    /**
+     * Construct a single detail level from prebuilt data, without copying
+     * it. Used when reading the mesh cache.
+     * @param vertices The interleaved vertex data.
+     * @param indices The triangle indices, in meshlet order.
+     * @param meshlets The meshlets of the level.
+     * @param boundsCenter The object-space bounding sphere center.
+     * @param boundsRadius The object-space bounding sphere radius.
+     */
+    MeshResource(
+        FloatBuffer vertices,
+        IntBuffer indices,
+        Meshlet[] meshlets,
+        Vector3 boundsCenter,
+        float boundsRadius) {
+        m_vertices = vertices;
+        m_indices = indices;
+        m_meshlets = meshlets;
+        m_boundsCenter = boundsCenter;
+        m_boundsRadius = boundsRadius;
+    }
 
-            // Break if the line is null, as that marks the EoF.
-            if (line == null) { break; }
-
-            // Match the beginning of the line with various OBJ-format
-            // patterns.
-            if (line.startsWith("v ")) {
-                // Read vertex from line.
-
-                // Split line into tokens.
-                String split[] = line.split(" ");
-                // Parse vertex coordinates.
-                float x = Float.parseFloat(split[1]);
-                float y = Float.parseFloat(split[2]);
-                float z = Float.parseFloat(split[3]);
-                // Add vertex position to list.
-                verts.add(new Vector3(x, y, z));
-            } else if (line.startsWith("f ")) {
-                // Read face data from line.
-
-                // Split line into tokens.
-                String split[] = line.split(" ");
-                for (int i = 1; i <= 3; ++i) {
-                    // Split vert/texcoord index pairs.
-                    String pairsplit[] = split[i].split("/");
-                    // Parse indices.
-                    int vc = Integer.parseInt(pairsplit[0]);
-                    if (pairsplit.length > 1) {
-                        int tc = Integer.parseInt(pairsplit[1]);
-                        // Add texture index.
-                        tindices.add(tc);
-                    }
-                    // Add vertex index.
-                    vindices.add(vc);
+    /**
+     * Take over the data of a detail level chain, making this resource its
+     * full detail level.
+     * @param chain The detail level chain to adopt.
+     */
+    private void adoptChain(MeshResource[] chain) {
+        m_vertices = chain[0].m_vertices;
+        m_indices = chain[0].m_indices;
+        m_meshlets = chain[0].m_meshlets;
+        m_boundsCenter = chain[0].m_boundsCenter;
+        m_boundsRadius = chain[0].m_boundsRadius;
+        chain[0] = this;
+        m_lods = chain;
+        for (MeshResource lod : m_lods) {
+            lod.m_lods = m_lods;
+        }
+    }
+
+    /**
+     * Turn parsed OBJ face corners into indexed verts, sharing a vertex
+     * between every corner with the same position/coord/normal indices.
+     * @param parser The parsed OBJ file.
+     */
+    private void indexCorners(ObjParser parser) {
+        float[] positions = parser.getPositions();
+        float[] texCoords = parser.getTexCoords();
+        float[] normals = parser.getNormals();
+        int[] corners = parser.getCorners();
+        int cornerCount = corners.length / 3;
+
+        // Open-addressed hash table from index triple to vertex, kept at
+        // most half full.
+        int capacity = 16;
+        while (capacity < cornerCount * 2) capacity *= 2;
+        int mask = capacity - 1;
+        int[] slots = new int[capacity];
+        Arrays.fill(slots, -1);
+
+        // Each vertex remembers the corner it was created from.
+        int[] firstCorner = new int[cornerCount];
+        int[] indices = new int[cornerCount];
+        int vertexCount = 0;
+
+        for (int c = 0; c < cornerCount; ++c) {
+            int v = corners[c * 3 + 0];
+            int t = corners[c * 3 + 1];
+            int n = corners[c * 3 + 2];
+            if (
+                v < 0
+                || v * 3 >= positions.length
+                || t < -1
+                || t * 2 >= texCoords.length
+                || n < -1
+                || n * 3 >= normals.length) {
+                throw new IllegalStateException(
+                    "OBJ face index out of range in corner " + c);
+            }
+
+            // Probe for an existing vertex with the same index triple.
+            int slot =
+                ((v * 73856093) ^ (t * 19349663) ^ (n * 83492791)) & mask;
+            int id = -1;
+            while (slots[slot] >= 0) {
+                int o = firstCorner[slots[slot]] * 3;
+                if (
+                    corners[o] == v
+                    && corners[o + 1] == t
+                    && corners[o + 2] == n) {
+                    id = slots[slot];
+                    break;
                 }
-            } else if (line.startsWith("vt ")) {
-                // Read texture coordinate from line.
-
-                // Split line into tokens.
-                String split[] = line.split(" ");
-                // Parse texture coordinates.
-                float u = Float.parseFloat(split[1]);
-                float v = Float.parseFloat(split[2]);
-                // Add texture coordinate to list.
-                coords.add(new Vector2(u, v));
+                slot = (slot + 1) & mask;
+            }
+            if (id < 0) {
+                id = vertexCount++;
+                firstCorner[id] = c;
+                slots[slot] = id;
             }
+            indices[c] = id;
         }
-        // Loop until null line is read.
-        while (line != null);
 
-        // Attempt to close the reader.
-        try {
-            freader.close();
-        } catch (IOException e) {
-            // Print the stack trace if an exception occurred.
-            e.printStackTrace();
+        // Gather the attributes of each unique vertex.
+        float[] vertices = new float[vertexCount * VERTEX_STRIDE];
+        for (int id = 0; id < vertexCount; ++id) {
+            int o = firstCorner[id] * 3;
+            int base = id * VERTEX_STRIDE;
+            int v = corners[o];
+            int t = corners[o + 1];
+            int n = corners[o + 2];
+            System.arraycopy(
+                positions, v * 3, vertices, base + POSITION_OFFSET, 3);
+            // Missing coords/normals are left as zero.
+            if (t >= 0) {
+                System.arraycopy(
+                    texCoords, t * 2, vertices, base + COORD_OFFSET, 2);
+            }
+            if (n >= 0) {
+                System.arraycopy(
+                    normals, n * 3, vertices, base + NORMAL_OFFSET, 3);
+            }
         }
+        m_vertices = FloatBuffer.wrap(vertices);
+        m_indices = IntBuffer.wrap(indices);
+    }
 
-        // Allocate space for the fixed-size arrays.
-        m_verts = new Vector3[vindices.size()];
-        m_coords = new Vector2[vindices.size()];
+    /**
+     * Assign the triangles of the resource, splitting them into meshlets and
+     * computing the bounds.
+     * @param vertices The interleaved vertex data.
+     * @param indices The triangle indices, three per triangle.
+     */
+    private void setGeometry(float[] vertices, int[] indices) {
+        generateNormals(vertices, indices);
+
+        // Split the mesh into meshlets, reordering the triangles to match.
+        MeshletBuilder builder = new MeshletBuilder(vertices, indices);
+        m_vertices = FloatBuffer.wrap(vertices);
+        m_indices = IntBuffer.wrap(builder.getIndices());
+        m_meshlets = builder.getMeshlets();
+
+        // Compute a bounding sphere around the bounding box center.
+        int vertexCount = vertices.length / VERTEX_STRIDE;
+        if (vertexCount == 0) {
+            m_boundsCenter = Vector3.ZERO;
+            m_boundsRadius = 0.0f;
+            return;
+        }
+        Vector3 min = MeshletBuilder.position(vertices, 0);
+        Vector3 max = min;
+        for (int v = 1; v < vertexCount; ++v) {
+            Vector3 p = MeshletBuilder.position(vertices, v);
+            min = min.min(p);
+            max = max.max(p);
+        }
+        m_boundsCenter = min.lerp(max, 0.5f);
+        m_boundsRadius = 0.0f;
+        for (int v = 0; v < vertexCount; ++v) {
+            Vector3 p = MeshletBuilder.position(vertices, v);
+            m_boundsRadius =
+                Math.max(m_boundsRadius, m_boundsCenter.distance(p));
+        }
+    }
 
-        // Copy vertex data into fixed-size arrays.
-        for (int i = 0; i < vindices.size(); ++i) {
-            // If there are more verts than texture coordinates then
-            // insert zero vectors, otherwise insert the texture coordinate at
-            // the current index.
-            if (i >= tindices.size()) {
-                m_coords[i] = new Vector2(0.0f, 0.0f);
-            } else {
-                m_coords[i] = coords.get(tindices.get(i) - 1);
+    /**
+     * Fill in smooth normals for verts that have none. Each is the
+     * area-weighted average of the normals of the triangles around its
+     * position, so verts split at texture seams get the same normal.
+     * @param vertices The interleaved vertex data.
+     * @param indices The triangle indices, three per triangle.
+     */
+    private static void generateNormals(float[] vertices, int[] indices) {
+        int vertexCount = vertices.length / VERTEX_STRIDE;
+        boolean missing = false;
+        for (int v = 0; v < vertexCount && !missing; ++v) {
+            int n = v * VERTEX_STRIDE + NORMAL_OFFSET;
+            missing =
+                vertices[n] == 0.0f
+                && vertices[n + 1] == 0.0f
+                && vertices[n + 2] == 0.0f;
+        }
+        if (!missing) return;
+
+        // Group the verts by position.
+        HashMap<VertexKey, Integer> groups = new HashMap<VertexKey, Integer>();
+        Vector2 noCoord = new Vector2(0.0f, 0.0f);
+        int[] groupOf = new int[vertexCount];
+        for (int v = 0; v < vertexCount; ++v) {
+            VertexKey key =
+                new VertexKey(MeshletBuilder.position(vertices, v), noCoord);
+            Integer group = groups.get(key);
+            if (group == null) {
+                group = groups.size();
+                groups.put(key, group);
             }
-            // Add the vert at the current index.
-            m_verts[i] = verts.get(vindices.get(i) - 1);
+            groupOf[v] = group;
         }
-	}
+
+        // Sum the unnormalized face normals (twice the triangle area in
+        // length) around each position, using the rasterizer's winding.
+        float[] sums = new float[groups.size() * 3];
+        for (int i = 0; i + 2 < indices.length; i += 3) {
+            Vector3 a = MeshletBuilder.position(vertices, indices[i]);
+            Vector3 b = MeshletBuilder.position(vertices, indices[i + 1]);
+            Vector3 c = MeshletBuilder.position(vertices, indices[i + 2]);
+            Vector3 n = b.sub(a).cross(c.sub(a));
+            for (int k = 0; k < 3; ++k) {
+                int g = groupOf[indices[i + k]] * 3;
+                sums[g] += n.x;
+                sums[g + 1] += n.y;
+                sums[g + 2] += n.z;
+            }
+        }
+
+        for (int v = 0; v < vertexCount; ++v) {
+            int n = v * VERTEX_STRIDE + NORMAL_OFFSET;
+            if (
+                vertices[n] != 0.0f
+                || vertices[n + 1] != 0.0f
+                || vertices[n + 2] != 0.0f) {
+                continue;
+            }
+            int g = groupOf[v] * 3;
+            Vector3 normal =
+                new Vector3(sums[g], sums[g + 1], sums[g + 2])
+                .normalizeOrZero();
+            vertices[n] = normal.x;
+            vertices[n + 1] = normal.y;
+            vertices[n + 2] = normal.z;
+        }
+    }
+
+    /**
+     * Generate the detail level chain by repeatedly simplifying the mesh.
+     */
+    private void buildLods() {
+        ArrayList<MeshResource> lods = new ArrayList<MeshResource>();
+        lods.add(this);
+
+        // Each level is simplified from the previous one, which is much
+        // cheaper than simplifying the full mesh every time.
+        MeshResource prev = this;
+        while (lods.size() < MAX_LODS) {
+            int prevTris = prev.getTriCount();
+            int target = (int) (prevTris * LOD_RATIO);
+            if (target < MIN_LOD_TRIANGLES) break;
+
+            MeshSimplifier simplifier =
+                new MeshSimplifier(
+                    prev.m_vertices.array(), prev.m_indices.array());
+            simplifier.simplify(target);
+            // Stop once the mesh can no longer be meaningfully reduced.
+            if (simplifier.getTriCount() > prevTris * 0.9f) break;
+
+            prev = new MeshResource(
+                simplifier.getVertices(), simplifier.getIndices(), null);
+            lods.add(prev);
+        }
+
+        // Share the chain between all of its levels.
+        m_lods = lods.toArray(new MeshResource[lods.size()]);
+        for (MeshResource lod : m_lods) {
+            lod.m_lods = m_lods;
+        }
+    }
+
+    /**
+     * Expand the indexed data into per-corner vert/coord arrays.
+     */
+    private synchronized void expand() {
+        if (m_verts != null) return;
+        int count = m_indices.limit();
+        Vector3[] verts = new Vector3[count];
+        Vector2[] coords = new Vector2[count];
+        for (int i = 0; i < count; ++i) {
+            int base = m_indices.get(i) * VERTEX_STRIDE;
+            verts[i] = new Vector3(
+                m_vertices.get(base + POSITION_OFFSET + 0),
+                m_vertices.get(base + POSITION_OFFSET + 1),
+                m_vertices.get(base + POSITION_OFFSET + 2));
+            coords[i] = new Vector2(
+                m_vertices.get(base + COORD_OFFSET + 0),
+                m_vertices.get(base + COORD_OFFSET + 1));
+        }
+        m_coords = coords;
+        m_verts = verts;
+    }
 
     /**
      * Get the verts of the resource.
-     * @return The resource's verts.
+     * @return The resource's verts, three per triangle.
      */
     public Vector3[] getVerts() {
+        expand();
         return m_verts;
     }
 
     /**
      * Get the texture coordinates of the resource.
-     * @return The resource's texture coordinates.
+     * @return The resource's texture coordinates, three per triangle.
      */
     public Vector2[] getCoords() {
+        expand();
         return m_coords;
     }
 
-}
\ No newline at end of file
+    /**
+     * Get the interleaved vertex data of the resource. The buffer may be
+     * shared or mapped from the mesh cache, so read it with absolute gets.
+     * @return The vertex data, VERTEX_STRIDE floats per vertex.
+     */
+    public FloatBuffer getVertexData() {
+        return m_vertices;
+    }
+
+    /**
+     * Get the triangle indices of the resource. The buffer may be shared or
+     * mapped from the mesh cache, so read it with absolute gets.
+     * @return The indices into the vertex data, three per triangle.
+     */
+    public IntBuffer getIndices() {
+        return m_indices;
+    }
+
+    /**
+     * Get the number of triangles in the resource.
+     * @return The resource's polycount.
+     */
+    public int getTriCount() {
+        return m_indices.limit() / 3;
+    }
+
+    /**
+     * Get the center of the resource's bounding sphere.
+     * @return The object-space bounding sphere center.
+     */
+    public Vector3 getBoundsCenter() {
+        return m_boundsCenter;
+    }
+
+    /**
+     * Get the radius of the resource's bounding sphere.
+     * @return The object-space bounding sphere radius.
+     */
+    public float getBoundsRadius() {
+        return m_boundsRadius;
+    }
+
+    /**
+     * Get the number of detail levels in the resource's chain.
+     * @return The detail level count (at least 1).
+     */
+    public int getLodCount() {
+        return m_lods.length;
+    }
+
+    /**
+     * Get a detail level of the resource.
+     * @param level The level to get (0 is full detail).
+     * @return The resource for the given detail level.
+     */
+    public MeshResource getLod(int level) {
+        return m_lods[level];
+    }
+
+    /**
+     * Get the screen radius below which each detail level has more
+     * triangles than it can usefully show. The array is shared and must
+     * not be changed.
+     * @return The threshold of each level in pixels.
+     */
+    public float[] getLodRadii() {
+        if (m_lodRadii == null) {
+            float[] radii = new float[m_lods.length];
+            for (int i = 0; i < radii.length; ++i) {
+                // About half of a closed mesh faces the camera, spread over
+                // the projected disc of its bounding sphere.
+                int tris = m_lods[i].getTriCount();
+                radii[i] = (float) Math.sqrt(
+                    PIXELS_PER_TRIANGLE * tris * 0.5f / Math.PI);
+            }
+            m_lodRadii = radii;
+        }
+        return m_lodRadii;
+    }
+
+    /**
+     * Select the detail level to draw from the projected size of a bounding
+     * sphere. Levels only change once the size passes a level's threshold
+     * by the hysteresis margin.
+     * @param radii The threshold of each level (see getLodRadii).
+     * @param current The level drawn until now.
+     * @param screenRadius The projected bounding sphere radius in pixels.
+     * @return The selected detail level.
+     */
+    public static int selectLod(
+        float[] radii, int current, float screenRadius) {
+        int lod = current;
+        // Drop detail while the current level is too dense for its size.
+        while (
+            lod + 1 < radii.length
+            && screenRadius < radii[lod] * (1.0f - LOD_HYSTERESIS)) {
+            ++lod;
+        }
+        // Add detail while the finer level is no longer too dense.
+        while (
+            lod > 0
+            && screenRadius > radii[lod - 1] * (1.0f + LOD_HYSTERESIS)) {
+            --lod;
+        }
+        return lod;
+    }
+
+    /**
+     * Get the meshlets of the resource.
+     * @return The resource's meshlets, in triangle order.
+     */
+    public Meshlet[] getMeshlets() {
+        return m_meshlets;
+    }
+
+}
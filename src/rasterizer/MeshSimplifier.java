@@ -0,0 +1,357 @@
+/*
+ * Luke Diamond
+ * 01/22/2018
+ * Grade 11 Final Project
+ * Mr. Patterson
+ */
+
+package rasterizer;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.PriorityQueue;
+
+/**
+ * Quadric error metric mesh simplifier. Repeatedly collapses the edge whose
+ * removal changes the surface the least until a target triangle count is
+ * reached. Verts on open borders and texture seams are never moved, so the
+ * outline and texture mapping of the mesh are preserved.
+ */
+public class MeshSimplifier {
+    // Minimum cosine between a triangle's normal before and after a
+    // collapse (rejects collapses that fold the surface over).
+    private static final double FLIP_COS = 0.2;
+
+    // Interleaved vertex data, and the vertex positions for quick access.
+    private float[] m_vertices;
+    private Vector3[] m_positions;
+    // Triangle corner indices into the unique verts.
+    private int[] m_tris;
+    // Whether each triangle has been removed by a collapse.
+    private boolean[] m_deadTris;
+    // Remaining triangle count.
+    private int m_liveTris;
+
+    // Per-vertex state.
+    private double[][] m_quadrics;
+    private boolean[] m_locked;
+    private boolean[] m_deadVerts;
+    private int[] m_versions;
+    private ArrayList<ArrayList<Integer>> m_vertTris;
+
+    // Pending collapses, cheapest first.
+    private PriorityQueue<Collapse> m_queue;
+
+    /**
+     * A candidate edge collapse, moving one vertex onto another.
+     */
+    private static class Collapse implements Comparable<Collapse> {
+        double cost;
+        int from;
+        int to;
+        int fromVersion;
+        int toVersion;
+
+        @Override
+        public int compareTo(Collapse other) {
+            return Double.compare(cost, other.cost);
+        }
+    }
+
+    /**
+     * Prepare an indexed triangle list for simplification.
+     * @param vertices The interleaved vertex data (see MeshResource).
+     * @param indices The triangle indices, three per triangle.
+     */
+    public MeshSimplifier(float[] vertices, int[] indices) {
+        m_vertices = vertices;
+        m_tris = indices.clone();
+        m_positions = new Vector3[vertices.length / MeshResource.VERTEX_STRIDE];
+        for (int i = 0; i < m_positions.length; ++i) {
+            m_positions[i] = MeshletBuilder.position(vertices, i);
+        }
+
+        int vertCount = m_positions.length;
+        int triCount = m_tris.length / 3;
+        m_deadTris = new boolean[triCount];
+        m_liveTris = triCount;
+        m_quadrics = new double[vertCount][10];
+        m_locked = new boolean[vertCount];
+        m_deadVerts = new boolean[vertCount];
+        m_versions = new int[vertCount];
+        m_vertTris = new ArrayList<ArrayList<Integer>>(vertCount);
+        for (int i = 0; i < vertCount; ++i) {
+            m_vertTris.add(new ArrayList<Integer>());
+        }
+
+        // Accumulate face plane quadrics and vertex-triangle adjacency.
+        for (int t = 0; t < triCount; ++t) {
+            addPlaneQuadric(t);
+            for (int k = 0; k < 3; ++k) {
+                m_vertTris.get(m_tris[t * 3 + k]).add(t);
+            }
+        }
+
+        // Lock verts on edges used by only one triangle. Since verts are
+        // only shared when all of their attributes match, this covers open
+        // borders as well as texture and normal seams.
+        HashMap<Long, Integer> edgeUses = new HashMap<Long, Integer>();
+        for (int t = 0; t < triCount; ++t) {
+            for (int k = 0; k < 3; ++k) {
+                long key =
+                    edgeKey(m_tris[t * 3 + k], m_tris[t * 3 + (k + 1) % 3]);
+                edgeUses.merge(key, 1, Integer::sum);
+            }
+        }
+        for (Long key : edgeUses.keySet()) {
+            if (edgeUses.get(key) == 1) {
+                m_locked[(int) (key >>> 32)] = true;
+                m_locked[(int) (key & 0xFFFFFFFFL)] = true;
+            }
+        }
+
+        // Queue every edge of the mesh.
+        m_queue = new PriorityQueue<Collapse>();
+        for (Long key : edgeUses.keySet()) {
+            queueEdge((int) (key >>> 32), (int) (key & 0xFFFFFFFFL));
+        }
+    }
+
+    /**
+     * Pack an undirected edge into a single key.
+     * @param a The first vertex of the edge.
+     * @param b The second vertex of the edge.
+     * @return A key that is the same for (a, b) and (b, a).
+     */
+    private static long edgeKey(int a, int b) {
+        int lo = Math.min(a, b);
+        int hi = Math.max(a, b);
+        return ((long) lo << 32) | (hi & 0xFFFFFFFFL);
+    }
+
+    /**
+     * Add the plane of a triangle to the quadrics of its verts.
+     * @param t The triangle index.
+     */
+    private void addPlaneQuadric(int t) {
+        Vector3 a = m_positions[m_tris[t * 3 + 0]];
+        Vector3 b = m_positions[m_tris[t * 3 + 1]];
+        Vector3 c = m_positions[m_tris[t * 3 + 2]];
+        Vector3 cross = b.sub(a).cross(c.sub(a));
+        float len = cross.length();
+        if (!(len > 0.0f)) return;
+
+        // Plane ax + by + cz + d = 0, weighted by triangle area.
+        double nx = cross.x / len;
+        double ny = cross.y / len;
+        double nz = cross.z / len;
+        double d = -(nx * a.x + ny * a.y + nz * a.z);
+        double w = len * 0.5;
+        double[] plane = {
+            nx * nx, nx * ny, nx * nz, nx * d,
+            ny * ny, ny * nz, ny * d,
+            nz * nz, nz * d,
+            d * d };
+        for (int k = 0; k < 3; ++k) {
+            double[] q = m_quadrics[m_tris[t * 3 + k]];
+            for (int i = 0; i < 10; ++i) {
+                q[i] += plane[i] * w;
+            }
+        }
+    }
+
+    /**
+     * Evaluate the error of moving a vertex to a position.
+     * @param q The quadric to evaluate.
+     * @param p The position to evaluate at.
+     * @return The squared distance sum of p to the quadric's planes.
+     */
+    private static double quadricError(double[] q, Vector3 p) {
+        double x = p.x;
+        double y = p.y;
+        double z = p.z;
+        return
+            q[0] * x * x + 2 * q[1] * x * y + 2 * q[2] * x * z + 2 * q[3] * x
+            + q[4] * y * y + 2 * q[5] * y * z + 2 * q[6] * y
+            + q[7] * z * z + 2 * q[8] * z
+            + q[9];
+    }
+
+    /**
+     * Queue the cheapest allowed collapse direction of an edge.
+     * @param a The first vertex of the edge.
+     * @param b The second vertex of the edge.
+     */
+    private void queueEdge(int a, int b) {
+        if (m_locked[a] && m_locked[b]) return;
+
+        // The combined quadric, evaluated at either endpoint.
+        double[] q = new double[10];
+        for (int i = 0; i < 10; ++i) {
+            q[i] = m_quadrics[a][i] + m_quadrics[b][i];
+        }
+        double costToA = m_locked[b] ? Double.MAX_VALUE
+            : quadricError(q, m_positions[a]);
+        double costToB = m_locked[a] ? Double.MAX_VALUE
+            : quadricError(q, m_positions[b]);
+
+        Collapse c = new Collapse();
+        if (costToA < costToB) {
+            c.cost = costToA;
+            c.from = b;
+            c.to = a;
+        } else {
+            c.cost = costToB;
+            c.from = a;
+            c.to = b;
+        }
+        c.fromVersion = m_versions[c.from];
+        c.toVersion = m_versions[c.to];
+        m_queue.add(c);
+    }
+
+    /**
+     * Check whether moving a vertex would fold any of its triangles over.
+     * @param from The vertex being moved.
+     * @param to The vertex it is moving onto.
+     * @return True if the collapse keeps every surviving triangle's facing.
+     */
+    private boolean keepsFacing(int from, int to) {
+        Vector3 target = m_positions[to];
+        for (int t : m_vertTris.get(from)) {
+            if (m_deadTris[t]) continue;
+            int a = m_tris[t * 3 + 0];
+            int b = m_tris[t * 3 + 1];
+            int c = m_tris[t * 3 + 2];
+            // Triangles on the collapsed edge are removed, so skip them.
+            if (a == to || b == to || c == to) continue;
+
+            Vector3 pa = m_positions[a];
+            Vector3 pb = m_positions[b];
+            Vector3 pc = m_positions[c];
+            Vector3 before = pb.sub(pa).cross(pc.sub(pa)).normalizeOrZero();
+            if (a == from) pa = target;
+            if (b == from) pb = target;
+            if (c == from) pc = target;
+            Vector3 after = pb.sub(pa).cross(pc.sub(pa)).normalizeOrZero();
+            if (before.dot(after) < FLIP_COS) return false;
+        }
+        return true;
+    }
+
+    /**
+     * Collapse edges until the mesh has at most a given triangle count, or
+     * no more edges can be collapsed.
+     * @param targetTris The triangle count to simplify down to.
+     */
+    public void simplify(int targetTris) {
+        while (m_liveTris > targetTris && !m_queue.isEmpty()) {
+            Collapse c = m_queue.poll();
+            // Skip stale entries for verts changed since being queued.
+            if (m_deadVerts[c.from] || m_deadVerts[c.to]) continue;
+            if (m_versions[c.from] != c.fromVersion) continue;
+            if (m_versions[c.to] != c.toVersion) continue;
+            if (!keepsFacing(c.from, c.to)) continue;
+
+            // Move every triangle of the removed vertex onto the kept one,
+            // dropping the triangles that become degenerate.
+            ArrayList<Integer> toTris = m_vertTris.get(c.to);
+            for (int t : m_vertTris.get(c.from)) {
+                if (m_deadTris[t]) continue;
+                boolean shared = false;
+                for (int k = 0; k < 3; ++k) {
+                    if (m_tris[t * 3 + k] == c.to) shared = true;
+                }
+                if (shared) {
+                    m_deadTris[t] = true;
+                    --m_liveTris;
+                    continue;
+                }
+                for (int k = 0; k < 3; ++k) {
+                    if (m_tris[t * 3 + k] == c.from) m_tris[t * 3 + k] = c.to;
+                }
+                toTris.add(t);
+            }
+            m_deadVerts[c.from] = true;
+            for (int i = 0; i < 10; ++i) {
+                m_quadrics[c.to][i] += m_quadrics[c.from][i];
+            }
+
+            // Requeue the edges around the kept vertex with its new quadric
+            // (bumping its version invalidates the old entries).
+            ++m_versions[c.to];
+            for (int t : toTris) {
+                if (m_deadTris[t]) continue;
+                for (int k = 0; k < 3; ++k) {
+                    int n = m_tris[t * 3 + k];
+                    if (n != c.to) queueEdge(c.to, n);
+                }
+            }
+        }
+    }
+
+    /**
+     * Get the number of triangles left in the simplified mesh.
+     * @return The live triangle count.
+     */
+    public int getTriCount() {
+        return m_liveTris;
+    }
+
+    /**
+     * Get the vertex data of the simplified mesh, with unused verts removed.
+     * @return The interleaved vertex data.
+     */
+    public float[] getVertices() {
+        int stride = MeshResource.VERTEX_STRIDE;
+        int[] remap = remapUsed();
+        int used = 0;
+        for (int r : remap) {
+            if (r >= 0) ++used;
+        }
+        float[] vertices = new float[used * stride];
+        for (int v = 0; v < remap.length; ++v) {
+            if (remap[v] < 0) continue;
+            System.arraycopy(
+                m_vertices, v * stride, vertices, remap[v] * stride, stride);
+        }
+        return vertices;
+    }
+
+    /**
+     * Get the triangle indices of the simplified mesh, matching the verts
+     * returned by getVertices.
+     * @return The triangle indices, three per triangle.
+     */
+    public int[] getIndices() {
+        int[] remap = remapUsed();
+        int[] indices = new int[m_liveTris * 3];
+        int i = 0;
+        for (int t = 0; t < m_deadTris.length; ++t) {
+            if (m_deadTris[t]) continue;
+            for (int k = 0; k < 3; ++k) {
+                indices[i++] = remap[m_tris[t * 3 + k]];
+            }
+        }
+        return indices;
+    }
+
+    /**
+     * Compute new indices for the verts still used by a live triangle.
+     * @return The new index of each vertex, or -1 if it is unused.
+     */
+    private int[] remapUsed() {
+        int[] remap = new int[m_positions.length];
+        Arrays.fill(remap, -1);
+        int next = 0;
+        for (int t = 0; t < m_deadTris.length; ++t) {
+            if (m_deadTris[t]) continue;
+            for (int k = 0; k < 3; ++k) {
+                int v = m_tris[t * 3 + k];
+                if (remap[v] < 0) remap[v] = next++;
+            }
+        }
+        return remap;
+    }
+}
@@ -0,0 +1,85 @@
+/*
+ * Luke Diamond
+ * 01/22/2018
+ * Grade 11 Final Project
+ * Mr. Patterson
+ */
+
+package rasterizer;
+
+/**
+ * A small cluster of neighbouring triangles within a mesh, with bounds that
+ * allow the whole cluster to be culled before any of its verts are
+ * transformed.
+ */
+public class Meshlet {
+	// Cone cutoff value meaning the normal cone is too wide to cull with.
+	public static final float NO_CONE = 2.0f;
+
+	// Index of the first triangle of the meshlet, and its triangle count.
+	public int offset;
+	public int count;
+
+	// Object-space bounding sphere.
+	public Vector3 center;
+	public float radius;
+
+	// Object-space cone of outward facing normals. The cutoff is the sine
+	// of the cone's half-angle, or NO_CONE if the cone spans a hemisphere
+	// or more.
+	public Vector3 coneAxis;
+	public float coneCutoff;
+
+	/**
+	 * Constructs a meshlet from a triangle range and its bounds.
+	 * @param offset_ The index of the first triangle in the meshlet.
+	 * @param count_ The number of triangles in the meshlet.
+	 * @param center_ The center of the bounding sphere.
+	 * @param radius_ The radius of the bounding sphere.
+	 * @param coneAxis_ The average outward normal of the triangles.
+	 * @param coneCutoff_ The sine of the normal cone half-angle.
+	 */
+	public Meshlet(
+		int offset_,
+		int count_,
+		Vector3 center_,
+		float radius_,
+		Vector3 coneAxis_,
+		float coneCutoff_) {
+		// Initialize all members.
+		offset = offset_;
+		count = count_;
+		center = center_;
+		radius = radius_;
+		coneAxis = coneAxis_;
+		coneCutoff = coneCutoff_;
+	}
+
+	/**
+	 * Checks whether every triangle in the meshlet faces away from the eye.
+	 * The rasterizer culls a triangle by its winding on screen, which under
+	 * a perspective projection means it faces away from the eye rather
+	 * than from the view direction, so the cone is tested against the
+	 * direction from the eye to every point of the bounding sphere. A
+	 * meshlet is only rejected if all of its triangles would be.
+	 * @param axis The cone axis transformed to world space.
+	 * @param center The bounding sphere center in world space.
+	 * @param radius The bounding sphere radius in world space.
+	 * @param eye The camera position in world space.
+	 * @return True if the whole meshlet can be culled.
+	 */
+	public boolean isBackfacing(
+		Vector3 axis, Vector3 center, float radius, Vector3 eye) {
+		// A cone wider than a hemisphere always has a visible triangle.
+		if (coneCutoff >= 1.0f) return false;
+		// The eye may see either side of a sphere it is inside of.
+		Vector3 d = center.sub(eye);
+		float distance = d.length();
+		if (distance <= radius) return false;
+		// Triangles face away when their outward normal points along the
+		// ray from the eye. Every normal in the cone still does for the ray
+		// to any point of the sphere when the axis does by more than the
+		// cone's half-angle plus the sphere's angular size.
+		return axis.dot(d) >= coneCutoff * distance + radius;
+	}
+}
@@ -0,0 +1,276 @@
+/*
+ * Luke Diamond
+ * 01/22/2018
+ * Grade 11 Final Project
+ * Mr. Patterson
+ */
+
+package rasterizer;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+
+/**
+ * Splits an indexed triangle list into meshlets of neighbouring, similarly
+ * facing triangles, and reorders the triangles so each meshlet is a
+ * contiguous range.
+ */
+public class MeshletBuilder {
+    // Maximum number of triangles in a meshlet.
+    public static final int MAX_TRIANGLES = 128;
+    // Number of triangles after which a meshlet may stop growing early.
+    public static final int MIN_TRIANGLES = 64;
+    // Minimum cosine between a triangle and the meshlet's facing direction
+    // for the meshlet to keep growing past MIN_TRIANGLES (60 degrees).
+    private static final float GROW_COS = 0.5f;
+
+    // Triangle indices in meshlet order.
+    private int[] m_indices;
+    // Generated meshlets.
+    private Meshlet[] m_meshlets;
+
+    /**
+     * Key for welding verts that share the same position.
+     */
+    private static class PositionKey {
+        private final int x;
+        private final int y;
+        private final int z;
+
+        PositionKey(float[] vertices, int v) {
+            int base = v * MeshResource.VERTEX_STRIDE;
+            x = Float.floatToIntBits(vertices[base]);
+            y = Float.floatToIntBits(vertices[base + 1]);
+            z = Float.floatToIntBits(vertices[base + 2]);
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof PositionKey)) return false;
+            PositionKey k = (PositionKey) o;
+            return x == k.x && y == k.y && z == k.z;
+        }
+
+        @Override
+        public int hashCode() {
+            return (x * 31 + y) * 31 + z;
+        }
+    }
+
+    /**
+     * Build meshlets from an indexed triangle list.
+     * @param vertices The interleaved vertex data (see MeshResource).
+     * @param indices The triangle indices, three per triangle.
+     */
+    public MeshletBuilder(float[] vertices, int[] indices) {
+        int triCount = indices.length / 3;
+
+        // Weld verts by position so triangles sharing a corner are adjacent,
+        // even across texture seams.
+        HashMap<PositionKey, Integer> welded =
+            new HashMap<PositionKey, Integer>();
+        int[] ids = new int[triCount * 3];
+        for (int i = 0; i < ids.length; ++i) {
+            PositionKey key = new PositionKey(vertices, indices[i]);
+            Integer id = welded.get(key);
+            if (id == null) {
+                id = welded.size();
+                welded.put(key, id);
+            }
+            ids[i] = id;
+        }
+
+        // Build the vertex-to-triangle adjacency (compressed row layout).
+        int[] adjStart = new int[welded.size() + 1];
+        for (int i = 0; i < ids.length; ++i) {
+            ++adjStart[ids[i] + 1];
+        }
+        for (int i = 0; i < welded.size(); ++i) {
+            adjStart[i + 1] += adjStart[i];
+        }
+        int[] adjFill = adjStart.clone();
+        int[] adjTris = new int[ids.length];
+        for (int i = 0; i < ids.length; ++i) {
+            adjTris[adjFill[ids[i]]++] = i / 3;
+        }
+
+        // Compute outward face normals the same way the rasterizer does.
+        Vector3[] normals = new Vector3[triCount];
+        for (int t = 0; t < triCount; ++t) {
+            normals[t] = faceNormal(
+                position(vertices, indices[t * 3 + 0]),
+                position(vertices, indices[t * 3 + 1]),
+                position(vertices, indices[t * 3 + 2]));
+        }
+
+        // Greedily grow meshlets from the first unassigned triangle.
+        boolean[] assigned = new boolean[triCount];
+        boolean[] queued = new boolean[triCount];
+        int[] order = new int[triCount];
+        int ordered = 0;
+        ArrayList<Meshlet> meshlets = new ArrayList<Meshlet>();
+        ArrayList<Integer> candidates = new ArrayList<Integer>();
+
+        for (int seed = 0; seed < triCount; ++seed) {
+            if (assigned[seed]) continue;
+
+            int offset = ordered;
+            Vector3 axisSum = Vector3.ZERO;
+            candidates.clear();
+            candidates.add(seed);
+            queued[seed] = true;
+
+            while (!candidates.isEmpty() && ordered - offset < MAX_TRIANGLES) {
+                // Pick the candidate facing closest to the meshlet so far.
+                Vector3 axis = axisSum.normalizeOrZero();
+                int best = 0;
+                float bestDot = -2.0f;
+                for (int c = 0; c < candidates.size(); ++c) {
+                    float d = normals[candidates.get(c)].dot(axis);
+                    if (d > bestDot) {
+                        bestDot = d;
+                        best = c;
+                    }
+                }
+
+                // Stop early once big enough if the meshlet starts to bend.
+                if (ordered - offset >= MIN_TRIANGLES && bestDot < GROW_COS) {
+                    break;
+                }
+
+                // Add the triangle to the meshlet.
+                int tri = candidates.remove(best);
+                assigned[tri] = true;
+                order[ordered++] = tri;
+                axisSum = axisSum.add(normals[tri]);
+
+                // Queue unassigned neighbours.
+                for (int k = 0; k < 3; ++k) {
+                    int id = ids[tri * 3 + k];
+                    for (int a = adjStart[id]; a < adjStart[id + 1]; ++a) {
+                        int n = adjTris[a];
+                        if (!assigned[n] && !queued[n]) {
+                            queued[n] = true;
+                            candidates.add(n);
+                        }
+                    }
+                }
+            }
+
+            // Release leftover candidates for later meshlets.
+            for (int c = 0; c < candidates.size(); ++c) {
+                queued[candidates.get(c)] = false;
+            }
+
+            meshlets.add(
+                bound(
+                    vertices, indices, normals, order, offset,
+                    ordered - offset));
+        }
+
+        // Copy the triangle indices into meshlet order.
+        m_indices = new int[triCount * 3];
+        for (int i = 0; i < triCount; ++i) {
+            for (int k = 0; k < 3; ++k) {
+                m_indices[i * 3 + k] = indices[order[i] * 3 + k];
+            }
+        }
+        m_meshlets = meshlets.toArray(new Meshlet[meshlets.size()]);
+    }
+
+    /**
+     * Read the position of a vertex from interleaved vertex data.
+     * @param vertices The interleaved vertex data.
+     * @param v The vertex index.
+     * @return The vertex position.
+     */
+    static Vector3 position(float[] vertices, int v) {
+        int base = v * MeshResource.VERTEX_STRIDE;
+        return new Vector3(
+            vertices[base], vertices[base + 1], vertices[base + 2]);
+    }
+
+    /**
+     * Compute the outward facing normal of a triangle, as the rasterizer
+     * does for lighting.
+     * @param a The first vertex.
+     * @param b The second vertex.
+     * @param c The third vertex.
+     * @return The normalized face normal.
+     */
+    static Vector3 faceNormal(Vector3 a, Vector3 b, Vector3 c) {
+        // Scaling the edges does not change the cross product's direction,
+        // so the edges are left unnormalized to survive degenerate triangles.
+        return b.sub(a).cross(c.sub(a)).normalizeOrZero();
+    }
+
+    /**
+     * Compute the bounding sphere and normal cone of a triangle range.
+     * @param vertices The interleaved vertex data.
+     * @param indices The original triangle indices.
+     * @param normals The face normals.
+     * @param order The triangle order.
+     * @param offset The first triangle (in order) of the meshlet.
+     * @param count The number of triangles in the meshlet.
+     * @return The bounded meshlet.
+     */
+    private static Meshlet bound(
+        float[] vertices,
+        int[] indices,
+        Vector3[] normals,
+        int[] order,
+        int offset,
+        int count) {
+        // Compute the bounding box of the meshlet.
+        Vector3 min = position(vertices, indices[order[offset] * 3]);
+        Vector3 max = min;
+        Vector3 axisSum = Vector3.ZERO;
+        for (int i = offset; i < offset + count; ++i) {
+            for (int k = 0; k < 3; ++k) {
+                Vector3 p = position(vertices, indices[order[i] * 3 + k]);
+                min = min.min(p);
+                max = max.max(p);
+            }
+            axisSum = axisSum.add(normals[order[i]]);
+        }
+
+        // Sphere centered on the box, enclosing every vert.
+        Vector3 center = min.lerp(max, 0.5f);
+        float radius = 0.0f;
+        for (int i = offset; i < offset + count; ++i) {
+            for (int k = 0; k < 3; ++k) {
+                Vector3 p = position(vertices, indices[order[i] * 3 + k]);
+                radius = Math.max(radius, center.distance(p));
+            }
+        }
+
+        // Cone around the average normal, widened to fit every normal.
+        Vector3 axis = axisSum.normalizeOrZero();
+        float minDot = 1.0f;
+        for (int i = offset; i < offset + count; ++i) {
+            minDot = Math.min(minDot, normals[order[i]].dot(axis));
+        }
+        float cutoff = Meshlet.NO_CONE;
+        if (minDot > 0.0f && axis.length() > 0.0f) {
+            cutoff = (float) Math.sqrt(1.0f - minDot * minDot);
+        }
+
+        return new Meshlet(offset, count, center, radius, axis, cutoff);
+    }
+
+    /**
+     * Get the triangle indices in meshlet order.
+     * @return The reordered triangle indices.
+     */
+    public int[] getIndices() {
+        return m_indices;
+    }
+
+    /**
+     * Get the generated meshlets.
+     * @return The meshlets, in triangle order.
+     */
+    public Meshlet[] getMeshlets() {
+        return m_meshlets;
+    }
+}
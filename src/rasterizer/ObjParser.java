@@ -0,0 +1,545 @@
+/*
+ * Luke Diamond
+ * 01/22/2018
+ * Grade 11 Final Project
+ * Mr. Patterson
+ */
+
+package rasterizer;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+
+/**
+ * Fast OBJ parser. The file is memory-mapped and split into newline-aligned
+ * chunks which are parsed in parallel into primitive arrays.
+ *
+ * Parsing takes two passes over each chunk. The first counts the v/vt/vn
+ * lines so every chunk knows how many of each come before it, which lets
+ * the second pass write attributes straight into the shared arrays and
+ * resolve relative (negative) indices without a fix-up step.
+ *
+ * Polygons with more than three verts are fan-triangulated.
+ */
+public class ObjParser {
+    // Target size of a parse chunk in bytes.
+    private static final long CHUNK_SIZE = 4L << 20;
+
+    // Powers of ten for float parsing.
+    private static final double[] POW10 = new double[39];
+    static {
+        POW10[0] = 1.0;
+        for (int i = 1; i < POW10.length; ++i) {
+            POW10[i] = POW10[i - 1] * 10.0;
+        }
+    }
+
+    // Parsed attribute data (xyz positions, uv coords, xyz normals).
+    private float[] m_positions;
+    private float[] m_texCoords;
+    private float[] m_normals;
+    // Triangle corners, three ints each (position, coord and normal index,
+    // zero-based, or -1 if missing), three corners per triangle.
+    private int[] m_corners;
+
+    /**
+     * Growable primitive int array.
+     */
+    private static class IntList {
+        int[] data = new int[1024];
+        int size = 0;
+
+        void add(int v) {
+            if (size == data.length) {
+                data = Arrays.copyOf(data, data.length * 2);
+            }
+            data[size++] = v;
+        }
+    }
+
+    /**
+     * Per-chunk parse state.
+     */
+    private static class Chunk {
+        // Byte range of the chunk within the file.
+        long start;
+        long end;
+        // Mapped chunk bytes.
+        MappedByteBuffer buffer;
+
+        // Number of v/vt/vn lines in the chunk (first pass).
+        int positionCount;
+        int texCoordCount;
+        int normalCount;
+        // Number of each attribute before the chunk.
+        int positionBase;
+        int texCoordBase;
+        int normalBase;
+
+        // Triangulated face corners (second pass).
+        IntList corners = new IntList();
+        // Current read position within the buffer.
+        int pos;
+    }
+
+    /**
+     * Parse an OBJ file from the disk.
+     * @param path The file path of the model to load.
+     * @throws IOException If the file cannot be read.
+     * @throws IllegalStateException If a face has a malformed index.
+     */
+    public ObjParser(String path) throws IOException {
+        try (RandomAccessFile file = new RandomAccessFile(path, "r");
+            FileChannel channel = file.getChannel()) {
+            Chunk[] chunks = split(channel);
+
+            // First pass: count attributes in each chunk.
+            runParallel(chunks, true);
+
+            // Prefix-sum the counts so each chunk knows where it starts.
+            int positions = 0;
+            int texCoords = 0;
+            int normals = 0;
+            for (Chunk c : chunks) {
+                c.positionBase = positions;
+                c.texCoordBase = texCoords;
+                c.normalBase = normals;
+                positions += c.positionCount;
+                texCoords += c.texCoordCount;
+                normals += c.normalCount;
+            }
+            m_positions = new float[positions * 3];
+            m_texCoords = new float[texCoords * 2];
+            m_normals = new float[normals * 3];
+
+            // Second pass: parse attributes in place and collect faces.
+            runParallel(chunks, false);
+
+            // Concatenate the face corners of every chunk.
+            int cornerCount = 0;
+            for (Chunk c : chunks) {
+                cornerCount += c.corners.size;
+            }
+            m_corners = new int[cornerCount];
+            int offset = 0;
+            for (Chunk c : chunks) {
+                System.arraycopy(
+                    c.corners.data, 0, m_corners, offset, c.corners.size);
+                offset += c.corners.size;
+            }
+        }
+    }
+
+    /**
+     * Split a file into newline-aligned chunks and map each one.
+     * @param channel The file channel to split.
+     * @return The mapped chunks, in file order.
+     * @throws IOException If the file cannot be read.
+     */
+    private static Chunk[] split(FileChannel channel) throws IOException {
+        long size = channel.size();
+        int count = (int) Math.max(1, (size + CHUNK_SIZE - 1) / CHUNK_SIZE);
+        Chunk[] chunks = new Chunk[count];
+        ByteBuffer probe = ByteBuffer.allocate(4096);
+
+        long start = 0;
+        for (int i = 0; i < count; ++i) {
+            // Move the end of the chunk forward to just past a newline.
+            long end = Math.min(size, (i + 1) * CHUNK_SIZE);
+            if (i == count - 1) end = size;
+            while (end < size) {
+                probe.clear();
+                int read = channel.read(probe, end);
+                if (read <= 0) {
+                    end = size;
+                    break;
+                }
+                int nl = -1;
+                for (int b = 0; b < read; ++b) {
+                    if (probe.get(b) == '\n') {
+                        nl = b;
+                        break;
+                    }
+                }
+                if (nl >= 0) {
+                    end += nl + 1;
+                    break;
+                }
+                end += read;
+            }
+            end = Math.max(end, start);
+
+            Chunk c = new Chunk();
+            c.start = start;
+            c.end = end;
+            c.buffer =
+                channel.map(FileChannel.MapMode.READ_ONLY, start, end - start);
+            chunks[i] = c;
+            start = end;
+        }
+        return chunks;
+    }
+
+    /**
+     * Run one parse pass over every chunk using one thread per CPU core.
+     * @param chunks The chunks to parse.
+     * @param count True for the counting pass, false for the parse pass.
+     * @throws RuntimeException The first exception thrown while parsing a
+     * chunk, once every thread has finished.
+     */
+    private void runParallel(final Chunk[] chunks, final boolean count) {
+        int threadCount =
+            Math.min(chunks.length, Runtime.getRuntime().availableProcessors());
+        Thread[] threads = new Thread[threadCount];
+        final int[] next = { 0 };
+        final RuntimeException[] failure = { null };
+        for (int i = 0; i < threadCount; ++i) {
+            threads[i] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    for (;;) {
+                        // Take the next unparsed chunk.
+                        Chunk c;
+                        synchronized (next) {
+                            if (next[0] >= chunks.length) return;
+                            c = chunks[next[0]++];
+                        }
+                        try {
+                            if (count) {
+                                countChunk(c);
+                            } else {
+                                parseChunk(c);
+                            }
+                        } catch (RuntimeException e) {
+                            // Keep the first failure to rethrow.
+                            synchronized (failure) {
+                                if (failure[0] == null) failure[0] = e;
+                            }
+                        }
+                    }
+                }
+            });
+            threads[i].start();
+        }
+        // Wait for every thread to finish.
+        for (Thread t : threads) {
+            try {
+                t.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        if (failure[0] != null) throw failure[0];
+    }
+
+    /**
+     * Count the v/vt/vn lines in a chunk.
+     * @param c The chunk to count.
+     */
+    private static void countChunk(Chunk c) {
+        MappedByteBuffer b = c.buffer;
+        int limit = b.limit();
+        int i = 0;
+        while (i < limit) {
+            // Classify the line from its first characters.
+            if (b.get(i) == 'v' && i + 1 < limit) {
+                byte n = b.get(i + 1);
+                if (n == ' ' || n == '\t') {
+                    ++c.positionCount;
+                } else if (n == 't' && i + 2 < limit && isBlank(b.get(i + 2))) {
+                    ++c.texCoordCount;
+                } else if (n == 'n' && i + 2 < limit && isBlank(b.get(i + 2))) {
+                    ++c.normalCount;
+                }
+            }
+            // Skip to the start of the next line.
+            while (i < limit && b.get(i) != '\n') ++i;
+            ++i;
+        }
+    }
+
+    /**
+     * Parse the attributes and faces of a chunk.
+     * @param c The chunk to parse.
+     */
+    private void parseChunk(Chunk c) {
+        MappedByteBuffer b = c.buffer;
+        int limit = b.limit();
+        // Running attribute counts (global indices of the next attribute).
+        int positions = c.positionBase;
+        int texCoords = c.texCoordBase;
+        int normals = c.normalBase;
+        // Corners of the current face (v/vt/vn triples).
+        IntList face = new IntList();
+
+        c.pos = 0;
+        while (c.pos < limit) {
+            byte first = b.get(c.pos);
+            byte second = c.pos + 1 < limit ? b.get(c.pos + 1) : (byte) '\n';
+
+            if (first == 'v' && isBlank(second)) {
+                // Vertex position.
+                c.pos += 2;
+                m_positions[positions * 3 + 0] = parseFloat(c);
+                m_positions[positions * 3 + 1] = parseFloat(c);
+                m_positions[positions * 3 + 2] = parseFloat(c);
+                ++positions;
+            } else if (
+                first == 'v'
+                && second == 't'
+                && c.pos + 2 < limit
+                && isBlank(b.get(c.pos + 2))) {
+                // Texture coordinate (a missing v defaults to 0).
+                c.pos += 3;
+                m_texCoords[texCoords * 2 + 0] = parseFloat(c);
+                m_texCoords[texCoords * 2 + 1] = parseFloat(c);
+                ++texCoords;
+            } else if (
+                first == 'v'
+                && second == 'n'
+                && c.pos + 2 < limit
+                && isBlank(b.get(c.pos + 2))) {
+                // Vertex normal.
+                c.pos += 3;
+                m_normals[normals * 3 + 0] = parseFloat(c);
+                m_normals[normals * 3 + 1] = parseFloat(c);
+                m_normals[normals * 3 + 2] = parseFloat(c);
+                ++normals;
+            } else if (first == 'f' && isBlank(second)) {
+                // Face: read every v[/vt][/vn] corner on the line.
+                c.pos += 2;
+                face.size = 0;
+                for (;;) {
+                    skipBlanks(c);
+                    if (c.pos >= limit || isLineEnd(b.get(c.pos))) break;
+                    face.add(parseIndex(c, positions));
+                    int t = -1;
+                    int n = -1;
+                    if (c.pos < limit && b.get(c.pos) == '/') {
+                        ++c.pos;
+                        if (c.pos < limit && b.get(c.pos) != '/') {
+                            t = parseIndex(c, texCoords);
+                        }
+                        if (c.pos < limit && b.get(c.pos) == '/') {
+                            ++c.pos;
+                            n = parseIndex(c, normals);
+                        }
+                    }
+                    face.add(t);
+                    face.add(n);
+                    // Skip anything else attached to the corner.
+                    while (
+                        c.pos < limit
+                        && !isBlank(b.get(c.pos))
+                        && !isLineEnd(b.get(c.pos))) {
+                        ++c.pos;
+                    }
+                }
+
+                // Fan-triangulate the polygon around its first corner.
+                int cornerCount = face.size / 3;
+                for (int k = 1; k + 1 < cornerCount; ++k) {
+                    addCorner(c.corners, face, 0);
+                    addCorner(c.corners, face, k);
+                    addCorner(c.corners, face, k + 1);
+                }
+            }
+
+            // Skip to the start of the next line.
+            while (c.pos < limit && b.get(c.pos) != '\n') ++c.pos;
+            ++c.pos;
+        }
+    }
+
+    /**
+     * Copy a face corner into the triangle corner list.
+     * @param out The triangle corner list.
+     * @param face The current face's corners.
+     * @param k The corner to copy.
+     */
+    private static void addCorner(IntList out, IntList face, int k) {
+        out.add(face.data[k * 3 + 0]);
+        out.add(face.data[k * 3 + 1]);
+        out.add(face.data[k * 3 + 2]);
+    }
+
+    /**
+     * Parse an OBJ index and convert it into a zero-based index.
+     * @param c The chunk being parsed.
+     * @param count The number of attributes defined so far.
+     * @return The zero-based index.
+     * @throws IllegalStateException If the index is missing, zero or
+     * counts back past the first attribute.
+     */
+    private static int parseIndex(Chunk c, int count) {
+        int start = c.pos;
+        int index = parseInt(c);
+        // Negative indices count back from the latest attribute.
+        int resolved = index < 0 ? count + index : index - 1;
+        // OBJ indices start at 1, and -1 would read as a missing
+        // attribute.
+        if (resolved < 0) {
+            throw new IllegalStateException(
+                "Malformed OBJ index at byte " + (c.start + start));
+        }
+        return resolved;
+    }
+
+    /**
+     * Check whether a byte is a space or tab.
+     * @param c The byte to check.
+     * @return True for blanks.
+     */
+    private static boolean isBlank(byte c) {
+        return c == ' ' || c == '\t';
+    }
+
+    /**
+     * Check whether a byte ends a line.
+     * @param c The byte to check.
+     * @return True for line ends and comments.
+     */
+    private static boolean isLineEnd(byte c) {
+        return c == '\n' || c == '\r' || c == '#';
+    }
+
+    /**
+     * Skip spaces and tabs.
+     * @param c The chunk being parsed.
+     */
+    private static void skipBlanks(Chunk c) {
+        while (c.pos < c.buffer.limit() && isBlank(c.buffer.get(c.pos))) {
+            ++c.pos;
+        }
+    }
+
+    /**
+     * Parse a signed decimal integer.
+     * @param c The chunk being parsed.
+     * @return The parsed integer.
+     */
+    private static int parseInt(Chunk c) {
+        MappedByteBuffer b = c.buffer;
+        int limit = b.limit();
+        boolean negative = false;
+        if (c.pos < limit && b.get(c.pos) == '-') {
+            negative = true;
+            ++c.pos;
+        } else if (c.pos < limit && b.get(c.pos) == '+') {
+            ++c.pos;
+        }
+        int start = c.pos;
+        int value = 0;
+        while (c.pos < limit) {
+            int d = b.get(c.pos) - '0';
+            if (d < 0 || d > 9) break;
+            value = value * 10 + d;
+            ++c.pos;
+        }
+        if (c.pos == start) {
+            throw new IllegalStateException(
+                "Malformed OBJ index at byte " + (c.start + start));
+        }
+        return negative ? -value : value;
+    }
+
+    /**
+     * Parse a decimal float (with optional exponent), skipping leading
+     * blanks. Missing values parse as zero.
+     * @param c The chunk being parsed.
+     * @return The parsed float.
+     */
+    private static float parseFloat(Chunk c) {
+        skipBlanks(c);
+        MappedByteBuffer b = c.buffer;
+        int limit = b.limit();
+        boolean negative = false;
+        if (c.pos < limit && b.get(c.pos) == '-') {
+            negative = true;
+            ++c.pos;
+        } else if (c.pos < limit && b.get(c.pos) == '+') {
+            ++c.pos;
+        }
+
+        // Accumulate up to 18 significant digits as an integer mantissa.
+        long mantissa = 0;
+        int digits = 0;
+        int exponent = 0;
+        while (c.pos < limit) {
+            int d = b.get(c.pos) - '0';
+            if (d < 0 || d > 9) break;
+            if (digits < 18) {
+                mantissa = mantissa * 10 + d;
+                if (mantissa != 0) ++digits;
+            } else {
+                ++exponent;
+            }
+            ++c.pos;
+        }
+        if (c.pos < limit && b.get(c.pos) == '.') {
+            ++c.pos;
+            while (c.pos < limit) {
+                int d = b.get(c.pos) - '0';
+                if (d < 0 || d > 9) break;
+                if (digits < 18) {
+                    mantissa = mantissa * 10 + d;
+                    if (mantissa != 0) ++digits;
+                    --exponent;
+                }
+                ++c.pos;
+            }
+        }
+        if (c.pos < limit && (b.get(c.pos) == 'e' || b.get(c.pos) == 'E')) {
+            ++c.pos;
+            exponent += parseInt(c);
+        }
+
+        // Scale the mantissa by the decimal exponent.
+        double value = mantissa;
+        if (exponent < 0) {
+            value /= -exponent < POW10.length
+                ? POW10[-exponent] : Math.pow(10.0, -exponent);
+        } else if (exponent > 0) {
+            value *= exponent < POW10.length
+                ? POW10[exponent] : Math.pow(10.0, exponent);
+        }
+        return (float) (negative ? -value : value);
+    }
+
+    /**
+     * Get the parsed vertex positions.
+     * @return The positions (x/y/z per vertex).
+     */
+    public float[] getPositions() {
+        return m_positions;
+    }
+
+    /**
+     * Get the parsed texture coordinates.
+     * @return The texture coordinates (u/v per coordinate).
+     */
+    public float[] getTexCoords() {
+        return m_texCoords;
+    }
+
+    /**
+     * Get the parsed vertex normals.
+     * @return The normals (x/y/z per normal).
+     */
+    public float[] getNormals() {
+        return m_normals;
+    }
+
+    /**
+     * Get the triangulated face corners.
+     * @return Three ints per corner (position, coordinate and normal index,
+     * zero-based or -1 if missing), three corners per triangle.
+     */
+    public int[] getCorners() {
+        return m_corners;
+    }
+}
@@ -0,0 +1,306 @@
+/*
+ * Luke Diamond
+ * 01/22/2018
+ * Grade 11 Final Project
+ * Mr. Patterson
+ */
+
+package rasterizer;
+
+import java.awt.Canvas;
+import java.awt.Graphics;
+import java.awt.Toolkit;
+import java.awt.image.BufferStrategy;
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Active rendering presenter. A render thread renders frames of a panel as
+ * fast as the frame cap allows, and a present thread shows the newest
+ * finished frame on a canvas through a BufferStrategy (whose buffers are
+ * accelerated images where the platform supports it), without going
+ * through Swing's repaint queue.
+ *
+ * Frames are handed over through three buffers: the render thread fills
+ * one, the newest finished frame waits in a shared slot, and the present
+ * thread shows the third. Either thread swaps its buffer with the slot
+ * without waiting for the other, so rendering never stalls on
+ * presentation; a frame still waiting when the next one finishes is
+ * dropped.
+ */
+public class Presenter {
+    // Frame cap meaning frames are rendered back to back.
+    public static final int UNCAPPED = 0;
+    // Time before a deadline spent yielding rather than sleeping, since a
+    // sleep may overshoot by about a scheduler tick.
+    private static final long SPIN_NANOS = 2000000L;
+
+    /**
+     * A finished frame: its pixels and debug info.
+     */
+    private static class Frame {
+        BufferedImage image;
+        int[] pixels;
+        String[] lines = new String[0];
+        // Whether the frame was rendered after the present thread last
+        // took it.
+        boolean fresh = false;
+
+        /**
+         * Make the image the given size, keeping it if it already is.
+         * @param width The width in pixels.
+         * @param height The height in pixels.
+         */
+        void resize(int width, int height) {
+            if (
+                image != null
+                && image.getWidth() == width
+                && image.getHeight() == height) {
+                return;
+            }
+            image =
+                new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+            pixels =
+                ((DataBufferInt) image.getRaster().getDataBuffer()).getData();
+        }
+    }
+
+    // Panel rendering the frames, and canvas showing them.
+    private final RasterPanel m_panel;
+    private final Canvas m_canvas;
+    private BufferStrategy m_strategy;
+
+    // Frame being rendered, newest finished frame and frame being shown.
+    private Frame m_write = new Frame();
+    private final AtomicReference<Frame> m_ready =
+        new AtomicReference<Frame>(new Frame());
+    private Frame m_read = new Frame();
+    // Wakes the present thread when a frame finishes.
+    private final Object m_lock = new Object();
+
+    // Time between frames in nanoseconds (0 if uncapped).
+    private volatile long m_period = 0;
+    private volatile boolean m_running = false;
+    private Thread m_renderThread;
+    private Thread m_presentThread;
+
+    // Statistics.
+    private volatile long m_rendered = 0;
+    private volatile long m_presented = 0;
+    private volatile long m_dropped = 0;
+
+    /**
+     * Construct a presenter.
+     * @param panel The panel to render frames of.
+     * @param canvas The canvas to show frames on (it must be displayable
+     * when the presenter starts).
+     */
+    public Presenter(RasterPanel panel, Canvas canvas) {
+        m_panel = panel;
+        m_canvas = canvas;
+    }
+
+    /**
+     * Start rendering and presenting frames.
+     */
+    public void start() {
+        if (m_running) return;
+        m_canvas.setIgnoreRepaint(true);
+        m_canvas.createBufferStrategy(2);
+        m_strategy = m_canvas.getBufferStrategy();
+        m_running = true;
+
+        m_renderThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                renderLoop();
+            }
+        }, "Render");
+        m_presentThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                presentLoop();
+            }
+        }, "Present");
+        m_renderThread.setDaemon(true);
+        m_presentThread.setDaemon(true);
+        m_renderThread.start();
+        m_presentThread.start();
+    }
+
+    /**
+     * Stop rendering and presenting frames, waiting for both threads to
+     * finish.
+     */
+    public void stop() {
+        if (!m_running) return;
+        m_running = false;
+        m_renderThread.interrupt();
+        m_presentThread.interrupt();
+        try {
+            m_renderThread.join();
+            m_presentThread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Set the highest rate to render frames at.
+     * @param fps The frames per second, or UNCAPPED.
+     */
+    public void setFrameCap(int fps) {
+        m_period = fps > 0 ? 1000000000L / fps : 0;
+    }
+
+    /**
+     * Get the highest rate frames are rendered at.
+     * @return The frames per second, or UNCAPPED.
+     */
+    public int getFrameCap() {
+        long period = m_period;
+        return period > 0 ? (int) Math.round(1E9 / period) : UNCAPPED;
+    }
+
+    /**
+     * Render frames until stopped, pacing them to the frame cap.
+     */
+    private void renderLoop() {
+        long next = System.nanoTime();
+        Profiler profiler = m_panel.getProfiler();
+        while (m_running) {
+            m_panel.renderFrame();
+
+            // Copy the frame out, so the rasterizer can start the next.
+            long start = profiler.begin();
+            Rasterizer r = m_panel.getRasterizer();
+            Frame f = m_write;
+            f.resize(r.getWidth(), r.getHeight());
+            r.copyColor(f.pixels);
+            f.lines = m_panel.getDebugLines();
+            f.fresh = true;
+            // Publish it, taking back the frame it replaces.
+            m_write = m_ready.getAndSet(f);
+            if (m_write.fresh) {
+                m_write.fresh = false;
+                ++m_dropped;
+            }
+            ++m_rendered;
+            synchronized (m_lock) {
+                m_lock.notifyAll();
+            }
+            profiler.end("Hand off", start);
+
+            long period = m_period;
+            if (period > 0) {
+                // Wait for the frame's slot, without trying to catch up
+                // after falling behind.
+                next = Math.max(next + period, System.nanoTime());
+                start = profiler.begin();
+                try {
+                    sleepUntil(next);
+                } catch (InterruptedException e) {
+                    return;
+                }
+                profiler.end("Frame cap", start);
+            }
+        }
+    }
+
+    /**
+     * Show finished frames until stopped.
+     */
+    private void presentLoop() {
+        Profiler profiler = m_panel.getProfiler();
+        while (m_running) {
+            long start = profiler.begin();
+            synchronized (m_lock) {
+                while (!m_ready.get().fresh) {
+                    try {
+                        m_lock.wait();
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                }
+            }
+            profiler.end("Wait for frame", start);
+            // Take the newest frame, giving back the last one shown.
+            start = profiler.begin();
+            m_read = m_ready.getAndSet(m_read);
+            m_read.fresh = false;
+            show(m_read);
+            ++m_presented;
+            profiler.end("Present", start);
+        }
+    }
+
+    /**
+     * Draw a frame to the canvas and flip it to the screen, redrawing it
+     * if the buffers' contents are lost meanwhile.
+     * @param f The frame to show.
+     */
+    private void show(Frame f) {
+        do {
+            do {
+                Graphics g = m_strategy.getDrawGraphics();
+                try {
+                    m_panel.drawFrame(
+                        g,
+                        f.image,
+                        f.lines,
+                        m_canvas.getWidth(),
+                        m_canvas.getHeight());
+                } finally {
+                    g.dispose();
+                }
+            } while (m_strategy.contentsRestored());
+            m_strategy.show();
+        } while (m_strategy.contentsLost());
+        // Flush the window system's queue so frames are not batched.
+        Toolkit.getDefaultToolkit().sync();
+    }
+
+    /**
+     * Wait until a time, sleeping while it is far off and yielding just
+     * before it.
+     * @param deadline The time to wait for (System.nanoTime).
+     * @throws InterruptedException If the thread is interrupted.
+     */
+    private static void sleepUntil(long deadline) throws InterruptedException {
+        for (;;) {
+            long remaining = deadline - System.nanoTime();
+            if (remaining <= 0) return;
+            if (remaining > SPIN_NANOS) {
+                Thread.sleep((remaining - SPIN_NANOS) / 1000000L);
+            } else {
+                Thread.yield();
+            }
+        }
+    }
+
+    /**
+     * Get the number of frames rendered.
+     * @return The rendered frame count.
+     */
+    public long getRenderedFrames() {
+        return m_rendered;
+    }
+
+    /**
+     * Get the number of frames shown.
+     * @return The presented frame count.
+     */
+    public long getPresentedFrames() {
+        return m_presented;
+    }
+
+    /**
+     * Get the number of frames replaced by a newer frame before they could
+     * be shown.
+     * @return The dropped frame count.
+     */
+    public long getDroppedFrames() {
+        return m_dropped;
+    }
+}
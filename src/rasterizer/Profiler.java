@@ -0,0 +1,268 @@
+/*
+ * Luke Diamond
+ * 01/22/2018
+ * Grade 11 Final Project
+ * Mr. Patterson
+ */
+
+package rasterizer;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * Timeline profiler. Pipeline stages and worker tasks are timed as events
+ * (a name, a start and a duration) recorded into a ring buffer owned by the
+ * thread that ran them, so recording takes no locks and each thread keeps
+ * its most recent events. The timeline can be written as Chrome trace JSON
+ * (loaded by chrome://tracing or ui.perfetto.dev), with one track per
+ * thread.
+ *
+ * Profiling is off until enabled; while off, timing an event costs a
+ * single field read.
+ */
+public class Profiler {
+    // Default number of events each thread keeps.
+    public static final int DEFAULT_CAPACITY = 1 << 15;
+
+    /**
+     * The recorded events of a thread. Only the owning thread writes to
+     * it.
+     */
+    private static class Ring {
+        final String thread;
+        final int id;
+        final String[] names;
+        final long[] starts;
+        final long[] durations;
+        final int[] frames;
+        final int[] indices;
+        // Number of events ever recorded (the newest are kept).
+        volatile long count = 0;
+
+        /**
+         * Construct a ring for the calling thread.
+         * @param capacity The number of events kept (a power of two).
+         * @param id_ The track of the thread in exported traces.
+         */
+        Ring(int capacity, int id_) {
+            thread = Thread.currentThread().getName();
+            id = id_;
+            names = new String[capacity];
+            starts = new long[capacity];
+            durations = new long[capacity];
+            frames = new int[capacity];
+            indices = new int[capacity];
+        }
+    }
+
+    // Events kept per thread (a power of two).
+    private final int m_capacity;
+    // Rings of every thread that recorded an event.
+    private final CopyOnWriteArrayList<Ring> m_rings =
+        new CopyOnWriteArrayList<Ring>();
+    private final ThreadLocal<Ring> m_ring;
+    // Time of the trace's origin, and of the last clear (events before it
+    // are not exported).
+    private final long m_origin = System.nanoTime();
+    private volatile long m_clearTime = m_origin;
+    // Whether events are recorded.
+    private volatile boolean m_enabled = false;
+    // Number of the current frame.
+    private volatile int m_frame = 0;
+
+    /**
+     * Construct a profiler keeping DEFAULT_CAPACITY events per thread.
+     */
+    public Profiler() {
+        this(DEFAULT_CAPACITY);
+    }
+
+    /**
+     * Construct a profiler.
+     * @param capacity The number of events kept per thread (rounded up to
+     * a power of two).
+     */
+    public Profiler(int capacity) {
+        m_capacity = Integer.highestOneBit(Math.max(capacity, 2) * 2 - 1);
+        m_ring = ThreadLocal.withInitial(() -> {
+            Ring ring;
+            synchronized (m_rings) {
+                ring = new Ring(m_capacity, m_rings.size() + 1);
+                m_rings.add(ring);
+            }
+            return ring;
+        });
+    }
+
+    /**
+     * Set whether events are recorded.
+     * @param enabled True to record events.
+     */
+    public void setEnabled(boolean enabled) {
+        m_enabled = enabled;
+    }
+
+    /**
+     * Get whether events are recorded.
+     * @return True if events are recorded.
+     */
+    public boolean isEnabled() {
+        return m_enabled;
+    }
+
+    /**
+     * Forget the events recorded so far.
+     */
+    public void clear() {
+        m_clearTime = System.nanoTime();
+    }
+
+    /**
+     * Start a new frame. Events are tagged with the frame they end in.
+     */
+    public void nextFrame() {
+        ++m_frame;
+    }
+
+    /**
+     * Get the number of the current frame.
+     * @return The frame number.
+     */
+    public int getFrame() {
+        return m_frame;
+    }
+
+    /**
+     * Start timing an event.
+     * @return The start time to pass to end, or 0 if profiling is off.
+     */
+    public long begin() {
+        return m_enabled ? System.nanoTime() : 0;
+    }
+
+    /**
+     * Finish timing an event and record it.
+     * @param name The name of the event (a stage or task).
+     * @param start The time returned by begin.
+     */
+    public void end(String name, long start) {
+        end(name, start, -1);
+    }
+
+    /**
+     * Finish timing an event and record it.
+     * @param name The name of the event (a stage or task).
+     * @param start The time returned by begin.
+     * @param index The item the event worked on (for example a tile or
+     * light index), or -1.
+     */
+    public void end(String name, long start, int index) {
+        if (start == 0) return;
+        long now = System.nanoTime();
+        Ring r = m_ring.get();
+        long count = r.count;
+        int i = (int) count & (m_capacity - 1);
+        r.names[i] = name;
+        r.starts[i] = start;
+        r.durations[i] = now - start;
+        r.frames[i] = m_frame;
+        r.indices[i] = index;
+        // Publish the event.
+        r.count = count + 1;
+    }
+
+    /**
+     * Get the number of events kept.
+     * @return The number of events that would be exported.
+     */
+    public int getEventCount() {
+        int events = 0;
+        long clear = m_clearTime;
+        for (Ring r : m_rings) {
+            long count = r.count;
+            for (long e = Math.max(count - m_capacity, 0); e < count; ++e) {
+                if (r.starts[(int) e & (m_capacity - 1)] >= clear) ++events;
+            }
+        }
+        return events;
+    }
+
+    /**
+     * Write the kept events to a file as a Chrome trace.
+     * @param file The file to write.
+     * @throws IOException If the file cannot be written.
+     */
+    public void writeTrace(File file) throws IOException {
+        Writer w = new BufferedWriter(new FileWriter(file));
+        try {
+            writeTrace(w);
+        } finally {
+            w.close();
+        }
+    }
+
+    /**
+     * Write the kept events as a Chrome trace (JSON object format). Events
+     * recorded while writing may be torn, so disable profiling first for
+     * an exact trace.
+     * @param w The writer to write to.
+     * @throws IOException If the writer fails.
+     */
+    public void writeTrace(Writer w) throws IOException {
+        long clear = m_clearTime;
+        w.write("{\"displayTimeUnit\":\"ms\",\"traceEvents\":[");
+        boolean first = true;
+        for (Ring r : m_rings) {
+            // Name the thread's track, ordered by first use.
+            if (!first) w.write(',');
+            first = false;
+            w.write(
+                "\n{\"name\":\"thread_name\",\"ph\":\"M\",\"pid\":1,\"tid\":"
+                + r.id + ",\"args\":{\"name\":\"" + escape(r.thread)
+                + "\"}},\n{\"name\":\"thread_sort_index\",\"ph\":\"M\","
+                + "\"pid\":1,\"tid\":" + r.id + ",\"args\":{\"sort_index\":"
+                + r.id + "}}");
+
+            long count = r.count;
+            for (long e = Math.max(count - m_capacity, 0); e < count; ++e) {
+                int i = (int) e & (m_capacity - 1);
+                if (r.starts[i] < clear) continue;
+                // Complete events, with times in microseconds.
+                w.write(
+                    ",\n{\"name\":\"" + escape(r.names[i])
+                    + "\",\"ph\":\"X\",\"pid\":1,\"tid\":" + r.id
+                    + ",\"ts\":" + (r.starts[i] - m_origin) / 1000.0
+                    + ",\"dur\":" + r.durations[i] / 1000.0
+                    + ",\"args\":{\"frame\":" + r.frames[i]
+                    + (r.indices[i] >= 0 ? ",\"index\":" + r.indices[i] : "")
+                    + "}}");
+            }
+        }
+        w.write("\n]}\n");
+    }
+
+    /**
+     * Escape a string for a JSON string literal.
+     * @param s The string.
+     * @return The escaped string.
+     */
+    private static String escape(String s) {
+        StringBuilder b = new StringBuilder(s.length());
+        for (int i = 0; i < s.length(); ++i) {
+            char c = s.charAt(i);
+            if (c == '"' || c == '\\') {
+                b.append('\\').append(c);
+            } else if (c < 0x20) {
+                b.append(String.format("\\u%04x", (int) c));
+            } else {
+                b.append(c);
+            }
+        }
+        return b.toString();
+    }
+}
@@ -7,18 +7,15 @@
 
 package rasterizer;
 
-import javax.imageio.ImageIO;
-import java.awt.image.BufferedImage;
 import java.awt.Graphics;
 import java.awt.Color;
 import java.awt.Font;
 import javax.swing.JPanel;
 import java.awt.Point;
+import java.awt.image.BufferedImage;
 import java.util.HashMap;
 import java.util.ArrayList;
-import java.util.ArrayDeque;
-import java.io.IOException;
-import java.io.File;
+import java.util.Arrays;
 
 import rasterizer.Vector2;
 import rasterizer.Mesh;
@@ -27,36 +24,71 @@ import rasterizer.Mesh;
  * Raster panel, responsible for all rasterization/drawing to screen.
  */
 public class RasterPanel extends JPanel {
-    // Back buffers for rendering to/drawing from.
-    private volatile BufferedImage m_backBuffer;
-    private volatile float[][] m_depthBuffer;
-
-
-    // Render thread state.
-    private Thread[] m_renderThreads;
-    private int m_threadCount;
-    private volatile ArrayDeque<DrawAction> m_drawQueue;
-    private volatile Integer m_drawCount = 0;
+    // Rasterizer (owns the back buffers and render threads).
+    private Rasterizer m_rasterizer;
+    // Chooses the render resolution from recent frame times.
+    private ResolutionController m_resolution;
+    // Recorder finished frames are captured to, or null.
+    private volatile FrameRecorder m_recorder;
+    // Times the stages of each frame (off until enabled).
+    private Profiler m_profiler = new Profiler();
+    // Cost shown as a heatmap, and the cost shown at full heat.
+    private volatile Rasterizer.Heatmap m_heatmap = Rasterizer.Heatmap.OFF;
+    private volatile int m_heatScale = 1;
+    // Depth format and direction of the next frame.
+    private volatile Rasterizer.DepthFormat m_depthFormat =
+        Rasterizer.DepthFormat.FLOAT32;
+    private volatile boolean m_reversedDepth = false;
 
     // Debug info.
     private Font m_debugFont;
-    private volatile Integer m_drawnFragments = 0;
-    private volatile Integer m_discardedFragments = 0;
-    private volatile Integer m_discardedPolys = 0;
-    private volatile Integer m_occludedFragments = 0;
+    private int m_culledMeshlets = 0;
+    private int m_shadowUpdates = 0;
     private Integer m_FPS = 0;
+    private String[] m_debugLines = new String[0];
 
     // Camera state.
     private Vector3 m_cameraPosition;
     private Vector3 m_cameraRotation;
 
-    // Texture array (for sampler textuers).
-    BufferedImage m_textures[];
-    // Mesh array.
-    Mesh m_meshes[];
-
-    // Current mesh index.
-    private int m_meshIndex = 0;
+    // Texture manager (for sampler textures).
+    private TextureManager m_textureManager;
+    // Filtering mode used when sampling textures.
+    private Texture.Filter m_textureFilter = Texture.Filter.TRILINEAR;
+    // Meshes of the scene (added and removed from any thread), and the
+    // transformation matrix of each mesh this frame.
+    private Scene m_scene = new Scene();
+    private Matrix4[] m_models = new Matrix4[0];
+    // Point lights.
+    private ArrayList<Light> m_lights = new ArrayList<Light>();
+    // Instance batches, and the state of each when it was last drawn.
+    private ArrayList<InstanceBatch> m_batches =
+        new ArrayList<InstanceBatch>();
+    private ArrayList<DrawnState> m_batchDrawn = new ArrayList<DrawnState>();
+    // Visible instances of the batch being culled, a run per culling part
+    // (starting at the part's first instance), and the length of each run.
+    private int[] m_visibleInstances = new int[0];
+    private int[] m_partCounts = new int[0];
+    // Instances drawn last frame, of the total.
+    private int m_drawnInstances = 0;
+    private int m_instanceCount = 0;
+    // Depth rasterizer for rendering shadow maps.
+    private DepthRasterizer m_depthRasterizer = new DepthRasterizer();
+
+    // Whether only the screen regions that changed are re-rendered.
+    private boolean m_incremental = false;
+    // State of each mesh when it was last drawn, by scene slot, and the
+    // version of the scene then.
+    private DrawnState[] m_drawn = new DrawnState[0];
+    private int m_sceneVersion = 0;
+    // Camera, render size and lights of the last frame (position, color,
+    // intensity and range of each light, and its shadow map).
+    private Matrix4 m_lastView;
+    private Matrix4 m_lastProj;
+    private int m_lastWidth;
+    private int m_lastHeight;
+    private float[] m_lastLights = new float[0];
+    private ShadowMap[] m_lastShadows = new ShadowMap[0];
 
     // Screen dimensions.
     private int m_screenWidth;
@@ -65,285 +97,254 @@ public class RasterPanel extends JPanel {
     // Current update listener.
     IUpdateListener m_listener;
 
-    // Resolution divisor (for low-res upscaling, improves FPS).
-    final int RES_DIVISOR = 2;
-    // Iteration scale (creates holes in mesh when the camera is close,
-    // but greatly improves FPS).
-    final float ITER_SCALE = 0.5f;
+    /**
+     * State of a mesh when it was last drawn, for finding the meshes that
+     * changed between frames.
+     */
+    private static class DrawnState {
+        // Handle of the mesh, and its transform and transformation matrix
+        // this frame.
+        int handle;
+        Mesh.Transform transform;
+        Matrix4 model;
+        int revision;
+        int lod;
+        Texture texture;
+        // Pixel bounds of the mesh and of the shadows it may cast (min x,
+        // min y, max x, max y), if on screen.
+        final int[] bounds = new int[4];
+        boolean visible;
+        final int[] shadowBounds = new int[4];
+        boolean shadowed;
+    }
+
+    // Default frame time budget (in milliseconds) and resolution scale
+    // bounds, relative to the screen.
+    public static final float DEFAULT_FRAME_BUDGET = 33.3f;
+    public static final float DEFAULT_MIN_SCALE = 0.25f;
+    public static final float DEFAULT_MAX_SCALE = 1.0f;
+    // Default costs shown at full heat by each heatmap: depth tests and
+    // shaded fragments per pixel, and nanoseconds per pixel.
+    public static final int DEFAULT_DEPTH_TEST_HEAT = 8;
+    public static final int DEFAULT_FRAGMENT_HEAT = 4;
+    public static final int DEFAULT_TIME_HEAT = 1000;
+    // Instances culled by each part of a parallel culling task.
+    private static final int INSTANCES_PER_PART = 256;
+
+    /**
+     * Set the filtering mode used when sampling textures.
+     * @param filter The filtering mode.
+     */
+    public void setTextureFilter(Texture.Filter filter) {
+        m_textureFilter = filter;
+    }
 
     /**
-     * Linearly interpolates between two floats given an alpha value.
-     * @param a The first value.
-     * @param b The second value.
-     * @param alpha The amount to blend the first and second values.
-     * @return Some value where a <= retval <= b given a < b.
+     * Register a texture. The image is read from the disk (and its mip
+     * chain generated) the first time it is drawn.
+     * @param path The path of the image to load.
+     * @return The texture handle to give to meshes.
      */
-    private float lerp(float a, float b, float alpha) {
-        // Linear interpolation equation. Lower alpha means bigger weight
-        // on A (alpha * a),
-        // while higher alpha menas bigger weight on B (alpha * b).
-        return (1.0f - alpha) * a + alpha * b;
+    public int addTexture(String path) {
+        return m_textureManager.register(path);
     }
 
     /**
-     * Linearly interpolates between two colors given an alpha value.
-     * @param a The first color.
-     * @param b The second color.
-     * @param alpha The amount to blend the first and second colors.
-     * @return A new color representing A blended with B.
+     * Get the texture manager, for adjusting the texture memory budget
+     * and reading residency metrics.
+     * @return The texture manager.
      */
-    private Color lerpColor(Color a, Color b, float alpha) {
-        // Blend colors using lerp method.
-        return new Color(
-            Math.round(
-                lerp((float) a.getRed(), (float) b.getRed(), alpha)),
-            Math.round(
-                lerp((float) a.getGreen(), (float) b.getGreen(), alpha)),
-            Math.round(
-                lerp((float) a.getBlue(), (float) b.getBlue(), alpha)));
+    public TextureManager getTextureManager() {
+        return m_textureManager;
+    }
 
+    /**
+     * Add a point light to the scene.
+     * @param light The light to add.
+     */
+    public void addLight(Light light) {
+        m_lights.add(light);
     }
 
     /**
-     * Clamps value between range.
-     * @param x The value to clamp.
-     * @param min The minimum value in the range.
-     * @param max The maximum value in the range.
-     * @return The clamped value.
+     * Remove a point light from the scene.
+     * @param light The light to remove.
      */
-    private float clamp(float x, float min, float max) {
-        // If X is greater than the maximum, return the maximum, if X is lower
-        // than the minimum, return the minimum, else return X.
-        if (x > max) return max;
-        if (x < min) return min;
-        return x;
+    public void removeLight(Light light) {
+        m_lights.remove(light);
     }
 
     /**
-     * Sample a texture given X/Y coordinate in range [0, 1].
-     * @param image The image to sample.
-     * @param x The X texture coordinate.
-     * @param y The Y texture coordinate.
-     * @return The color sampled from the image at the X/Y pair.
+     * Get the lights of the scene.
+     * @return The light list (lights may be added or changed through it).
      */
-    private Color sampleImage(BufferedImage image, float x, float y) {
-        // If the image is undefined return pure black.
-        if (image == null) return Color.BLACK;
-        // X and  positions are rounded, then clamped within the image borders.
-        int xpos =
-            (int) clamp(
-                (int) Math.ceil(x * image.getWidth()),
-                0, image.getWidth() - 1);
-        int ypos =
-            (int) clamp(
-                (int) Math.ceil(y * image.getHeight()),
-                0, image.getHeight() - 1);
-        // Return the color as sampled from the computed coordinates.
-        return new Color(image.getRGB(xpos, image.getHeight() - ypos - 1));
+    public ArrayList<Light> getLights() {
+        return m_lights;
     }
 
     /**
-     * Read a texture from the disk and assign it to an index.
-     * @param id The ID/index to assign the texture to.
-     * @param path The path of the image to load.
+     * Set the number of anti-aliasing samples per pixel.
+     * @param samples The sample count (1, 2 or 4).
      */
-    public void addTexture(Integer id, String path) {
-        // Attempt to read the image from the disk.
-        try {
-            BufferedImage img = ImageIO.read(new File(path));
-            // Assign the texture to the ID.
-            m_textures[id] = img;
-        } catch (IOException e) {
-            // Print stack trace if an exception is thrown.
-            e.printStackTrace();
-        }
+    public void setSampleCount(int samples) {
+        m_rasterizer.setSampleCount(samples);
     }
 
+    /**
+     * Set the storage format of the depth target. It takes effect from the
+     * next frame. UNORM16 halves the depth target's memory traffic, at
+     * the cost of precision.
+     * @param format The depth format.
+     */
+    public void setDepthFormat(Rasterizer.DepthFormat format) {
+        m_depthFormat = format;
+    }
 
-    // Define the position of the point light in the scene.
-    Vector3 lightPos = new Vector3(0.0f, 3.0f, 3.0f);
-    // Define the color of the point light.
-    Color lightColor = new Color(255, 255, 255);
-
-    /**
-     * The meat of the rasterizer, handles filling triangles.
-     * @param id The ID of the texture to sample.
-     * @param model The model matrix (transformation).
-     * @param proj The projection matrix (world->screen)
-     * @param va The first vertex.
-     * @param vb The second vertex.
-     * @param vc The third vertex.
-     * @param ta The first texture coordinate.
-     * @param tb The second texture coordinate.
-     * @param tc The third texture coordinate.
-     */
-    private synchronized void fillTriangle(DrawAction action) {
-        // Get the texture at the given ID.
-        BufferedImage tex = m_textures[action.tex];
-        // Compute model-view-projection matrix.
-        Matrix4 mv = action.view.mult(action.model);
-        Matrix4 mvp = action.proj.mult(mv);
-
-        // Compute vertices in world space.
-        Vector3 ta = action.model.mult(new Vector4(action.va, 1.0f)).wdivide();
-        Vector3 tb = action.model.mult(new Vector4(action.vb, 1.0f)).wdivide();
-        Vector3 tc = action.model.mult(new Vector4(action.vc, 1.0f)).wdivide();
-        // Compute vertices in screen space.
-        Vector3 sa = mvp.mult(new Vector4(action.va, 1.0f)).wdivide();
-        Vector3 sb = mvp.mult(new Vector4(action.vb, 1.0f)).wdivide();
-        Vector3 sc = mvp.mult(new Vector4(action.vc, 1.0f)).wdivide();
-
-        // Compute surface normal from world-space triangle poly.
-        Vector3 surfaceNormal =
-            ta.sub(tb).normalize().cross(tc.sub(ta).normalize());
-
-        // Discard face if it is facing backwards.
-        if (new Vector3(action.view.c).normalize().dot(surfaceNormal) < 0.0f) {
-            // Increment discarded poly counter.
-            synchronized (m_discardedPolys) {
-                ++m_discardedPolys;
-            }
-            return;
-        }
+    /**
+     * Set whether depth is reversed (the near plane at 1 and the far plane
+     * at 0), which keeps float depth precise far from the camera. It takes
+     * effect from the next frame, with a matching projection.
+     * @param reversed True to reverse depth.
+     */
+    public void setReversedDepth(boolean reversed) {
+        m_reversedDepth = reversed;
+    }
 
-        // Compute maximum screen-space distance of vertices.
-        final float maxDist =
-            Math.max(
-                sa.distance(sb),
-                Math.max(
-                    sa.distance(sc),
-                    sb.distance(sc)));
-
-        // Compute the amount to increment alphaX and alphaY each iteration.
-        final float ITER_X_INV =
-            1.0f / (m_screenWidth * maxDist * ITER_SCALE);
-        final float ITER_Y_INV =
-            1.0f / (m_screenHeight * maxDist * ITER_SCALE);
-
-        // Return if computation is too strenuous.
-        if (ITER_X_INV < 1E-4 || ITER_Y_INV < 1E-4) { return; }
-
-        // Local debug variables.
-        int drawnFragments = 0;
-        int discardedFragments = 0;
-        int occludedFragments = 0;
-
-        // Get time from beginning of rasterization.
-        double start = System.nanoTime() * 1E-9;
-
-        // Perform X iterations (from 0 to 1).
-        for (float alphaX = 0.0f; alphaX < 1.0f; alphaX += ITER_X_INV) {
-            // Interpolate between first and second vertex.
-            Vector3 ia = action.va.lerp(action.vb, alphaX);
-            // Interpolate first and third vertex.
-            Vector3 ib = action.va.lerp(action.vc, alphaX);
-
-            // Perform Y iterations (from 0 to 1).
-            for (float alphaY = 0.0f; alphaY < 1.0f; alphaY += ITER_Y_INV) {
-                if (System.nanoTime() * 1E-9 - start > 0.1f) return;
-
-                // Interpolate between the first interpolated variable and the
-                // second interpolated variable.
-                Vector3 ic = ia.lerp(ib, alphaY);
-                // Compute screen-space coordinate by multiplying the
-                // world-space coordinate by the model-projection matrix, then
-                // divide by w to make it a 3-dimensional vector.
-                Vector3 ssc = mvp.mult(new Vector4(ic, 1.0f)).wdivide();
+    /**
+     * Set whether only the screen regions that changed since the last frame
+     * are re-rendered. Changes to the camera, to lights, to textures and to
+     * meshes (through their setters) are found automatically; call
+     * invalidate after any other change that affects the image.
+     * @param incremental True to render incrementally.
+     */
+    public void setIncrementalRendering(boolean incremental) {
+        m_incremental = incremental;
+        m_rasterizer.setIncremental(incremental);
+        // Bounds were not tracked while rendering everything.
+        m_lastView = null;
+    }
 
-                if (
-                    ssc.x < -1.0f
-                    || ssc.x > 1.0f
-                    || ssc.y < -1.0f
-                    || ssc.y > 1.0f) {
-                    // Increment discarded (offscreen) fragment debug counter.
-                    ++discardedFragments;
-                    continue;
-                }
+    /**
+     * Get whether only the screen regions that changed are re-rendered.
+     * @return True if rendering incrementally.
+     */
+    public boolean isIncrementalRendering() {
+        return m_incremental;
+    }
 
-                // Calculate the screen coordinates to draw the pixel to.
-                int dcoordX =
-                    (int) ((ssc.x + 1.0f) * 0.5f * (m_screenWidth - 1));
-                int dcoordY =
-                    (int) ((ssc.y + 1.0f) * 0.5f * (m_screenHeight - 1));
-
-                // Perform depth test to prevent drawing occluded fragments.
-                synchronized (m_depthBuffer) {
-                    if (ssc.z < m_depthBuffer[dcoordX][dcoordY]) {
-                        // Compute texture coordinate by blending first
-                        // interpolated coordinate
-                        // with second interpolated coordinate.
-                        Vector2 it =
-                            action.ta.lerp(action.tb, alphaX).lerp(
-                                action.ta.lerp(action.tc, alphaX), alphaY);
-                        // Compute world-space position
-                        // for lighting calculations.
-                        Vector3 world =
-                            action.model.mult(new Vector4(ic, 1.0f)).wdivide();
-                        // Compute light-to-surface direction.
-                        Vector3 ldir = world.sub(lightPos).normalize();
-                        // Sample texture using texture coordinate.
-                        Color color = sampleImage(tex, it.x, it.y);
-
-                        // Compute the inverse square attenuation
-                        // factor on the light.
-                        float dist = world.distance(lightPos);
-                        float atten = 1.0f / (1.0f + dist * dist);
-
-                        // Calculate light factors.
-                        float diffac =
-                            8.0f
-                            * clamp(ldir.dot(surfaceNormal), 0.0f, 1.0f)
-                            * atten;
-
-                        // Apply attenuation by blending sampled color
-                        // with black using the attenuation factor as the alpha.
-                        // Also apply directional occlusion by finding the dot
-                        // product between the light-to-surf direction and the
-                        // surface normal.
-                        color =
-                            lerpColor(
-                                lerpColor(
-                                    Color.BLACK,
-                                    color,
-                                    clamp(
-                                        diffac,
-                                        0.0f,
-                                        1.0f)),
-                                lightColor,
-                                clamp(diffac * diffac, 0.0f, 1.0f));
-
-                        // Write screen-space depth value to depth buffer.
-                        m_depthBuffer[dcoordX][dcoordY] = ssc.z;
-
-                        // Write color to backbuffer.
-                        m_backBuffer.setRGB(
-                            (int) dcoordX,
-                            (int) m_screenHeight - dcoordY - 1,
-                            color.getRGB());
-
-                        // Increment drawn fragment counter.
-                        ++drawnFragments;
-                    } else {
-                        // Increment occluded fragment debug counter.
-                        ++occludedFragments;
-                    }
-                }
-            }
-        }
+    /**
+     * Re-render the whole screen in the next frame.
+     */
+    public void invalidate() {
+        m_rasterizer.markAllDirty();
+    }
 
-        synchronized (m_drawnFragments) {
-            m_drawnFragments += drawnFragments;
-        }
+    /**
+     * Get the dynamic resolution controller, for setting the frame time
+     * budget and the resolution bounds (or disabling it for a fixed
+     * resolution).
+     * @return The resolution controller.
+     */
+    public ResolutionController getResolutionController() {
+        return m_resolution;
+    }
 
-        synchronized (m_occludedFragments) {
-            m_occludedFragments += occludedFragments;
-        }
+    /**
+     * Set the recorder every finished frame is captured to.
+     * @param recorder The recorder, or null to stop capturing (the old
+     * recorder is not closed).
+     */
+    public void setRecorder(FrameRecorder recorder) {
+        m_recorder = recorder;
+    }
+
+    /**
+     * Get the recorder finished frames are captured to.
+     * @return The recorder, or null if frames are not captured.
+     */
+    public FrameRecorder getRecorder() {
+        return m_recorder;
+    }
 
-        synchronized (m_discardedFragments) {
-            m_discardedFragments += discardedFragments;
+    /**
+     * Show a heatmap of a per-pixel cost instead of the scene, scaled so
+     * that costs of about a few times the norm show at full heat.
+     * @param heatmap The cost to show, or OFF for normal rendering.
+     */
+    public void setHeatmap(Rasterizer.Heatmap heatmap) {
+        switch (heatmap) {
+            case DEPTH_TESTS:
+                setHeatmap(heatmap, DEFAULT_DEPTH_TEST_HEAT);
+                break;
+            case FRAGMENTS:
+                setHeatmap(heatmap, DEFAULT_FRAGMENT_HEAT);
+                break;
+            case TIME:
+                setHeatmap(heatmap, DEFAULT_TIME_HEAT);
+                break;
+            default:
+                setHeatmap(heatmap, 1);
+                break;
         }
     }
 
+    /**
+     * Show a heatmap of a per-pixel cost instead of the scene. It takes
+     * effect from the next frame.
+     * @param heatmap The cost to show, or OFF for normal rendering.
+     * @param scale The cost shown at full heat (white).
+     */
+    public void setHeatmap(Rasterizer.Heatmap heatmap, int scale) {
+        m_heatScale = scale;
+        m_heatmap = heatmap;
+    }
+
+    /**
+     * Get the cost shown as a heatmap.
+     * @return The cost, or OFF.
+     */
+    public Rasterizer.Heatmap getHeatmap() {
+        return m_heatmap;
+    }
+
+    /**
+     * Get the profiler the stages of each frame are timed with, for
+     * enabling it and exporting its trace.
+     * @return The profiler.
+     */
+    public Profiler getProfiler() {
+        return m_profiler;
+    }
+
+    /**
+     * Set a fixed time step to advance by each frame, so animation (and
+     * anything else driven by the update listener) plays back the same no
+     * matter how long frames take.
+     * @param step The time step in seconds, or 0 to use the measured frame
+     * time.
+     */
+    public void setFixedTimeStep(float step) {
+        m_fixedStep = step;
+    }
+
+    /**
+     * Get the fixed time step.
+     * @return The time step in seconds, or 0 if the measured frame time is
+     * used.
+     */
+    public float getFixedTimeStep() {
+        return m_fixedStep;
+    }
+
+    /**
+     * Get the rasterizer, for reading frame statistics such as the number
+     * of lights binned into each tile.
+     * @return The rasterizer.
+     */
+    public Rasterizer getRasterizer() {
+        return m_rasterizer;
+    }
+
     /*
      * General timing variables.
      */
@@ -352,6 +353,9 @@ public class RasterPanel extends JPanel {
     float m_last = 0.0f;
     // Current elapsed time.
     float m_elapsed = 0.0f;
+    // Time step passed to the update listener each frame, or 0 to pass
+    // the measured frame time.
+    private float m_fixedStep = 0.0f;
 
     /*
      * FPS profiling variables.
@@ -363,23 +367,84 @@ public class RasterPanel extends JPanel {
     int m_frames = 0;
 
     /**
-     * Overriden JPanel paintComponent, for drawing the rasterized scene.
+     * Overriden JPanel paintComponent, for rendering and drawing the scene
+     * when the panel is repainted by Swing (see Presenter for rendering on
+     * a thread of its own).
      * @param g The graphics object to draw to.
      */
     @Override
     public void paintComponent(Graphics g) {
-        // Get the graphics object from the BufferedImage back buffer.
-        Graphics ig = m_backBuffer.getGraphics();
+        renderFrame();
+        drawFrame(
+            g,
+            m_rasterizer.getImage(),
+            m_debugLines,
+            m_screenWidth,
+            m_screenHeight);
+    }
+
+    /**
+     * Draw a rendered frame, scaled to fill the target, with its debug
+     * info on top.
+     * @param g The graphics object to draw to.
+     * @param image The rendered frame.
+     * @param lines The debug info of the frame.
+     * @param width The width of the target in pixels.
+     * @param height The height of the target in pixels.
+     */
+    public void drawFrame(
+        Graphics g, BufferedImage image, String[] lines, int width,
+        int height) {
+        // Draw the backbuffer to the screen.
+        g.drawImage(image, 0, 0, width, height, null);
+        // Draw debug info.
+        g.setColor(Color.WHITE);
+        g.setFont(m_debugFont);
+        for (int i = 0; i < lines.length; ++i) {
+            g.drawString(lines[i], 32, 32 + i * 32);
+        }
+        g.drawString(
+            "MOVE: WASD. TURN: ARROWS. R: RECORD. P: PROFILE. H: HEAT.",
+            32,
+            height - 64);
+    }
+
+    /**
+     * Get the debug info of the last rendered frame.
+     * @return The lines of debug info.
+     */
+    public String[] getDebugLines() {
+        return m_debugLines;
+    }
+
+    /**
+     * Render a frame of the scene into the rasterizer's image, then notify
+     * the update listener. Frames must only be rendered by one thread at a
+     * time.
+     */
+    public void renderFrame() {
+        long frameStart = System.nanoTime();
+        m_profiler.nextFrame();
+        long frameEvent = m_profiler.begin();
+        long start = frameEvent;
+        // Size the back buffers to the resolution chosen from the last
+        // frame times.
+        float scale = m_resolution.getScale();
+        m_rasterizer.setResolution(
+            Math.round(m_screenWidth * scale),
+            Math.round(m_screenHeight * scale));
+        m_rasterizer.setHeatmap(m_heatmap, m_heatScale);
+        m_rasterizer.setDepthFormat(m_depthFormat);
+        m_rasterizer.setReversedDepth(m_reversedDepth);
 
         // Compute projection matrix from screen width/height and fixed FOV
-        // and near/far planes.
-        Matrix4 proj =
-            Matrix4.perspective(
-                (float) m_backBuffer.getWidth()
-                / (float) m_backBuffer.getHeight(),
-                45.0f,
-                0.01f,
-                1000.0f);
+        // and near/far planes, matching the rasterizer's depth direction.
+        boolean reversed = m_rasterizer.isReversedDepth();
+        float aspect =
+            (float) m_rasterizer.getWidth() / (float) m_rasterizer.getHeight();
+        Matrix4 proj = reversed
+            ? Matrix4.perspectiveReversed(aspect, 45.0f, 0.01f, 1000.0f)
+            : Matrix4.perspective(aspect, 45.0f, 0.01f, 1000.0f);
         // Compute view matrix.
         Matrix4 view =
             Matrix4.rotationX(-m_cameraRotation.x)
@@ -387,104 +452,229 @@ public class RasterPanel extends JPanel {
             .mult(Matrix4.rotationZ(-m_cameraRotation.z))
             .mult(Matrix4.translation(m_cameraPosition.mult(-1.0f)));
 
-        // Create pool for render threads.
-        ArrayList<Thread> threadPool = new ArrayList<Thread>();
+        // Apply the scene changes queued since the last frame, select each
+        // mesh's detail level and texture, mark the regions that changed
+        // since the last frame, and clear them.
+        Scene.Snapshot scene = m_scene.update();
+        boolean lightsChanged = lightsChanged();
+        boolean meshesChanged =
+            updateMeshes(scene, view, proj, lightsChanged);
+        m_rasterizer.beginFrame();
+        m_profiler.end("Select meshes", start);
+
+        // Compute the view frustum and eye position for cluster culling.
+        Frustum frustum = new Frustum(proj.mult(view), reversed);
+        Vector3 eye = m_cameraPosition;
+        // Bin the lights into screen tiles.
+        start = m_profiler.begin();
+        m_rasterizer.setLights(m_lights, view, proj);
+        Light[] lights = m_lights.toArray(new Light[m_lights.size()]);
+        m_profiler.end("Bin lights", start);
+        // Render the shadow maps that are due for an update.
+        int shadowMaps = 0;
+        for (int i = 0; i < m_lights.size(); ++i) {
+            Light l = m_lights.get(i);
+            if (l.shadow == null) continue;
+            ++shadowMaps;
+            if (m_incremental) {
+                // Maps of an unchanged scene would render the same, and
+                // after a mesh changes they must render now so shadows
+                // only change in the regions marked for it.
+                if (!meshesChanged && !lightsChanged) continue;
+                if (meshesChanged) l.shadow.invalidate();
+            }
+            start = m_profiler.begin();
+            if (
+                l.shadow.update(
+                    l.position, scene.getMeshes(), m_models,
+                    scene.getCount(), m_depthRasterizer)) {
+                ++m_shadowUpdates;
+                m_profiler.end("Shadow map", start, i);
+            }
+        }
 
         // Define triangle sum to be displayed as debug info.
+        start = m_profiler.begin();
         int triangleSum = 0;
+        // Draws of the visible meshes.
+        ArrayList<DrawAction> draws = new ArrayList<DrawAction>();
 
         // Iterate through meshes in scene.
-        for (int i = 0; i < m_meshIndex; ++i) {
+        for (int i = 0; i < scene.getCount(); ++i) {
             // Get mesh from index.
-            Mesh m = m_meshes[i];
+            Mesh m = scene.getMesh(i);
+            DrawnState s = m_drawn[Scene.slotOf(scene.getHandle(i))];
             // Add polycount.
             triangleSum += m.getTriCount();
+            // Skip meshes entirely within regions kept from the last frame.
+            if (
+                m_incremental
+                && (!s.visible
+                || !m_rasterizer.isDirty(
+                    s.bounds[0], s.bounds[1], s.bounds[2], s.bounds[3]))) {
+                continue;
+            }
 
-            // Get the verts of the mesh.
-            Vector3[] verts = m.getVerts();
-
-            // Loop through every three verts (every triangle).
-            synchronized (m_drawQueue) {
-                for (int v = 0; v < m.getTriCount() * 3; v += 3) {
-                    // Enqueue draw action.
-                    m_drawQueue.add(
-                        new DrawAction(
-                            m.getTextureID(),
-                            m.getTransformMatrix(),
-                            view,
-                            proj,
-                            m.getVerts()[v + 0],
-                            m.getVerts()[v + 1],
-                            m.getVerts()[v + 2],
-                            m.getCoords()[v + 0],
-                            m.getCoords()[v + 1],
-                            m.getCoords()[v + 2]));
+            // Get the mesh transforms (as read at the start of the frame).
+            Matrix4 model = s.model;
+            Matrix4 rotation = s.transform.getRotationMatrix();
+            float maxScale = s.transform.getMaxScale();
+
+            // Normal cones only stay valid under uniform scaling.
+            boolean coneCulling = s.transform.hasUniformScale();
+
+            // Loop through the meshlets of the mesh, keeping the visible
+            // ones.
+            Meshlet[] meshlets = m.getMeshlets();
+            Meshlet[] visible = new Meshlet[meshlets.length];
+            int visibleCount = 0;
+            for (Meshlet ml : meshlets) {
+                // Reject the meshlet if it is entirely off screen.
+                Vector3 center =
+                    model.mult(new Vector4(ml.center, 1.0f)).wdivide();
+                if (!frustum.intersectsSphere(center, ml.radius * maxScale)) {
+                    ++m_culledMeshlets;
+                    continue;
+                }
+                // Reject the meshlet if every triangle faces away.
+                if (coneCulling) {
+                    Vector3 axis =
+                        new Vector3(
+                            rotation.mult(new Vector4(ml.coneAxis, 0.0f)));
+                    if (ml.isBackfacing(
+                            axis, center, ml.radius * maxScale, eye)) {
+                        ++m_culledMeshlets;
+                        continue;
+                    }
                 }
+                visible[visibleCount++] = ml;
             }
+            if (visibleCount == 0) continue;
+
+            // Set up the shader inputs of the mesh.
+            Uniforms u = new Uniforms();
+            u.model = model;
+            u.view = view;
+            u.proj = proj;
+            u.mvp = proj.mult(view).mult(model);
+            u.texture = s.texture;
+            u.filter = m_textureFilter;
+            u.color = m.getColor();
+            u.lights = lights;
+            draws.add(
+                new DrawAction(
+                    m.getLodResource(),
+                    visible,
+                    visibleCount,
+                    m.getMaterial(),
+                    u));
+        }
+        // Add the visible instances of each batch.
+        m_drawnInstances = 0;
+        m_instanceCount = 0;
+        for (int i = 0; i < m_batches.size(); ++i) {
+            triangleSum += addInstanceDraws(
+                m_batches.get(i),
+                m_batchDrawn.get(i).texture,
+                frustum,
+                view,
+                proj,
+                lights,
+                draws);
         }
 
-        // Loop until all queued triangles are drawn.
-        double start = System.nanoTime() * 1E-9;
-        while (m_drawCount != triangleSum) {
-            // Force maximum frame time.
-            if (System.nanoTime() * 1E-9 - start > 0.5f) break;
-            Thread.yield();
+        // Group draws by material, so each shader runs over consecutive
+        // triangles, then rasterize them.
+        draws.sort(
+            (a, b) -> Integer.compare(
+                a.material.getID(), b.material.getID()));
+        m_profiler.end("Cull meshlets", start);
+        start = m_profiler.begin();
+        for (DrawAction d : draws) {
+            m_rasterizer.draw(d);
+        }
+        m_profiler.end("Geometry", start);
+        start = m_profiler.begin();
+        m_rasterizer.endFrame();
+        m_profiler.end("Raster", start);
+        // Hand the frame to the recorder (its encoders copy nothing more
+        // from the rasterizer).
+        FrameRecorder recorder = m_recorder;
+        if (recorder != null) {
+            start = m_profiler.begin();
+            recorder.capture(m_rasterizer);
+            m_profiler.end("Capture", start);
         }
-        m_drawCount = 0;
 
-        // Draw the backbuffer to the screen.
-        g.drawImage(
-            m_backBuffer,
-            0,
-            0,
-            m_screenWidth * RES_DIVISOR,
-            m_screenHeight * RES_DIVISOR,
-            null);
-        // Set the text color to draw the debug info.
-        g.setColor(Color.WHITE);
         // Get bytes allocated by JVM instance (in megabytes).
         float allocated =
             Math.round(100.0f *
             (((Runtime.getRuntime().totalMemory()
             - Runtime.getRuntime().freeMemory()) / 1024.0f / 1024.0f)))
             / 100.0f;
-        // Draw debug info.
-        g.setFont(m_debugFont);
-        g.drawString("POLYCOUNT:           " + triangleSum, 32, 32);
-        g.drawString("THREADS:             " + m_threadCount, 32, 64);
-        g.drawString("DRAWN FRAGMENTS:     " + m_drawnFragments, 32, 96);
-        g.drawString("DISCARDED FRAGMENTS: " + m_discardedFragments, 32, 128);
-        g.drawString("DISCARDED POLYS:     " + m_discardedPolys, 32, 160);
-        g.drawString("OCCLUDED FRAGMENTS:  " + m_occludedFragments, 32, 192);
-        g.drawString("FPS:                 " + m_FPS, 32, 224);
-        g.drawString("MEMORY:              " + allocated + "mb", 32, 256);
-        g.drawString(
-            "MOVE WITH WASD. TURN WITH ARROW KEYS.",
-            32,
-            (m_screenHeight * RES_DIVISOR) - 64);
+        // Get bytes used by resident textures (in megabytes).
+        float textureMemory =
+            Math.round(100.0f *
+            (m_textureManager.getResidentBytes() / 1024.0f / 1024.0f))
+            / 100.0f;
+        // Record the debug info of the frame.
+        m_debugLines = new String[] {
+            "POLYCOUNT:           " + triangleSum
+            + (m_batches.isEmpty() ? "" : " (" + m_drawnInstances + "/"
+            + m_instanceCount + " INSTANCES)"),
+            "THREADS:             " + m_rasterizer.getThreadCount(),
+            "DRAWN FRAGMENTS:     " + m_rasterizer.getDrawnFragments()
+            + " (" + m_rasterizer.getDirtyTileCount() + "/"
+            + m_rasterizer.getTilesX() * m_rasterizer.getTilesY()
+            + " TILES)",
+            "DISCARDED POLYS:     "
+            + (m_rasterizer.getCulledTriangles()
+            + m_rasterizer.getClippedTriangles()),
+            "OCCLUDED FRAGMENTS:  " + m_rasterizer.getOccludedFragments()
+            + (m_rasterizer.getHeatmap() == Rasterizer.Heatmap.OFF
+            ? "" : " (HEATMAP: " + m_rasterizer.getHeatmap() + " MAX "
+            + m_rasterizer.getMaxHeat() + "/"
+            + m_rasterizer.getHeatmapScale() + ")"),
+            "CULLED MESHLETS:     " + m_culledMeshlets,
+            "FPS:                 " + m_FPS
+            + (recorder == null ? "" : " (REC "
+            + recorder.getCapturedFrames() + " FRAMES, "
+            + recorder.getDroppedFrames() + " DROPPED)")
+            + (m_profiler.isEnabled() ? " (PROFILING)" : ""),
+            "MEMORY:              " + allocated + "mb",
+            "TEXTURES:            "
+            + m_textureManager.getResidentCount() + "/"
+            + m_textureManager.getTextureCount() + " "
+            + textureMemory + "mb",
+            "LIGHTS:              " + m_rasterizer.getLightCount()
+            + " (" + m_rasterizer.getMaxTileLights() + " MAX PER TILE)",
+            "SHADOW MAPS:         " + m_shadowUpdates + "/" + shadowMaps
+            + " UPDATED",
+            "RESOLUTION:          " + m_rasterizer.getWidth() + "x"
+            + m_rasterizer.getHeight() + " (" + Math.round(scale * 100.0f)
+            + "%) " + m_rasterizer.getSampleCount() + "X SAMPLES",
+            "DEPTH:               " + m_rasterizer.getDepthFormat()
+            + (reversed ? " REVERSED" : "") + " ("
+            + m_rasterizer.getDepthBytes() * m_rasterizer.getSampleCount()
+            + " BYTES PER PIXEL)",
+        };
         // Reset debug info.
-        m_drawnFragments = 0;
-        m_discardedFragments = 0;
-        m_discardedPolys = 0;
-        m_occludedFragments = 0;
-
-        // Clear the backbuffer.
-        ig.clearRect(0, 0, m_screenWidth, m_screenHeight);
-        // Fill depth buffer with 100% depth.
-        for (int x = 0; x < m_screenWidth; ++x) {
-            for (int y = 0; y < m_screenHeight; ++y) {
-                m_depthBuffer[x][y] = 1.0f;
-            }
-        }
+        m_culledMeshlets = 0;
+        m_shadowUpdates = 0;
+
+        // Adjust the resolution of the next frame to the time this one
+        // took.
+        m_resolution.update((System.nanoTime() - frameStart) * 1E-6f);
 
         // Compute delta time/elapsed time.
         float now = System.nanoTime() * 1E-9f;
-        float delta = now - m_last;
+        float frameTime = now - m_last;
+        float delta = m_fixedStep > 0.0f ? m_fixedStep : frameTime;
         m_elapsed += delta;
         m_last = now;
 
-        // Add delta time to FPS accumulator and increment frame counter.
-        m_fpsAccumulator += delta;
+        // Add frame time to FPS accumulator and increment frame counter.
+        m_fpsAccumulator += frameTime;
         ++m_frames;
         // Print frame count to console if FPS accumulator goes over 1 second.
         if (m_fpsAccumulator > 1.0f) {
@@ -496,8 +686,365 @@ public class RasterPanel extends JPanel {
 
         // Update listener if non-null.
         if (m_listener != null) {
+            start = m_profiler.begin();
             m_listener.update(delta);
+            m_profiler.end("Update", start);
+        }
+        m_profiler.end("Frame", frameEvent);
+    }
+
+    /**
+     * Select the detail level and texture of each mesh. When rendering
+     * incrementally, also mark the screen regions that changed since the
+     * last frame: everything if the camera, render size or lights
+     * changed, otherwise the old and new bounds of each changed, added or
+     * removed mesh and of its shadows. Each mesh's transform is read once
+     * here, so the whole frame draws it in the same place however it
+     * moves meanwhile.
+     * @param scene The meshes of the frame.
+     * @param view The view matrix of the frame.
+     * @param proj The projection matrix of the frame.
+     * @param lightsChanged Whether a light changed since the last frame.
+     * @return Whether any mesh changed since the last frame.
+     */
+    private boolean updateMeshes(
+        Scene.Snapshot scene, Matrix4 view, Matrix4 proj,
+        boolean lightsChanged) {
+        m_textureManager.beginFrame();
+        // A new render size keeping the aspect ratio leaves the matrices
+        // alone but moves every mesh's screen bounds.
+        int width = m_rasterizer.getWidth();
+        int height = m_rasterizer.getHeight();
+        boolean redraw =
+            lightsChanged
+            || !sameMatrix(view, m_lastView)
+            || !sameMatrix(proj, m_lastProj)
+            || width != m_lastWidth
+            || height != m_lastHeight;
+        m_lastView = view;
+        m_lastProj = proj;
+        m_lastWidth = width;
+        m_lastHeight = height;
+        if (m_incremental && redraw) m_rasterizer.markAllDirty();
+        int count = scene.getCount();
+        if (m_models.length < count) {
+            m_models = new Matrix4[scene.getMeshes().length];
+        }
+
+        boolean changed = false;
+        if (scene.getVersion() != m_sceneVersion) {
+            // Forget removed meshes, clearing where they were.
+            m_sceneVersion = scene.getVersion();
+            for (int slot = 0; slot < m_drawn.length; ++slot) {
+                DrawnState s = m_drawn[slot];
+                if (s == null || scene.indexOf(s.handle) >= 0) continue;
+                if (m_incremental) markDirty(s);
+                m_drawn[slot] = null;
+                changed = true;
+            }
+        }
+        for (int i = 0; i < count; ++i) {
+            Mesh m = scene.getMesh(i);
+            // Read the revision before the transform, so a change made
+            // in between is found next frame.
+            int revision = m.getRevision();
+            Mesh.Transform transform = m.getTransform();
+            Matrix4 model = transform.getMatrix();
+            m_models[i] = model;
+            MeshResource res = m.getResource();
+            Vector3 center =
+                model.mult(new Vector4(res.getBoundsCenter(), 1.0f))
+                .wdivide();
+            float radius = res.getBoundsRadius() * transform.getMaxScale();
+
+            // Select the detail level from the projected bounding sphere.
+            float depth = view.mult(new Vector4(center, 1.0f)).z;
+            if (depth > radius) {
+                m.selectLod(
+                    radius / depth * proj.b.y * m_rasterizer.getHeight()
+                    * 0.5f);
+            } else {
+                // Use full detail when the camera is inside the bounds.
+                m.selectLod(Float.MAX_VALUE);
+            }
+            Texture texture = m_textureManager.get(m.getTextureID());
+
+            int handle = scene.getHandle(i);
+            int slot = Scene.slotOf(handle);
+            if (slot >= m_drawn.length) {
+                m_drawn = Arrays.copyOf(
+                    m_drawn, Math.max(m_drawn.length * 2, slot + 1));
+            }
+            DrawnState s = m_drawn[slot];
+            boolean added = s == null;
+            if (added) {
+                s = new DrawnState();
+                s.handle = handle;
+                m_drawn[slot] = s;
+            }
+            s.transform = transform;
+            s.model = model;
+            boolean moved =
+                added
+                || s.revision != revision
+                || s.lod != m.getLod()
+                || s.texture != texture;
+            changed |= moved;
+            s.revision = revision;
+            s.lod = m.getLod();
+            s.texture = texture;
+            if (!m_incremental || (!moved && !redraw)) continue;
+
+            // Clear where the mesh and its shadows were, and where they
+            // are now.
+            if (moved && !added) markDirty(s);
+            s.visible = m_rasterizer.projectSphere(
+                center, radius, view, proj, s.bounds);
+            s.shadowed =
+                shadowBounds(center, radius, view, proj, s.shadowBounds);
+            if (moved) markDirty(s);
+        }
+
+        // Batches are tracked as a whole, so a changed batch redraws
+        // everything (instances cast no shadows, so maps are unaffected).
+        for (int i = 0; i < m_batches.size(); ++i) {
+            InstanceBatch b = m_batches.get(i);
+            Texture texture = m_textureManager.get(b.getTextureID());
+            DrawnState s = m_batchDrawn.get(i);
+            if (s.revision != b.getRevision() || s.texture != texture) {
+                if (m_incremental) m_rasterizer.markAllDirty();
+            }
+            s.revision = b.getRevision();
+            s.texture = texture;
+        }
+        return changed;
+    }
+
+    /**
+     * Cull the instances of a batch on the render threads, select the
+     * detail level of the visible ones and add a draw for each.
+     * @param b The batch.
+     * @param texture The texture of the batch.
+     * @param frustum The view frustum.
+     * @param view The view matrix of the frame.
+     * @param proj The projection matrix of the frame.
+     * @param lights The lights of the scene.
+     * @param draws The draw list to add to.
+     * @return The number of triangles drawn.
+     */
+    private int addInstanceDraws(
+        InstanceBatch b, Texture texture, Frustum frustum, Matrix4 view,
+        Matrix4 proj, Light[] lights, ArrayList<DrawAction> draws) {
+        int count = b.getCount();
+        int parts = (count + INSTANCES_PER_PART - 1) / INSTANCES_PER_PART;
+        if (m_visibleInstances.length < count) {
+            m_visibleInstances = new int[count];
+        }
+        if (m_partCounts.length < parts) m_partCounts = new int[parts];
+        int[] visible = m_visibleInstances;
+        int[] partCounts = m_partCounts;
+        MeshResource res = b.getResource();
+        Vector3 c = res.getBoundsCenter();
+        float boundsRadius = res.getBoundsRadius();
+        float lodScale = proj.b.y * m_rasterizer.getHeight() * 0.5f;
+        boolean incremental = m_incremental;
+
+        m_rasterizer.runParallel(part -> {
+            float[] t = b.getTransforms();
+            int first = part * INSTANCES_PER_PART;
+            int last = Math.min(first + INSTANCES_PER_PART, count);
+            int n = first;
+            int[] bounds = new int[4];
+            for (int i = first; i < last; ++i) {
+                // Transform the bounding sphere.
+                int o = i * InstanceBatch.INSTANCE_STRIDE;
+                float x =
+                    t[o] * c.x + t[o + 1] * c.y + t[o + 2] * c.z + t[o + 3];
+                float y =
+                    t[o + 4] * c.x + t[o + 5] * c.y + t[o + 6] * c.z + t[o + 7];
+                float z =
+                    t[o + 8] * c.x + t[o + 9] * c.y + t[o + 10] * c.z
+                    + t[o + 11];
+                float radius = boundsRadius * b.getMaxScale(i);
+                if (!frustum.intersectsSphere(x, y, z, radius)) continue;
+                // Skip instances entirely within regions kept from the
+                // last frame.
+                if (
+                    incremental
+                    && (!m_rasterizer.projectSphere(
+                        new Vector3(x, y, z), radius, view, proj, bounds)
+                    || !m_rasterizer.isDirty(
+                        bounds[0], bounds[1], bounds[2], bounds[3]))) {
+                    continue;
+                }
+                // Select the detail level from the projected bounding
+                // sphere (full detail when the camera is inside it).
+                float depth =
+                    view.c.x * x + view.c.y * y + view.c.z * z + view.c.w;
+                b.selectLod(
+                    i,
+                    depth > radius
+                    ? radius / depth * lodScale : Float.MAX_VALUE);
+                visible[n++] = i;
+            }
+            partCounts[part] = n - first;
+        }, parts);
+
+        // Add the draws in instance order, sharing the vertex data.
+        Matrix4 viewProj = proj.mult(view);
+        int triangles = 0;
+        for (int part = 0; part < parts; ++part) {
+            int first = part * INSTANCES_PER_PART;
+            for (int k = 0; k < partCounts[part]; ++k) {
+                int i = visible[first + k];
+                MeshResource lod = res.getLod(b.getLod(i));
+                Uniforms u = new Uniforms();
+                u.model = b.getTransformMatrix(i);
+                u.view = view;
+                u.proj = proj;
+                u.mvp = viewProj.mult(u.model);
+                u.texture = texture;
+                u.filter = m_textureFilter;
+                u.color = b.getColor(i);
+                u.lights = lights;
+                Meshlet[] meshlets = lod.getMeshlets();
+                draws.add(
+                    new DrawAction(
+                        lod, meshlets, meshlets.length, b.getMaterial(), u));
+                triangles += lod.getTriCount();
+                ++m_drawnInstances;
+            }
+        }
+        m_instanceCount += count;
+        return triangles;
+    }
+
+    /**
+     * Mark the bounds of a mesh and its shadows dirty.
+     * @param s The drawn state of the mesh.
+     */
+    private void markDirty(DrawnState s) {
+        if (s.visible) {
+            m_rasterizer.markDirty(
+                s.bounds[0], s.bounds[1], s.bounds[2], s.bounds[3]);
+        }
+        if (s.shadowed) {
+            m_rasterizer.markDirty(
+                s.shadowBounds[0], s.shadowBounds[1],
+                s.shadowBounds[2], s.shadowBounds[3]);
+        }
+    }
+
+    /**
+     * Bound the pixels the shadows of a mesh may cover. A shadow lies in
+     * the cone from the light through the mesh's bounding sphere, cut off
+     * at the light's range, which is inside the convex hull of the sphere
+     * and the sphere scaled from the light out to its range.
+     * @param center The world-space center of the mesh's bounding sphere.
+     * @param radius The radius of the mesh's bounding sphere.
+     * @param view The view matrix.
+     * @param proj The projection matrix.
+     * @param bounds The array to write the pixel bounds to.
+     * @return False if the mesh casts no shadows on screen.
+     */
+    private boolean shadowBounds(
+        Vector3 center, float radius, Matrix4 view, Matrix4 proj,
+        int[] bounds) {
+        boolean found = false;
+        int[] light = new int[4];
+        int[] near = new int[4];
+        int[] far = new int[4];
+        for (Light l : m_lights) {
+            if (l.shadow == null) continue;
+            float d = center.distance(l.position);
+            if (d - radius >= l.range) continue;
+            if (!m_rasterizer.projectSphere(
+                l.position, l.range, view, proj, light)) {
+                continue;
+            }
+            // The whole range when the light is inside the sphere, or when
+            // either end of the cone is off screen (the cone between them
+            // may still cross it).
+            int[] cone = light;
+            if (d > radius) {
+                float s = l.range / d;
+                Vector3 farCenter =
+                    l.position.add(center.sub(l.position).mult(s));
+                if (
+                    m_rasterizer.projectSphere(
+                        center, radius, view, proj, near)
+                    && m_rasterizer.projectSphere(
+                        farCenter, radius * s, view, proj, far)) {
+                    cone = near;
+                    cone[0] = Math.max(Math.min(near[0], far[0]), light[0]);
+                    cone[1] = Math.max(Math.min(near[1], far[1]), light[1]);
+                    cone[2] = Math.min(Math.max(near[2], far[2]), light[2]);
+                    cone[3] = Math.min(Math.max(near[3], far[3]), light[3]);
+                    if (cone[0] > cone[2] || cone[1] > cone[3]) continue;
+                }
+            }
+            if (!found) {
+                System.arraycopy(cone, 0, bounds, 0, 4);
+                found = true;
+            } else {
+                bounds[0] = Math.min(bounds[0], cone[0]);
+                bounds[1] = Math.min(bounds[1], cone[1]);
+                bounds[2] = Math.max(bounds[2], cone[2]);
+                bounds[3] = Math.max(bounds[3], cone[3]);
+            }
+        }
+        return found;
+    }
+
+    /**
+     * Check whether any light changed since the last frame, and remember
+     * the current lights.
+     * @return True if a light was added, removed or changed.
+     */
+    private boolean lightsChanged() {
+        int count = m_lights.size();
+        float[] lights = new float[count * 6];
+        ShadowMap[] shadows = new ShadowMap[count];
+        for (int i = 0; i < count; ++i) {
+            Light l = m_lights.get(i);
+            lights[i * 6 + 0] = l.position.x;
+            lights[i * 6 + 1] = l.position.y;
+            lights[i * 6 + 2] = l.position.z;
+            lights[i * 6 + 3] = l.color;
+            lights[i * 6 + 4] = l.intensity;
+            lights[i * 6 + 5] = l.range;
+            shadows[i] = l.shadow;
         }
+        boolean changed =
+            !Arrays.equals(lights, m_lastLights)
+            || !Arrays.equals(shadows, m_lastShadows);
+        m_lastLights = lights;
+        m_lastShadows = shadows;
+        return changed;
+    }
+
+    /**
+     * Check whether two matrices are equal.
+     * @param a The first matrix.
+     * @param b The second matrix (or null).
+     * @return True if every element is equal.
+     */
+    private static boolean sameMatrix(Matrix4 a, Matrix4 b) {
+        return b != null
+            && sameRow(a.a, b.a)
+            && sameRow(a.b, b.b)
+            && sameRow(a.c, b.c)
+            && sameRow(a.d, b.d);
+    }
+
+    /**
+     * Check whether two matrix rows are equal.
+     * @param a The first row.
+     * @param b The second row.
+     * @return True if every element is equal.
+     */
+    private static boolean sameRow(Vector4 a, Vector4 b) {
+        return a.x == b.x && a.y == b.y && a.z == b.z && a.w == b.w;
     }
 
     /**
@@ -541,11 +1088,43 @@ public class RasterPanel extends JPanel {
     }
 
     /**
-     * Add a mesh to the render array.
+     * Add a mesh to the scene. It may be called from any thread, and the
+     * mesh is drawn from the next frame on.
      * @param m The mesh to add.
+     * @return The handle of the mesh, for removing it.
+     */
+    public int addMesh(Mesh m) {
+        return m_scene.add(m);
+    }
+
+    /**
+     * Remove a mesh from the scene. It may be called from any thread, and
+     * the mesh is no longer drawn from the next frame on.
+     * @param handle The handle returned by addMesh.
+     */
+    public void removeMesh(int handle) {
+        m_scene.remove(handle);
+    }
+
+    /**
+     * Get the scene the panel draws, for reading snapshots of its meshes.
+     * @return The scene.
+     */
+    public Scene getScene() {
+        return m_scene;
+    }
+
+    /**
+     * Add a batch of instances to draw. Instances are culled and drawn
+     * individually but cast no shadows.
+     * @param batch The batch to add.
      */
-    public void addMesh(Mesh m) {
-        m_meshes[m_meshIndex++] = m;
+    public void addInstanceBatch(InstanceBatch batch) {
+        m_batches.add(batch);
+        // Count the batch as changed until it is first drawn.
+        DrawnState s = new DrawnState();
+        s.revision = -1;
+        m_batchDrawn.add(s);
     }
 
     /**
@@ -554,55 +1133,22 @@ public class RasterPanel extends JPanel {
      * @param height The height of the render target in pixels.
      */
     RasterPanel(int width, int height) {
-        // Initialize back buffer.
-        m_backBuffer = new BufferedImage(
-            width / RES_DIVISOR,
-            height / RES_DIVISOR,
-            BufferedImage.TYPE_INT_RGB);
-        // Initialize depth buffer.
-        m_depthBuffer = new float[width / RES_DIVISOR][height / RES_DIVISOR];
-        // Initialize threads.
-
-        // Use one thread per CPU core.
-        m_threadCount = Runtime.getRuntime().availableProcessors();
-        m_renderThreads = new Thread[m_threadCount];
-        m_drawQueue = new ArrayDeque<DrawAction>();
-        for (int i = 0; i < m_threadCount; ++i) {
-            Thread t = new Thread(new Runnable() {
-                @Override
-                public synchronized void run() {
-                    for (;;) {
-                        // Initialize next draw action to null.
-                        DrawAction action = null;
-
-                        // Lock draw queue.
-                        synchronized (m_drawQueue) {
-                            // Process the next action if not empty.
-                            if (!m_drawQueue.isEmpty()) {
-                                action = m_drawQueue.pop();
-                            }
-                        }
-
-                        if (action != null) {
-                            // Draw triangle and increment counter.
-                            fillTriangle(action);
-                            synchronized (m_drawCount) {
-                                ++m_drawCount;
-                            }
-                        }
-                    }
-                }
-            });
-            t.start();
-            m_renderThreads[i] = t;
-        }
+        // Initialize the rasterizer, allocating its back buffers for the
+        // largest resolution up front so scaling never reallocates them,
+        // and using one thread per CPU core.
+        m_resolution = new ResolutionController(
+            DEFAULT_FRAME_BUDGET, DEFAULT_MIN_SCALE, DEFAULT_MAX_SCALE, 0.5f);
+        m_rasterizer = new Rasterizer(
+            Math.round(width * DEFAULT_MAX_SCALE),
+            Math.round(height * DEFAULT_MAX_SCALE),
+            Runtime.getRuntime().availableProcessors());
+        m_rasterizer.setProfiler(m_profiler);
         // Create debug font.
         m_debugFont = new Font(Font.MONOSPACED, Font.PLAIN, 16);
         // Initialize state.
-        m_textures = new BufferedImage[32];
-        m_meshes = new Mesh[32];
-        m_screenWidth = width / RES_DIVISOR;
-        m_screenHeight = height / RES_DIVISOR;
+        m_textureManager = new TextureManager();
+        m_screenWidth = width;
+        m_screenHeight = height;
         // Initialize camera.
         m_cameraPosition = Vector3.ZERO;
         m_cameraRotation = Vector3.ZERO;
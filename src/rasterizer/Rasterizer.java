@@ -0,0 +1,1914 @@
+/*
+ * Luke Diamond
+ * 01/22/2018
+ * Grade 11 Final Project
+ * Mr. Patterson
+ */
+
+package rasterizer;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
+import java.awt.image.DirectColorModel;
+import java.awt.image.Raster;
+import java.nio.FloatBuffer;
+import java.nio.IntBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Tiled triangle rasterizer.
+ *
+ * Draws go through two stages. The geometry stage (on the submitting
+ * thread) runs the vertex shader once per vertex used by the visible
+ * meshlets, clips triangles to the near plane, culls back faces and sets
+ * up the edge and interpolation equations of each triangle, then bins it
+ * into the screen tiles it touches. The raster stage then renders the
+ * tiles in parallel; each tile walks its triangles in submission order,
+ * depth tests their pixels and passes each span of visible fragments to
+ * the draw's fragment shader.
+ *
+ * Lights are binned into the same tiles once per frame, by the screen
+ * bounds of their range, so fragment shaders only loop over the lights
+ * that can reach their tile.
+ *
+ * With multisampling, each pixel holds several depth and color samples.
+ * Coverage and depth are tested per sample, but the fragment shader still
+ * runs once per pixel per triangle (at the pixel center) and its color is
+ * stored to every sample that passed; each tile averages its samples into
+ * the color target once it is finished.
+ *
+ * In incremental mode only dirty tiles are cleared and rendered, and the
+ * rest keep the color and depth of the previous frame. Regions must be
+ * marked dirty before the frame begins; triangles are only binned into
+ * dirty tiles, so draws that miss them cost only their geometry stage.
+ *
+ * Targets are cleared a tile at a time by the thread rendering the tile,
+ * just before its first triangle. Tiles no triangle touches keep their
+ * depth, and their color too if it is still the clear color. With
+ * alternating depth, odd frames store depth flipped into a range beyond
+ * the cleared value and compare it the other way, so the previous frame's
+ * depth is always farther than the current frame's and a tile whose depth
+ * holds nothing older does not need clearing.
+ *
+ * Depth is stored as 32-bit floats by default, or as 16-bit or 24-bit
+ * fixed point to cut the depth target's memory and bandwidth where less
+ * precision will do. With reversed depth, projections map the near plane
+ * to 1 and the far plane to 0 (see Matrix4.perspectiveReversed) and closer
+ * depths are greater, which spreads float precision evenly over distance.
+ *
+ * Between frames and during the geometry stage, the render threads can
+ * also run other parallel work (see runParallel).
+ *
+ * For tuning scenes, a heatmap mode accumulates a cost per pixel (depth
+ * tests, shaded fragments or time) as each tile is rendered, then replaces
+ * the tile's colors with the cost in false color.
+ */
+public class Rasterizer {
+    // Side length of a screen tile in pixels.
+    public static final int TILE_SIZE = 32;
+
+    /**
+     * Storage formats of the depth target.
+     */
+    public enum DepthFormat {
+        // 32-bit float per sample.
+        FLOAT32,
+        // 16-bit unsigned normalized fixed point (half the memory).
+        UNORM16,
+        // 24-bit fixed point, stored in an int per sample.
+        FIXED24
+    }
+
+    /**
+     * Per-pixel costs a heatmap can show.
+     */
+    public enum Heatmap {
+        // Normal rendering.
+        OFF,
+        // Triangles depth tested at each pixel.
+        DEPTH_TESTS,
+        // Fragments shaded at each pixel (overdraw).
+        FRAGMENTS,
+        // Nanoseconds spent depth testing and shading each pixel.
+        TIME
+    }
+
+    // Layout of a set-up triangle in m_triData: the three edge equations
+    // (a/b/c each), the depth and 1/w planes, the world-space normal, then
+    // a plane per varying (of varying / w). Planes are a/b/c such that the
+    // value at pixel center (x, y) is a * x + b * y + c.
+    private static final int TRI_EDGES = 0;
+    private static final int TRI_DEPTH = 9;
+    private static final int TRI_INVW = 12;
+    private static final int TRI_NORMAL = 15;
+    private static final int TRI_VARYINGS = 18;
+
+    // Supported sample counts, and the sample positions within a pixel for
+    // each (x/y pairs, rotated grid).
+    public static final int MAX_SAMPLES = 4;
+    private static final float[] SAMPLES_1 = { 0.5f, 0.5f };
+    private static final float[] SAMPLES_2 = { 0.75f, 0.75f, 0.25f, 0.25f };
+    private static final float[] SAMPLES_4 = {
+        0.375f, 0.125f, 0.875f, 0.375f, 0.125f, 0.625f, 0.625f, 0.875f
+    };
+
+    // Value depth targets are cleared to (the far plane, which is the
+    // farthest depth in either direction), and the offset of flipped depth
+    // in odd frames when alternating. With reversed depth the far plane is
+    // 0, and odd frames store depth negated.
+    private static final float CLEAR_DEPTH = 1.0f;
+    private static final float REVERSED_DEPTH = 2.0f;
+    private static final float CLEAR_REVERSED_DEPTH = 0.0f;
+
+    // Clip-space outcodes.
+    private static final int OUT_LEFT = 1;
+    private static final int OUT_RIGHT = 2;
+    private static final int OUT_BOTTOM = 4;
+    private static final int OUT_TOP = 8;
+    private static final int OUT_NEAR = 16;
+    private static final int OUT_FAR = 32;
+
+    // Colors of a heatmap, from no cost (black) through blue, green,
+    // yellow and red to full cost (white).
+    private static final int[] HEAT_COLORS = new int[256];
+    static {
+        int[] stops = {
+            0x000000, 0x0000FF, 0x00FF00, 0xFFFF00, 0xFF0000, 0xFFFFFF
+        };
+        for (int i = 0; i < 256; ++i) {
+            int s = i * (stops.length - 1);
+            int stop = Math.min(s / 255, stops.length - 2);
+            HEAT_COLORS[i] = ColorMath.lerp(
+                stops[stop], stops[stop + 1], (s - stop * 255) * 256 / 255);
+        }
+    }
+
+    // Color model of the color target (packed RGB).
+    private static final DirectColorModel COLOR_MODEL =
+        new DirectColorModel(24, 0xFF0000, 0x00FF00, 0x0000FF);
+
+    // Color (packed RGB) and depth targets. The targets only grow: a
+    // smaller resolution uses the start of each, and the image is a view of
+    // the start of the color buffer.
+    private BufferedImage m_image;
+    private DataBufferInt m_buffer;
+    private int[] m_color;
+    private float[] m_depth;
+    // Depth target in the fixed-point formats (empty when unused), and the
+    // number of samples the depth target holds.
+    private short[] m_depth16 = new short[0];
+    private int[] m_depth24 = new int[0];
+    private int m_depthCapacity = 0;
+    // Format of the depth target, and whether closer depths are greater.
+    private DepthFormat m_depthFormat = DepthFormat.FLOAT32;
+    private boolean m_reversedDepth = false;
+    // Value the depth target is cleared to, and for fixed-point formats
+    // the largest stored value and the mapping from depth to it (the
+    // lowest depth stored, and the scale).
+    private float m_clearDepth = CLEAR_DEPTH;
+    private int m_depthMax = 0;
+    private float m_depthLow = -1.0f;
+    private float m_depthScale = 1.0f;
+    private int m_width;
+    private int m_height;
+    // Samples per pixel, their positions, and the color of each sample
+    // (unused with one sample per pixel). Depth holds every sample too.
+    private int m_samples = 1;
+    private float[] m_samplePositions = SAMPLES_1;
+    private int[] m_sampleColor = new int[0];
+
+    // Tile grid, and the triangles binned into each tile.
+    private int m_tilesX;
+    private int m_tilesY;
+    private int[][] m_tileTris;
+    private int[] m_tileTriCounts;
+    // Lights binned into each tile.
+    private Light[][] m_tileLights;
+    private int[] m_tileLightCounts;
+    // Whether only dirty tiles are cleared and rendered.
+    private boolean m_incremental = false;
+    // Tiles marked for the next frame (every tile if m_allDirty), and the
+    // list of tiles rendered this frame.
+    private boolean[] m_tileDirty;
+    private boolean m_allDirty = true;
+    private int[] m_dirtyTiles;
+    private int m_dirtyCount = 0;
+    // Color that cleared tiles are filled with.
+    private int m_clearColor = 0;
+    // Whether each tile's color is entirely the clear color, and the frame
+    // whose depth is all a tile's depth holds besides the clear value (-1
+    // if unknown).
+    private boolean[] m_tileBlank;
+    private int[] m_tileDepthFrame;
+    // Whether odd frames use reversed depth, and the frame number.
+    private boolean m_alternateDepth = false;
+    private int m_frameNumber = 0;
+    // Cost shown as a heatmap, the cost of each pixel, and the cost shown
+    // at full heat.
+    private Heatmap m_heatmap = Heatmap.OFF;
+    private int[] m_heat = new int[0];
+    private int m_heatScale = 1;
+    private int m_maxHeat = 0;
+
+    // Draws submitted this frame.
+    private ArrayList<DrawAction> m_draws = new ArrayList<DrawAction>();
+    // Set-up triangles: their data, offset into it, draw and pixel bounds
+    // (min x, min y, max x, max y).
+    private float[] m_triData = new float[1 << 16];
+    private int m_triDataSize = 0;
+    private int[] m_triOffsets = new int[1 << 12];
+    private int[] m_triDraws = new int[1 << 12];
+    private int[] m_triBounds = new int[4 << 12];
+    private int m_triCount = 0;
+
+    // Vertex stage state: the stamp of the draw each vertex was last
+    // shaded in, its slot in the shaded vertex array, and the batch of
+    // verts to shade.
+    private int[] m_vertexStamps = new int[0];
+    private int[] m_vertexSlots = new int[0];
+    private int m_stamp = 0;
+    private float[] m_shaded = new float[0];
+    private int[] m_batch = new int[0];
+    // Near-plane clipping scratch (up to 4 verts in, 4 out).
+    private float[] m_clipIn;
+    private float[] m_clipOut;
+
+    // Render threads. The submitting thread renders tiles too.
+    private Thread[] m_workers;
+    private TileContext[] m_contexts;
+    private final Object m_lock = new Object();
+    private int m_frame = 0;
+    private int m_pending = 0;
+    private AtomicInteger m_nextTile = new AtomicInteger();
+    // Task the threads run instead of the raster stage (null while
+    // rasterizing), its part count and the next part to run.
+    private IParallelTask m_task = null;
+    private int m_taskParts = 0;
+    private AtomicInteger m_nextPart = new AtomicInteger();
+    // Profiler the raster stage's tasks are timed with.
+    private Profiler m_profiler = new Profiler(2);
+
+    // Statistics of the last frame.
+    private int m_culledTris = 0;
+    private int m_clippedTris = 0;
+    private int m_drawnFragments = 0;
+    private int m_occludedFragments = 0;
+    private int m_lightCount = 0;
+    private int m_maxTileLights = 0;
+    private int m_clearedTiles = 0;
+
+    /**
+     * Per-thread raster state.
+     */
+    private static class TileContext {
+        final Fragments frags = new Fragments(TILE_SIZE);
+        // Samples written by each fragment of the span.
+        final int[] masks = new int[TILE_SIZE];
+        // Per-sample offsets of the current triangle's edge and depth
+        // values from the pixel center.
+        final float[] e0 = new float[MAX_SAMPLES];
+        final float[] e1 = new float[MAX_SAMPLES];
+        final float[] e2 = new float[MAX_SAMPLES];
+        final float[] z = new float[MAX_SAMPLES];
+        // Columns of each row of the tile whose depth was written (a bit
+        // per column, as a tile is 32 pixels wide).
+        final int[] written = new int[TILE_SIZE];
+        int drawnFragments;
+        int occludedFragments;
+        int clearedTiles;
+        int maxHeat;
+    }
+
+    /**
+     * Construct a rasterizer.
+     * @param width The width of the render target in pixels.
+     * @param height The height of the render target in pixels.
+     * @param threads The number of threads to rasterize with.
+     */
+    public Rasterizer(int width, int height, int threads) {
+        m_buffer = new DataBufferInt(0);
+        m_color = m_buffer.getData();
+        m_depth = new float[0];
+        updateDepthRange();
+        m_tileTris = new int[0][];
+        m_tileTriCounts = new int[0];
+        m_tileLights = new Light[0][];
+        m_tileLightCounts = new int[0];
+        m_tileDirty = new boolean[0];
+        m_dirtyTiles = new int[0];
+        m_tileBlank = new boolean[0];
+        m_tileDepthFrame = new int[0];
+        setResolution(width, height);
+
+        int clipSize = 4 * (4 + Fragments.MAX_VARYINGS);
+        m_clipIn = new float[clipSize];
+        m_clipOut = new float[clipSize];
+
+        // Start the render threads (the first context is the caller's).
+        threads = Math.max(threads, 1);
+        m_contexts = new TileContext[threads];
+        m_workers = new Thread[threads - 1];
+        m_contexts[0] = new TileContext();
+        for (int i = 1; i < threads; ++i) {
+            final TileContext ctx = new TileContext();
+            m_contexts[i] = ctx;
+            Thread t = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    int seen = 0;
+                    for (;;) {
+                        // Wait for the next frame or task.
+                        IParallelTask task;
+                        synchronized (m_lock) {
+                            while (m_frame == seen) {
+                                try {
+                                    m_lock.wait();
+                                } catch (InterruptedException e) {
+                                    return;
+                                }
+                            }
+                            seen = m_frame;
+                            task = m_task;
+                        }
+                        if (task == null) {
+                            renderTiles(ctx);
+                        } else {
+                            runParts(task);
+                        }
+                        synchronized (m_lock) {
+                            if (--m_pending == 0) m_lock.notifyAll();
+                        }
+                    }
+                }
+            }, "Raster " + i);
+            t.setDaemon(true);
+            t.start();
+            m_workers[i - 1] = t;
+        }
+    }
+
+    /**
+     * Get the image the rasterizer renders to. A new image is returned
+     * after the resolution changes.
+     * @return The color target.
+     */
+    public BufferedImage getImage() {
+        return m_image;
+    }
+
+    /**
+     * Copy the color target (packed RGB, in row order) out of the
+     * rasterizer, so it can be shown while the next frame renders.
+     * @param dst The array to copy to (at least width * height long).
+     */
+    public void copyColor(int[] dst) {
+        System.arraycopy(m_color, 0, dst, 0, m_width * m_height);
+    }
+
+    /**
+     * Get the number of threads rasterizing tiles.
+     * @return The thread count.
+     */
+    public int getThreadCount() {
+        return m_contexts.length;
+    }
+
+    /**
+     * Set the profiler the raster stage is timed with (each thread's tiles
+     * and the wait for the other threads to finish).
+     * @param profiler The profiler.
+     */
+    public void setProfiler(Profiler profiler) {
+        m_profiler = profiler;
+    }
+
+    /**
+     * Set the size of the render targets. The targets are only reallocated
+     * when they grow past their largest size so far, so changing the
+     * resolution every frame does not churn memory. Must not be called
+     * between beginFrame and endFrame.
+     * @param width The width in pixels.
+     * @param height The height in pixels.
+     */
+    public void setResolution(int width, int height) {
+        width = Math.max(width, 1);
+        height = Math.max(height, 1);
+        if (width == m_width && height == m_height) return;
+        m_width = width;
+        m_height = height;
+        // Nothing from the last frame lines up with the new size.
+        m_allDirty = true;
+
+        // Grow the targets if needed.
+        int pixels = width * height;
+        if (pixels > m_color.length) {
+            m_buffer = new DataBufferInt(pixels);
+            m_color = m_buffer.getData();
+        }
+        if (pixels * m_samples > m_depthCapacity) {
+            allocateDepth(pixels * m_samples);
+        }
+        if (m_samples > 1 && pixels * m_samples > m_sampleColor.length) {
+            m_sampleColor = new int[pixels * m_samples];
+        }
+        if (m_heatmap != Heatmap.OFF && pixels > m_heat.length) {
+            m_heat = new int[pixels];
+        }
+        // View the start of the color buffer as an image of the new size.
+        m_image = new BufferedImage(
+            COLOR_MODEL,
+            Raster.createPackedRaster(
+                m_buffer, width, height, width, COLOR_MODEL.getMasks(), null),
+            false,
+            null);
+
+        // Grow the tile grid if needed.
+        m_tilesX = (width + TILE_SIZE - 1) / TILE_SIZE;
+        m_tilesY = (height + TILE_SIZE - 1) / TILE_SIZE;
+        int tiles = m_tilesX * m_tilesY;
+        int oldTiles = m_tileTris.length;
+        if (tiles > oldTiles) {
+            m_tileTris = Arrays.copyOf(m_tileTris, tiles);
+            m_tileTriCounts = Arrays.copyOf(m_tileTriCounts, tiles);
+            m_tileLights = Arrays.copyOf(m_tileLights, tiles);
+            m_tileLightCounts = Arrays.copyOf(m_tileLightCounts, tiles);
+            m_tileDirty = new boolean[tiles];
+            m_dirtyTiles = new int[tiles];
+            m_tileBlank = new boolean[tiles];
+            m_tileDepthFrame = new int[tiles];
+            for (int i = oldTiles; i < tiles; ++i) {
+                m_tileTris[i] = new int[64];
+                m_tileLights[i] = new Light[8];
+            }
+        }
+        forgetTiles();
+    }
+
+    /**
+     * Get the width of the render targets.
+     * @return The width in pixels.
+     */
+    public int getWidth() {
+        return m_width;
+    }
+
+    /**
+     * Get the height of the render targets.
+     * @return The height in pixels.
+     */
+    public int getHeight() {
+        return m_height;
+    }
+
+    /**
+     * Set the number of coverage/depth samples per pixel.
+     * @param samples The sample count (1, 2 or 4).
+     */
+    public void setSampleCount(int samples) {
+        switch (samples) {
+            case 1: m_samplePositions = SAMPLES_1; break;
+            case 2: m_samplePositions = SAMPLES_2; break;
+            case 4: m_samplePositions = SAMPLES_4; break;
+            default:
+                throw new IllegalArgumentException(
+                    "Unsupported sample count: " + samples);
+        }
+        m_samples = samples;
+        // Keep room for the largest resolution used so far.
+        int pixels = m_color.length;
+        allocateDepth(pixels * samples);
+        m_sampleColor = new int[samples > 1 ? pixels * samples : 0];
+        m_allDirty = true;
+        forgetTiles();
+    }
+
+    /**
+     * Allocate the depth target in the current format, freeing the others.
+     * @param size The number of samples it holds.
+     */
+    private void allocateDepth(int size) {
+        m_depth = new float[m_depthFormat == DepthFormat.FLOAT32 ? size : 0];
+        m_depth16 = new short[m_depthFormat == DepthFormat.UNORM16 ? size : 0];
+        m_depth24 = new int[m_depthFormat == DepthFormat.FIXED24 ? size : 0];
+        m_depthCapacity = size;
+    }
+
+    /**
+     * Set the storage format of the depth target. Fixed-point formats
+     * store depth evenly spaced between the near and far planes' values,
+     * so with the usual projections they have most of their precision
+     * close to the camera (with or without reversed depth). Must not be
+     * called between beginFrame and endFrame.
+     * @param format The depth format.
+     */
+    public void setDepthFormat(DepthFormat format) {
+        if (format == m_depthFormat) return;
+        m_depthFormat = format;
+        allocateDepth(m_depthCapacity);
+        updateDepthRange();
+        m_allDirty = true;
+        forgetTiles();
+    }
+
+    /**
+     * Get the storage format of the depth target.
+     * @return The depth format.
+     */
+    public DepthFormat getDepthFormat() {
+        return m_depthFormat;
+    }
+
+    /**
+     * Set whether depth is reversed: projections map the near plane to 1
+     * and the far plane to 0, clipping keeps 0 <= z <= w, and greater
+     * depths are closer. Draws must use a matching projection (see
+     * Matrix4.perspectiveReversed). Must not be called between beginFrame
+     * and endFrame.
+     * @param reversed True to reverse depth.
+     */
+    public void setReversedDepth(boolean reversed) {
+        if (reversed == m_reversedDepth) return;
+        m_reversedDepth = reversed;
+        updateDepthRange();
+        m_allDirty = true;
+        forgetTiles();
+    }
+
+    /**
+     * Get whether depth is reversed.
+     * @return True if the near plane is at depth 1 and the far plane at 0.
+     */
+    public boolean isReversedDepth() {
+        return m_reversedDepth;
+    }
+
+    /**
+     * Get the memory taken by each sample of the depth target.
+     * @return The size of a depth sample in bytes.
+     */
+    public int getDepthBytes() {
+        return m_depthFormat == DepthFormat.UNORM16 ? 2 : 4;
+    }
+
+    /**
+     * Compute the depth clear value and the range of depths stored (which
+     * depends on the direction of depth and whether it alternates), and
+     * map that range onto the fixed-point formats.
+     */
+    private void updateDepthRange() {
+        m_clearDepth = m_reversedDepth ? CLEAR_REVERSED_DEPTH : CLEAR_DEPTH;
+        // Standard depth is -1 to 1 (1 + REVERSED_DEPTH when flipped), and
+        // reversed depth 0 to 1 (-1 when flipped).
+        float low = !m_reversedDepth || m_alternateDepth ? -1.0f : 0.0f;
+        float high = !m_reversedDepth && m_alternateDepth
+            ? REVERSED_DEPTH + 1.0f : 1.0f;
+        switch (m_depthFormat) {
+            case UNORM16: m_depthMax = (1 << 16) - 1; break;
+            case FIXED24: m_depthMax = (1 << 24) - 1; break;
+            default: m_depthMax = 0; break;
+        }
+        m_depthLow = low;
+        m_depthScale = m_depthMax / (high - low);
+    }
+
+    /**
+     * Convert a depth to the fixed-point value it is stored as.
+     * @param z The depth.
+     * @return The stored value (rounded, between 0 and m_depthMax).
+     */
+    private int toFixedDepth(float z) {
+        int d = (int) ((z - m_depthLow) * m_depthScale + 0.5f);
+        return Math.min(Math.max(d, 0), m_depthMax);
+    }
+
+    /**
+     * Forget what the tiles hold, so each is cleared when next rendered.
+     */
+    private void forgetTiles() {
+        Arrays.fill(m_tileBlank, false);
+        Arrays.fill(m_tileDepthFrame, -1);
+    }
+
+    /**
+     * Set the color that cleared pixels are filled with.
+     * @param color The clear color (packed RGB).
+     */
+    public void setClearColor(int color) {
+        if (color == m_clearColor) return;
+        m_clearColor = color;
+        Arrays.fill(m_tileBlank, false);
+        m_allDirty = true;
+    }
+
+    /**
+     * Get the color that cleared pixels are filled with.
+     * @return The clear color (packed RGB).
+     */
+    public int getClearColor() {
+        return m_clearColor;
+    }
+
+    /**
+     * Set whether odd frames store depth flipped, so tiles whose depth is
+     * all from the previous frame can skip their depth clear. This costs a
+     * bit of depth precision, except for reversed float depth (which is
+     * flipped by negating it).
+     * @param alternate True to alternate the depth direction.
+     */
+    public void setAlternatingDepth(boolean alternate) {
+        m_alternateDepth = alternate;
+        updateDepthRange();
+        Arrays.fill(m_tileDepthFrame, -1);
+    }
+
+    /**
+     * Get whether odd frames store depth flipped.
+     * @return True if the depth direction alternates.
+     */
+    public boolean isAlternatingDepth() {
+        return m_alternateDepth;
+    }
+
+    /**
+     * Replace the rendered colors with a heatmap of a per-pixel cost, to
+     * find where overdraw or expensive triangles are. Must not be called
+     * between beginFrame and endFrame.
+     * @param heatmap The cost to show, or OFF for normal rendering.
+     * @param scale The cost shown at full heat (white).
+     */
+    public void setHeatmap(Heatmap heatmap, int scale) {
+        scale = Math.max(scale, 1);
+        if (heatmap == m_heatmap && scale == m_heatScale) return;
+        m_heatmap = heatmap;
+        m_heatScale = scale;
+        if (heatmap != Heatmap.OFF && m_heat.length < m_color.length) {
+            m_heat = new int[m_color.length];
+        }
+        // Every tile shows the old colors.
+        Arrays.fill(m_tileBlank, false);
+        m_allDirty = true;
+    }
+
+    /**
+     * Get the cost shown as a heatmap.
+     * @return The cost, or OFF.
+     */
+    public Heatmap getHeatmap() {
+        return m_heatmap;
+    }
+
+    /**
+     * Get the cost shown at full heat.
+     * @return The cost scale.
+     */
+    public int getHeatmapScale() {
+        return m_heatScale;
+    }
+
+    /**
+     * Get the largest cost of a pixel rendered last frame.
+     * @return The largest cost, or 0 when the heatmap is off.
+     */
+    public int getMaxHeat() {
+        return m_maxHeat;
+    }
+
+    /**
+     * Copy the cost of each pixel (row order, getWidth by getHeight) when
+     * the heatmap is on.
+     * @param dst The array to copy into.
+     */
+    public void copyHeat(int[] dst) {
+        System.arraycopy(m_heat, 0, dst, 0, m_width * m_height);
+    }
+
+    /**
+     * Get the number of coverage/depth samples per pixel.
+     * @return The sample count.
+     */
+    public int getSampleCount() {
+        return m_samples;
+    }
+
+    /**
+     * Get the number of tile columns.
+     * @return The horizontal tile count.
+     */
+    public int getTilesX() {
+        return m_tilesX;
+    }
+
+    /**
+     * Get the number of tile rows.
+     * @return The vertical tile count.
+     */
+    public int getTilesY() {
+        return m_tilesY;
+    }
+
+    /**
+     * Set whether only dirty tiles are cleared and rendered, keeping the
+     * previous frame elsewhere. Regions that change must then be marked
+     * with markDirty before each frame begins.
+     * @param incremental True to render incrementally.
+     */
+    public void setIncremental(boolean incremental) {
+        m_incremental = incremental;
+        m_allDirty = true;
+    }
+
+    /**
+     * Get whether only dirty tiles are cleared and rendered.
+     * @return True if rendering incrementally.
+     */
+    public boolean isIncremental() {
+        return m_incremental;
+    }
+
+    /**
+     * Mark a region to be cleared and rendered in the next frame (in
+     * incremental mode). Must be called before beginFrame.
+     * @param x0 The first column in pixels.
+     * @param y0 The first row in pixels.
+     * @param x1 The last column in pixels.
+     * @param y1 The last row in pixels.
+     */
+    public void markDirty(int x0, int y0, int x1, int y1) {
+        x0 = Math.max(x0, 0);
+        y0 = Math.max(y0, 0);
+        x1 = Math.min(x1, m_width - 1);
+        y1 = Math.min(y1, m_height - 1);
+        for (int ty = y0 / TILE_SIZE; ty <= y1 / TILE_SIZE; ++ty) {
+            for (int tx = x0 / TILE_SIZE; tx <= x1 / TILE_SIZE; ++tx) {
+                m_tileDirty[ty * m_tilesX + tx] = true;
+            }
+        }
+    }
+
+    /**
+     * Mark every tile to be cleared and rendered in the next frame.
+     */
+    public void markAllDirty() {
+        m_allDirty = true;
+    }
+
+    /**
+     * Check whether any part of a region will be rendered this frame.
+     * @param x0 The first column in pixels.
+     * @param y0 The first row in pixels.
+     * @param x1 The last column in pixels.
+     * @param y1 The last row in pixels.
+     * @return True if a tile overlapping the region is dirty.
+     */
+    public boolean isDirty(int x0, int y0, int x1, int y1) {
+        if (m_allDirty || !m_incremental) return true;
+        x0 = Math.max(x0, 0);
+        y0 = Math.max(y0, 0);
+        x1 = Math.min(x1, m_width - 1);
+        y1 = Math.min(y1, m_height - 1);
+        for (int ty = y0 / TILE_SIZE; ty <= y1 / TILE_SIZE; ++ty) {
+            for (int tx = x0 / TILE_SIZE; tx <= x1 / TILE_SIZE; ++tx) {
+                if (m_tileDirty[ty * m_tilesX + tx]) return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Get the number of tiles rendered this frame (every tile unless
+     * rendering incrementally).
+     * @return The dirty tile count.
+     */
+    public int getDirtyTileCount() {
+        return m_dirtyCount;
+    }
+
+    /**
+     * Start a frame, clearing the lights and choosing the tiles to render
+     * (only the dirty tiles when rendering incrementally). The tiles are
+     * cleared as they are rendered.
+     */
+    public void beginFrame() {
+        int tiles = m_tilesX * m_tilesY;
+        ++m_frameNumber;
+        m_dirtyCount = 0;
+        if (!m_incremental || m_allDirty) {
+            Arrays.fill(m_tileDirty, 0, tiles, true);
+        }
+        for (int i = 0; i < tiles; ++i) {
+            if (m_tileDirty[i]) m_dirtyTiles[m_dirtyCount++] = i;
+        }
+        m_allDirty = false;
+        Arrays.fill(m_tileTriCounts, 0, tiles, 0);
+        Arrays.fill(m_tileLightCounts, 0, tiles, 0);
+        m_lightCount = 0;
+        m_maxTileLights = 0;
+        m_draws.clear();
+        m_triCount = 0;
+        m_triDataSize = 0;
+        m_culledTris = 0;
+        m_clippedTris = 0;
+    }
+
+    /**
+     * Fill the color of a rectangle of pixels (and of their samples) with
+     * the clear color.
+     * @param x0 The first column.
+     * @param y0 The first row.
+     * @param x1 The column after the last.
+     * @param y1 The row after the last.
+     */
+    private void clearColor(int x0, int y0, int x1, int y1) {
+        int samples = m_samples;
+        for (int y = y0; y < y1; ++y) {
+            int row = y * m_width;
+            Arrays.fill(m_color, row + x0, row + x1, m_clearColor);
+            if (samples > 1) {
+                Arrays.fill(
+                    m_sampleColor,
+                    (row + x0) * samples,
+                    (row + x1) * samples,
+                    m_clearColor);
+            }
+        }
+    }
+
+    /**
+     * Fill the depth of a rectangle of pixels (and of their samples) with
+     * the clear value.
+     * @param x0 The first column.
+     * @param y0 The first row.
+     * @param x1 The column after the last.
+     * @param y1 The row after the last.
+     */
+    private void clearDepth(int x0, int y0, int x1, int y1) {
+        int samples = m_samples;
+        int clear = toFixedDepth(m_clearDepth);
+        for (int y = y0; y < y1; ++y) {
+            int from = (y * m_width + x0) * samples;
+            int to = (y * m_width + x1) * samples;
+            switch (m_depthFormat) {
+                case UNORM16:
+                    Arrays.fill(m_depth16, from, to, (short) clear);
+                    break;
+                case FIXED24:
+                    Arrays.fill(m_depth24, from, to, clear);
+                    break;
+                default:
+                    Arrays.fill(m_depth, from, to, m_clearDepth);
+                    break;
+            }
+        }
+    }
+
+    /**
+     * Depth test a sample, storing its depth if it passes.
+     * @param i The index of the sample in the depth target.
+     * @param z The depth of the sample (for fixed-point formats, already
+     * mapped to the stored range).
+     * @param greater Whether greater depths are closer.
+     * @return True if the sample passed.
+     */
+    private boolean testDepth(int i, float z, boolean greater) {
+        if (m_depthFormat == DepthFormat.FLOAT32) {
+            float old = m_depth[i];
+            if (greater ? z > old : z < old) {
+                m_depth[i] = z;
+                return true;
+            }
+            return false;
+        }
+        int d = Math.min(Math.max((int) z, 0), m_depthMax);
+        if (m_depthFormat == DepthFormat.UNORM16) {
+            int old = m_depth16[i] & 0xFFFF;
+            if (greater ? d > old : d < old) {
+                m_depth16[i] = (short) d;
+                return true;
+            }
+            return false;
+        }
+        int old = m_depth24[i];
+        if (greater ? d > old : d < old) {
+            m_depth24[i] = d;
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Set the lights of the frame, binning each into the tiles its range
+     * may cover on screen. The projection must be a perspective projection
+     * with clip w equal to view depth.
+     * @param lights The lights.
+     * @param view The view matrix of the frame.
+     * @param proj The projection matrix of the frame.
+     */
+    public void setLights(List<Light> lights, Matrix4 view, Matrix4 proj) {
+        Arrays.fill(m_tileLightCounts, 0, m_tilesX * m_tilesY, 0);
+        m_lightCount = lights.size();
+        int[] bounds = new int[4];
+        for (Light l : lights) {
+            if (!projectSphere(l.position, l.range, view, proj, bounds)) {
+                continue;
+            }
+            int tx0 = bounds[0] / TILE_SIZE;
+            int ty0 = bounds[1] / TILE_SIZE;
+            int tx1 = bounds[2] / TILE_SIZE;
+            int ty1 = bounds[3] / TILE_SIZE;
+            for (int ty = ty0; ty <= ty1; ++ty) {
+                for (int tx = tx0; tx <= tx1; ++tx) {
+                    int tile = ty * m_tilesX + tx;
+                    int n = m_tileLightCounts[tile];
+                    if (n == m_tileLights[tile].length) {
+                        m_tileLights[tile] =
+                            Arrays.copyOf(m_tileLights[tile], n * 2);
+                    }
+                    m_tileLights[tile][n] = l;
+                    m_tileLightCounts[tile] = n + 1;
+                }
+            }
+        }
+
+        m_maxTileLights = 0;
+        for (int i = 0; i < m_tilesX * m_tilesY; ++i) {
+            m_maxTileLights = Math.max(m_maxTileLights, m_tileLightCounts[i]);
+        }
+    }
+
+    /**
+     * Bound the pixels a sphere may cover on screen. The projection must be
+     * a perspective projection with clip w equal to view depth.
+     * @param center The world-space center of the sphere.
+     * @param r The radius of the sphere.
+     * @param view The view matrix.
+     * @param proj The projection matrix.
+     * @param bounds The array to write the pixel bounds to (min x, min y,
+     * max x, max y, inclusive).
+     * @return False if the sphere is entirely off screen.
+     */
+    public boolean projectSphere(
+        Vector3 center, float r, Matrix4 view, Matrix4 proj, int[] bounds) {
+        Vector4 c = view.mult(new Vector4(center, 1.0f));
+        // Entirely behind the camera.
+        if (c.z + r <= 0.0f) return false;
+
+        int minX = 0;
+        int minY = 0;
+        int maxX = m_width - 1;
+        int maxY = m_height - 1;
+        if (c.z - r > 0.0f) {
+            // Bound the sphere's projection by the planes through the eye
+            // that touch it (horizontally, then vertically).
+            float left = proj.a.x * tangentSlope(c.x, c.z, r, -1.0f)
+                + proj.a.z;
+            float right = proj.a.x * tangentSlope(c.x, c.z, r, 1.0f)
+                + proj.a.z;
+            float bottom = proj.b.y * tangentSlope(c.y, c.z, r, -1.0f)
+                + proj.b.z;
+            float top = proj.b.y * tangentSlope(c.y, c.z, r, 1.0f)
+                + proj.b.z;
+            minX = Math.max(
+                (int) Math.floor((left + 1.0f) * 0.5f * m_width), 0);
+            maxX = Math.min(
+                (int) Math.ceil((right + 1.0f) * 0.5f * m_width),
+                m_width - 1);
+            minY = Math.max(
+                (int) Math.floor((1.0f - top) * 0.5f * m_height), 0);
+            maxY = Math.min(
+                (int) Math.ceil((1.0f - bottom) * 0.5f * m_height),
+                m_height - 1);
+        } else {
+            // The sphere crosses the eye plane, so it may reach any
+            // distance from the center of the screen, but a sphere entirely
+            // to one side of the eye stays on that side.
+            if (c.x + r < 0.0f) maxX = m_width / 2;
+            if (c.x - r > 0.0f) minX = m_width / 2;
+            if (c.y + r < 0.0f) minY = m_height / 2;
+            if (c.y - r > 0.0f) maxY = m_height / 2;
+        }
+        if (minX > maxX || minY > maxY) return false;
+        bounds[0] = minX;
+        bounds[1] = minY;
+        bounds[2] = maxX;
+        bounds[3] = maxY;
+        return true;
+    }
+
+    /**
+     * Compute the slope (offset per unit of depth) of a line through the
+     * eye touching a circle in front of it.
+     * @param c The offset of the circle's center across the view.
+     * @param z The depth of the circle's center (greater than r).
+     * @param r The radius of the circle.
+     * @param side -1 for the lower tangent, 1 for the upper.
+     * @return The slope of the tangent.
+     */
+    private static float tangentSlope(float c, float z, float r, float side) {
+        float d = (float) Math.sqrt(c * c + z * z - r * r);
+        return (c * z + side * r * d) / (z * z - r * r);
+    }
+
+    /**
+     * Run the geometry stage of a draw, binning its triangles for the
+     * raster stage.
+     * @param d The draw to submit.
+     */
+    public void draw(DrawAction d) {
+        int drawIndex = m_draws.size();
+        m_draws.add(d);
+
+        IVertexShader vs = d.material.getVertexShader();
+        int stride = 4 + vs.getVaryingCount();
+        FloatBuffer vertices = d.resource.getVertexData();
+        IntBuffer indices = d.resource.getIndices();
+        Matrix4 model = d.uniforms.model;
+
+        // Start a new vertex cache generation.
+        int vertexCount = vertices.limit() / MeshResource.VERTEX_STRIDE;
+        if (m_vertexStamps.length < vertexCount) {
+            m_vertexStamps = new int[vertexCount];
+            m_vertexSlots = new int[vertexCount];
+        }
+        if (++m_stamp == Integer.MAX_VALUE) {
+            Arrays.fill(m_vertexStamps, 0);
+            m_stamp = 1;
+        }
+        if (m_shaded.length < vertexCount * stride) {
+            m_shaded = new float[vertexCount * stride];
+        }
+        int shadedCount = 0;
+
+        for (int mi = 0; mi < d.meshletCount; ++mi) {
+            Meshlet ml = d.meshlets[mi];
+            int start = ml.offset * 3;
+            int end = (ml.offset + ml.count) * 3;
+
+            // Shade the verts of the meshlet not shaded yet in this draw.
+            if (m_batch.length < end - start) {
+                m_batch = new int[end - start];
+            }
+            int batchCount = 0;
+            for (int i = start; i < end; ++i) {
+                int v = indices.get(i);
+                if (m_vertexStamps[v] != m_stamp) {
+                    m_vertexStamps[v] = m_stamp;
+                    m_vertexSlots[v] = shadedCount + batchCount;
+                    m_batch[batchCount++] = v;
+                }
+            }
+            vs.shade(
+                d.uniforms,
+                vertices,
+                m_batch,
+                batchCount,
+                m_shaded,
+                shadedCount * stride);
+            shadedCount += batchCount;
+
+            // Clip, cull and set up each triangle.
+            for (int i = start; i < end; i += 3) {
+                int ia = indices.get(i);
+                int ib = indices.get(i + 1);
+                int ic = indices.get(i + 2);
+                processTriangle(
+                    drawIndex,
+                    stride,
+                    m_vertexSlots[ia] * stride,
+                    m_vertexSlots[ib] * stride,
+                    m_vertexSlots[ic] * stride,
+                    faceNormal(model, vertices, ia, ib, ic));
+            }
+        }
+    }
+
+    /**
+     * Compute the world-space outward facing normal of a triangle.
+     * @param model The model matrix.
+     * @param vertices The interleaved vertex data.
+     * @param ia The first vertex.
+     * @param ib The second vertex.
+     * @param ic The third vertex.
+     * @return The unit normal (zero for degenerate triangles).
+     */
+    private static Vector3 faceNormal(
+        Matrix4 model, FloatBuffer vertices, int ia, int ib, int ic) {
+        Vector3 a = model.mult(position(vertices, ia)).wdivide();
+        Vector3 b = model.mult(position(vertices, ib)).wdivide();
+        Vector3 c = model.mult(position(vertices, ic)).wdivide();
+        return b.sub(a).cross(c.sub(a)).normalizeOrZero();
+    }
+
+    /**
+     * Read the position of a vertex.
+     * @param vertices The interleaved vertex data.
+     * @param v The vertex index.
+     * @return The position as a point (w = 1).
+     */
+    private static Vector4 position(FloatBuffer vertices, int v) {
+        int base =
+            v * MeshResource.VERTEX_STRIDE + MeshResource.POSITION_OFFSET;
+        return new Vector4(
+            vertices.get(base),
+            vertices.get(base + 1),
+            vertices.get(base + 2),
+            1.0f);
+    }
+
+    /**
+     * Compute the clip-space outcode of a shaded vertex. The near and far
+     * planes are at z = -w and z = w, or with reversed depth at z = w and
+     * z = 0.
+     * @param v The shaded vertex array.
+     * @param o The position of the vertex in v.
+     * @return The planes the vertex is outside of.
+     */
+    private int outcode(float[] v, int o) {
+        float x = v[o];
+        float y = v[o + 1];
+        float z = v[o + 2];
+        float w = v[o + 3];
+        int code = 0;
+        if (x < -w) code |= OUT_LEFT;
+        if (x > w) code |= OUT_RIGHT;
+        if (y < -w) code |= OUT_BOTTOM;
+        if (y > w) code |= OUT_TOP;
+        if (m_reversedDepth) {
+            if (z > w) code |= OUT_NEAR;
+            if (z < 0.0f) code |= OUT_FAR;
+        } else {
+            if (z < -w) code |= OUT_NEAR;
+            if (z > w) code |= OUT_FAR;
+        }
+        return code;
+    }
+
+    /**
+     * Reject, clip and set up a triangle of shaded verts.
+     * @param drawIndex The draw the triangle belongs to.
+     * @param stride The floats per shaded vertex.
+     * @param a The position of the first vertex in m_shaded.
+     * @param b The position of the second vertex in m_shaded.
+     * @param c The position of the third vertex in m_shaded.
+     * @param normal The world-space face normal.
+     */
+    private void processTriangle(
+        int drawIndex, int stride, int a, int b, int c, Vector3 normal) {
+        float[] s = m_shaded;
+        int ca = outcode(s, a);
+        int cb = outcode(s, b);
+        int cc = outcode(s, c);
+        // Entirely outside one plane.
+        if ((ca & cb & cc) != 0) {
+            ++m_clippedTris;
+            return;
+        }
+        // In front of the near plane, so w is positive everywhere.
+        if (((ca | cb | cc) & OUT_NEAR) == 0) {
+            setupTriangle(drawIndex, stride, s, a, s, b, s, c, normal);
+            return;
+        }
+
+        // Clip the triangle against the near plane (z = -w, or z = w with
+        // reversed depth), giving a polygon of up to four verts.
+        boolean reversed = m_reversedDepth;
+        float[] in = m_clipIn;
+        System.arraycopy(s, a, in, 0, stride);
+        System.arraycopy(s, b, in, stride, stride);
+        System.arraycopy(s, c, in, stride * 2, stride);
+        float[] out = m_clipOut;
+        int count = 0;
+        for (int i = 0; i < 3; ++i) {
+            int p = i * stride;
+            int q = ((i + 1) % 3) * stride;
+            // Distances in front of the plane.
+            float dp = reversed
+                ? in[p + 3] - in[p + 2] : in[p + 2] + in[p + 3];
+            float dq = reversed
+                ? in[q + 3] - in[q + 2] : in[q + 2] + in[q + 3];
+            if (dp >= 0.0f) {
+                System.arraycopy(in, p, out, count * stride, stride);
+                ++count;
+            }
+            if ((dp >= 0.0f) != (dq >= 0.0f)) {
+                // Add the intersection of the edge with the plane.
+                float t = dp / (dp - dq);
+                int o = count * stride;
+                for (int k = 0; k < stride; ++k) {
+                    out[o + k] = in[p + k] + (in[q + k] - in[p + k]) * t;
+                }
+                ++count;
+            }
+        }
+        // Fan the polygon into triangles.
+        for (int i = 1; i + 1 < count; ++i) {
+            setupTriangle(
+                drawIndex,
+                stride,
+                out,
+                0,
+                out,
+                i * stride,
+                out,
+                (i + 1) * stride,
+                normal);
+        }
+    }
+
+    /**
+     * Set up the edge and interpolation equations of a triangle in front
+     * of the near plane, and bin it into tiles.
+     * @param drawIndex The draw the triangle belongs to.
+     * @param stride The floats per shaded vertex.
+     * @param va The array holding the first vertex.
+     * @param a The position of the first vertex.
+     * @param vb The array holding the second vertex.
+     * @param b The position of the second vertex.
+     * @param vc The array holding the third vertex.
+     * @param c The position of the third vertex.
+     * @param normal The world-space face normal.
+     */
+    private void setupTriangle(
+        int drawIndex,
+        int stride,
+        float[] va, int a,
+        float[] vb, int b,
+        float[] vc, int c,
+        Vector3 normal) {
+        // Project to pixel coordinates (y down).
+        float qa = 1.0f / va[a + 3];
+        float qb = 1.0f / vb[b + 3];
+        float qc = 1.0f / vc[c + 3];
+        float xa = (va[a] * qa + 1.0f) * 0.5f * m_width;
+        float ya = (1.0f - va[a + 1] * qa) * 0.5f * m_height;
+        float xb = (vb[b] * qb + 1.0f) * 0.5f * m_width;
+        float yb = (1.0f - vb[b + 1] * qb) * 0.5f * m_height;
+        float xc = (vc[c] * qc + 1.0f) * 0.5f * m_width;
+        float yc = (1.0f - vc[c + 1] * qc) * 0.5f * m_height;
+
+        // Discard face if it is facing backwards (or has no area).
+        float area = (xb - xa) * (yc - ya) - (xc - xa) * (yb - ya);
+        if (!(area > 0.0f)) {
+            ++m_culledTris;
+            return;
+        }
+
+        // Pixels whose centers (or, when multisampling, any part) may be
+        // covered.
+        float inset = m_samples > 1 ? 0.0f : 0.5f;
+        float left = Math.min(xa, Math.min(xb, xc)) - inset;
+        float top = Math.min(ya, Math.min(yb, yc)) - inset;
+        int minX = Math.max(
+            (int) (m_samples > 1 ? Math.floor(left) : Math.ceil(left)), 0);
+        int minY = Math.max(
+            (int) (m_samples > 1 ? Math.floor(top) : Math.ceil(top)), 0);
+        int maxX = Math.min(
+            (int) Math.floor(Math.max(xa, Math.max(xb, xc)) - inset),
+            m_width - 1);
+        int maxY = Math.min(
+            (int) Math.floor(Math.max(ya, Math.max(yb, yc)) - inset),
+            m_height - 1);
+        if (minX > maxX || minY > maxY) return;
+
+        // Reserve space for the triangle.
+        int varyings = stride - 4;
+        int size = TRI_VARYINGS + varyings * 3;
+        if (m_triDataSize + size > m_triData.length) {
+            m_triData = Arrays.copyOf(
+                m_triData,
+                Math.max(m_triData.length * 2, m_triDataSize + size));
+        }
+        if (m_triCount == m_triOffsets.length) {
+            m_triOffsets = Arrays.copyOf(m_triOffsets, m_triCount * 2);
+            m_triDraws = Arrays.copyOf(m_triDraws, m_triCount * 2);
+            m_triBounds = Arrays.copyOf(m_triBounds, m_triCount * 8);
+        }
+        float[] t = m_triData;
+        int o = m_triDataSize;
+
+        // Edge equations, positive inside (since the area is positive).
+        t[o + TRI_EDGES + 0] = ya - yb;
+        t[o + TRI_EDGES + 1] = xb - xa;
+        t[o + TRI_EDGES + 2] = xa * yb - ya * xb;
+        t[o + TRI_EDGES + 3] = yb - yc;
+        t[o + TRI_EDGES + 4] = xc - xb;
+        t[o + TRI_EDGES + 5] = xb * yc - yb * xc;
+        t[o + TRI_EDGES + 6] = yc - ya;
+        t[o + TRI_EDGES + 7] = xa - xc;
+        t[o + TRI_EDGES + 8] = xc * ya - yc * xa;
+
+        // Interpolation planes.
+        float inv = 1.0f / area;
+        float dxb = xb - xa;
+        float dyb = yb - ya;
+        float dxc = xc - xa;
+        float dyc = yc - ya;
+        setPlane(t, o + TRI_DEPTH,
+            va[a + 2] * qa, vb[b + 2] * qb, vc[c + 2] * qc,
+            xa, ya, dxb, dyb, dxc, dyc, inv);
+        setPlane(t, o + TRI_INVW, qa, qb, qc, xa, ya, dxb, dyb, dxc, dyc, inv);
+        for (int k = 0; k < varyings; ++k) {
+            setPlane(t, o + TRI_VARYINGS + k * 3,
+                va[a + 4 + k] * qa, vb[b + 4 + k] * qb, vc[c + 4 + k] * qc,
+                xa, ya, dxb, dyb, dxc, dyc, inv);
+        }
+        t[o + TRI_NORMAL + 0] = normal.x;
+        t[o + TRI_NORMAL + 1] = normal.y;
+        t[o + TRI_NORMAL + 2] = normal.z;
+
+        int tri = m_triCount++;
+        m_triDataSize += size;
+        m_triOffsets[tri] = o;
+        m_triDraws[tri] = drawIndex;
+        m_triBounds[tri * 4 + 0] = minX;
+        m_triBounds[tri * 4 + 1] = minY;
+        m_triBounds[tri * 4 + 2] = maxX;
+        m_triBounds[tri * 4 + 3] = maxY;
+
+        // Bin the triangle into every tile its bounds overlap that is
+        // rendered this frame.
+        for (int ty = minY / TILE_SIZE; ty <= maxY / TILE_SIZE; ++ty) {
+            for (int tx = minX / TILE_SIZE; tx <= maxX / TILE_SIZE; ++tx) {
+                int tile = ty * m_tilesX + tx;
+                if (!m_tileDirty[tile]) continue;
+                int n = m_tileTriCounts[tile];
+                if (n == m_tileTris[tile].length) {
+                    m_tileTris[tile] = Arrays.copyOf(m_tileTris[tile], n * 2);
+                }
+                m_tileTris[tile][n] = tri;
+                m_tileTriCounts[tile] = n + 1;
+            }
+        }
+    }
+
+    /**
+     * Compute the plane through three per-vertex values in pixel space.
+     * @param t The array to write the plane to.
+     * @param o The position in t to write to.
+     * @param fa The value at the first vertex.
+     * @param fb The value at the second vertex.
+     * @param fc The value at the third vertex.
+     * @param xa The x coordinate of the first vertex.
+     * @param ya The y coordinate of the first vertex.
+     * @param dxb The x offset of the second vertex from the first.
+     * @param dyb The y offset of the second vertex from the first.
+     * @param dxc The x offset of the third vertex from the first.
+     * @param dyc The y offset of the third vertex from the first.
+     * @param inv The reciprocal of the triangle's doubled signed area.
+     */
+    private static void setPlane(
+        float[] t, int o,
+        float fa, float fb, float fc,
+        float xa, float ya,
+        float dxb, float dyb, float dxc, float dyc,
+        float inv) {
+        float dfb = fb - fa;
+        float dfc = fc - fa;
+        float gx = (dfb * dyc - dfc * dyb) * inv;
+        float gy = (dfc * dxb - dfb * dxc) * inv;
+        t[o] = gx;
+        t[o + 1] = gy;
+        t[o + 2] = fa - gx * xa - gy * ya;
+    }
+
+    /**
+     * Run a task on the render threads (and the calling thread), between
+     * frames or during the geometry stage, and wait for it to finish.
+     * @param task The task.
+     * @param parts The number of parts to split it into.
+     */
+    public void runParallel(IParallelTask task, int parts) {
+        if (parts <= 0) return;
+        m_nextPart.set(0);
+        m_taskParts = parts;
+        synchronized (m_lock) {
+            m_task = task;
+            m_pending = m_workers.length;
+            ++m_frame;
+            m_lock.notifyAll();
+        }
+        runParts(task);
+        waitForWorkers();
+        m_task = null;
+    }
+
+    /**
+     * Run parts of a task until none are left.
+     * @param task The task.
+     */
+    private void runParts(IParallelTask task) {
+        for (;;) {
+            int part = m_nextPart.getAndIncrement();
+            if (part >= m_taskParts) return;
+            task.run(part);
+        }
+    }
+
+    /**
+     * Wait for every render thread to finish its work.
+     */
+    private void waitForWorkers() {
+        synchronized (m_lock) {
+            while (m_pending > 0) {
+                try {
+                    m_lock.wait();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    break;
+                }
+            }
+        }
+    }
+
+    /**
+     * Run the raster stage for every dirty tile and wait for it to
+     * finish.
+     */
+    public void endFrame() {
+        m_nextTile.set(0);
+        synchronized (m_lock) {
+            m_task = null;
+            m_pending = m_workers.length;
+            ++m_frame;
+            m_lock.notifyAll();
+        }
+        renderTiles(m_contexts[0]);
+        long start = m_profiler.begin();
+        waitForWorkers();
+        m_profiler.end("Wait for tiles", start);
+        // The rendered tiles are clean until marked again.
+        for (int i = 0; i < m_dirtyCount; ++i) {
+            m_tileDirty[m_dirtyTiles[i]] = false;
+        }
+
+        // Gather statistics.
+        m_drawnFragments = 0;
+        m_occludedFragments = 0;
+        m_clearedTiles = 0;
+        m_maxHeat = 0;
+        for (TileContext ctx : m_contexts) {
+            m_drawnFragments += ctx.drawnFragments;
+            m_occludedFragments += ctx.occludedFragments;
+            m_clearedTiles += ctx.clearedTiles;
+            m_maxHeat = Math.max(m_maxHeat, ctx.maxHeat);
+            ctx.drawnFragments = 0;
+            ctx.occludedFragments = 0;
+            ctx.clearedTiles = 0;
+            ctx.maxHeat = 0;
+        }
+    }
+
+    /**
+     * Render dirty tiles until none are left.
+     * @param ctx The raster state of the calling thread.
+     */
+    private void renderTiles(TileContext ctx) {
+        Profiler profiler = m_profiler;
+        long start = profiler.begin();
+        for (;;) {
+            int next = m_nextTile.getAndIncrement();
+            if (next >= m_dirtyCount) break;
+            long tileStart = profiler.begin();
+            renderTile(ctx, m_dirtyTiles[next]);
+            profiler.end("Tile", tileStart, m_dirtyTiles[next]);
+        }
+        profiler.end("Tiles", start);
+    }
+
+    /**
+     * Render the triangles binned into a tile.
+     * @param ctx The raster state of the calling thread.
+     * @param tile The tile index.
+     */
+    private void renderTile(TileContext ctx, int tile) {
+        int tileX = (tile % m_tilesX) * TILE_SIZE;
+        int tileY = (tile / m_tilesX) * TILE_SIZE;
+        int tileMaxX = Math.min(tileX + TILE_SIZE, m_width) - 1;
+        int tileMaxY = Math.min(tileY + TILE_SIZE, m_height) - 1;
+        int[] tris = m_tileTris[tile];
+        int count = m_tileTriCounts[tile];
+        Fragments f = ctx.frags;
+        float[] t = m_triData;
+        int[] color = m_color;
+        int[] sampleColor = m_sampleColor;
+        int samples = m_samples;
+        float[] positions = m_samplePositions;
+        int drawn = 0;
+        int occluded = 0;
+        f.lights = m_tileLights[tile];
+        f.lightCount = m_tileLightCounts[tile];
+        // Heat of each pixel, if shown.
+        int[] heat = m_heatmap != Heatmap.OFF ? m_heat : null;
+        boolean timed = m_heatmap == Heatmap.TIME;
+        if (heat != null) {
+            for (int y = tileY; y <= tileMaxY; ++y) {
+                Arrays.fill(
+                    heat, y * m_width + tileX, y * m_width + tileMaxX + 1, 0);
+            }
+        }
+
+        // Tiles without triangles only need the clear color.
+        if (count == 0) {
+            if (heat != null) {
+                paintHeat(ctx, tileX, tileY, tileMaxX, tileMaxY);
+                m_tileBlank[tile] = false;
+            } else if (!m_tileBlank[tile]) {
+                clearColor(tileX, tileY, tileMaxX + 1, tileMaxY + 1);
+                m_tileBlank[tile] = true;
+                ++ctx.clearedTiles;
+            }
+            return;
+        }
+        if (!m_tileBlank[tile]) {
+            clearColor(tileX, tileY, tileMaxX + 1, tileMaxY + 1);
+        }
+        // With alternating depth, a tile whose depth is all from the last
+        // frame is already farther than anything drawn in this one. Keep
+        // track of whether this frame writes all of it, so the next frame
+        // can skip its clear too.
+        boolean flipped = m_alternateDepth && (m_frameNumber & 1) != 0;
+        // Whether closer depths are greater this frame.
+        boolean greater = m_reversedDepth != flipped;
+        boolean fixed = m_depthFormat != DepthFormat.FLOAT32;
+        boolean track = false;
+        int depthFrame = m_frameNumber;
+        if (
+            m_alternateDepth
+            && m_tileDepthFrame[tile] == m_frameNumber - 1) {
+            track = samples == 1;
+            if (track) {
+                Arrays.fill(ctx.written, 0);
+            } else {
+                depthFrame = -1;
+            }
+        } else {
+            clearDepth(tileX, tileY, tileMaxX + 1, tileMaxY + 1);
+        }
+        ++ctx.clearedTiles;
+
+        for (int n = 0; n < count; ++n) {
+            int tri = tris[n];
+            DrawAction d = m_draws.get(m_triDraws[tri]);
+            Uniforms u = d.uniforms;
+            IFragmentShader fs = d.material.getFragmentShader();
+            int o = m_triOffsets[tri];
+            int varyings = d.material.getVertexShader().getVaryingCount();
+
+            // Clip the triangle's bounds to the tile.
+            int x0 = Math.max(m_triBounds[tri * 4 + 0], tileX);
+            int y0 = Math.max(m_triBounds[tri * 4 + 1], tileY);
+            int x1 = Math.min(m_triBounds[tri * 4 + 2], tileMaxX);
+            int y1 = Math.min(m_triBounds[tri * 4 + 3], tileMaxY);
+            if (x0 > x1 || y0 > y1) continue;
+
+            // Load the triangle's equations.
+            float a0 = t[o + TRI_EDGES + 0];
+            float b0 = t[o + TRI_EDGES + 1];
+            float c0 = t[o + TRI_EDGES + 2];
+            float a1 = t[o + TRI_EDGES + 3];
+            float b1 = t[o + TRI_EDGES + 4];
+            float c1 = t[o + TRI_EDGES + 5];
+            float a2 = t[o + TRI_EDGES + 6];
+            float b2 = t[o + TRI_EDGES + 7];
+            float c2 = t[o + TRI_EDGES + 8];
+            // Pixels exactly on an edge belong to the triangle on its
+            // inside only for top and left edges, so shared edges are
+            // drawn once.
+            float bias0 = a0 > 0.0f || (a0 == 0.0f && b0 > 0.0f)
+                ? 0.0f : Float.MIN_VALUE;
+            float bias1 = a1 > 0.0f || (a1 == 0.0f && b1 > 0.0f)
+                ? 0.0f : Float.MIN_VALUE;
+            float bias2 = a2 > 0.0f || (a2 == 0.0f && b2 > 0.0f)
+                ? 0.0f : Float.MIN_VALUE;
+            float za = t[o + TRI_DEPTH];
+            float zb = t[o + TRI_DEPTH + 1];
+            float zc = t[o + TRI_DEPTH + 2];
+            if (flipped) {
+                // Store 2 - z (or -z with reversed depth) and keep the
+                // greater (or smaller).
+                za = -za;
+                zb = -zb;
+                zc = (m_reversedDepth ? 0.0f : REVERSED_DEPTH) - zc;
+            }
+            if (fixed) {
+                // Interpolate in stored units (rounded to nearest).
+                za *= m_depthScale;
+                zb *= m_depthScale;
+                zc = (zc - m_depthLow) * m_depthScale + 0.5f;
+            }
+            float qa = t[o + TRI_INVW];
+            float qb = t[o + TRI_INVW + 1];
+            float qc = t[o + TRI_INVW + 2];
+
+            // Per-triangle fragment inputs.
+            f.varyingCount = varyings;
+            f.m_invWdx = qa;
+            f.m_invWdy = qb;
+            for (int k = 0; k < varyings; ++k) {
+                f.m_dx[k] = t[o + TRI_VARYINGS + k * 3];
+                f.m_dy[k] = t[o + TRI_VARYINGS + k * 3 + 1];
+            }
+            f.normalX = t[o + TRI_NORMAL];
+            f.normalY = t[o + TRI_NORMAL + 1];
+            f.normalZ = t[o + TRI_NORMAL + 2];
+
+            // Offsets of each sample's edge and depth values from the
+            // pixel center.
+            for (int i = 0; i < samples; ++i) {
+                float ox = positions[i * 2] - 0.5f;
+                float oy = positions[i * 2 + 1] - 0.5f;
+                ctx.e0[i] = a0 * ox + b0 * oy;
+                ctx.e1[i] = a1 * ox + b1 * oy;
+                ctx.e2[i] = a2 * ox + b2 * oy;
+                ctx.z[i] = za * ox + zb * oy;
+            }
+
+            for (int y = y0; y <= y1; ++y) {
+                float py = y + 0.5f;
+                float px = x0 + 0.5f;
+                float e0 = a0 * px + b0 * py + c0;
+                float e1 = a1 * px + b1 * py + c1;
+                float e2 = a2 * px + b2 * py + c2;
+                float z = za * px + zb * py + zc;
+                float q = qa * px + qb * py + qc;
+                int row = y * m_width;
+                int frags = 0;
+                boolean inside = false;
+                // Covered span of the row (end is the column after it).
+                int first = x0;
+                int end = x1 + 1;
+                long rowStart = timed ? System.nanoTime() : 0;
+
+                for (int x = x0; x <= x1; ++x) {
+                    // Find the covered samples, and those that pass the
+                    // depth test (writing their depth early).
+                    int covered = 0;
+                    int passed = 0;
+                    if (samples == 1) {
+                        if (e0 >= bias0 && e1 >= bias1 && e2 >= bias2) {
+                            covered = 1;
+                            if (testDepth(row + x, z, greater)) {
+                                passed = 1;
+                                if (track) {
+                                    ctx.written[y - tileY] |= 1 << (x - tileX);
+                                }
+                            }
+                        }
+                    } else {
+                        int p = (row + x) * samples;
+                        for (int i = 0; i < samples; ++i) {
+                            if (
+                                e0 + ctx.e0[i] >= bias0
+                                && e1 + ctx.e1[i] >= bias1
+                                && e2 + ctx.e2[i] >= bias2) {
+                                covered |= 1 << i;
+                                float zs = z + ctx.z[i];
+                                if (testDepth(p + i, zs, greater)) {
+                                    passed |= 1 << i;
+                                }
+                            }
+                        }
+                    }
+
+                    if (passed != 0) {
+                        // Queue one fragment for the pixel, interpolated
+                        // at its center.
+                        if (!inside) first = x;
+                        inside = true;
+                        float w = 1.0f / q;
+                        float fx = x + 0.5f;
+                        f.x[frags] = x;
+                        f.w[frags] = w;
+                        ctx.masks[frags] = passed;
+                        int v = frags * varyings;
+                        for (int k = 0; k < varyings; ++k) {
+                            int p = o + TRI_VARYINGS + k * 3;
+                            f.varyings[v + k] =
+                                (t[p] * fx + t[p + 1] * py + t[p + 2]) * w;
+                        }
+                        ++frags;
+                    } else if (covered != 0) {
+                        if (!inside) first = x;
+                        inside = true;
+                        ++occluded;
+                    } else if (inside) {
+                        // Triangles are convex, so the span has ended.
+                        end = x;
+                        break;
+                    }
+                    e0 += a0;
+                    e1 += a1;
+                    e2 += a2;
+                    z += za;
+                    q += qa;
+                }
+
+                if (frags > 0) {
+                    // Shade the span and write it to the color target (or
+                    // to the samples it passed).
+                    f.count = frags;
+                    f.y = y;
+                    fs.shade(u, f);
+                    if (samples == 1) {
+                        for (int i = 0; i < frags; ++i) {
+                            color[row + f.x[i]] = f.color[i];
+                        }
+                    } else {
+                        for (int i = 0; i < frags; ++i) {
+                            int p = (row + f.x[i]) * samples;
+                            int mask = ctx.masks[i];
+                            for (int j = 0; j < samples; ++j) {
+                                if ((mask & (1 << j)) != 0) {
+                                    sampleColor[p + j] = f.color[i];
+                                }
+                            }
+                        }
+                    }
+                    drawn += frags;
+                }
+                if (heat != null && inside) {
+                    addHeat(
+                        heat,
+                        row,
+                        first,
+                        end,
+                        f.x,
+                        frags,
+                        timed ? System.nanoTime() - rowStart : 0);
+                }
+            }
+        }
+        if (samples > 1) {
+            resolve(tileX, tileY, tileMaxX, tileMaxY);
+        }
+        if (heat != null) {
+            paintHeat(ctx, tileX, tileY, tileMaxX, tileMaxY);
+        }
+        m_tileBlank[tile] = heat == null && drawn == 0;
+        if (track) {
+            // Check that every pixel of the tile was written.
+            int width = tileMaxX - tileX + 1;
+            int full = width == TILE_SIZE ? -1 : (1 << width) - 1;
+            for (int r = 0; r <= tileMaxY - tileY; ++r) {
+                if (ctx.written[r] != full) {
+                    depthFrame = -1;
+                    break;
+                }
+            }
+        }
+        m_tileDepthFrame[tile] = depthFrame;
+        ctx.drawnFragments += drawn;
+        ctx.occludedFragments += occluded;
+    }
+
+    /**
+     * Add the cost of a triangle's span of a row to the heat of its pixels.
+     * @param heat The heat of each pixel.
+     * @param row The index of the row's first pixel.
+     * @param first The first column covered.
+     * @param end The column after the last covered.
+     * @param shaded The columns of the fragments shaded.
+     * @param frags The number of fragments shaded.
+     * @param nanos The time spent on the span, shared evenly by its
+     * pixels.
+     */
+    private void addHeat(
+        int[] heat, int row, int first, int end, int[] shaded, int frags,
+        long nanos) {
+        switch (m_heatmap) {
+            case DEPTH_TESTS:
+                for (int x = first; x < end; ++x) {
+                    ++heat[row + x];
+                }
+                break;
+            case FRAGMENTS:
+                for (int i = 0; i < frags; ++i) {
+                    ++heat[row + shaded[i]];
+                }
+                break;
+            case TIME:
+                int share = (int) (nanos / (end - first));
+                for (int x = first; x < end; ++x) {
+                    heat[row + x] += share;
+                }
+                break;
+            default:
+                break;
+        }
+    }
+
+    /**
+     * Replace the colors of a rectangle of pixels with their heat.
+     * @param ctx The raster state of the calling thread.
+     * @param x0 The first column.
+     * @param y0 The first row.
+     * @param x1 The last column.
+     * @param y1 The last row.
+     */
+    private void paintHeat(TileContext ctx, int x0, int y0, int x1, int y1) {
+        int scale = m_heatScale;
+        int max = ctx.maxHeat;
+        for (int y = y0; y <= y1; ++y) {
+            for (int x = x0; x <= x1; ++x) {
+                int p = y * m_width + x;
+                int h = m_heat[p];
+                max = Math.max(max, h);
+                m_color[p] = HEAT_COLORS[
+                    h >= scale ? 255 : (int) ((long) h * 255 / scale)];
+            }
+        }
+        ctx.maxHeat = max;
+    }
+
+    /**
+     * Average the samples of each pixel in a rectangle into the color
+     * target.
+     * @param x0 The first column.
+     * @param y0 The first row.
+     * @param x1 The last column.
+     * @param y1 The last row.
+     */
+    private void resolve(int x0, int y0, int x1, int y1) {
+        int[] samples = m_sampleColor;
+        for (int y = y0; y <= y1; ++y) {
+            for (int x = x0; x <= x1; ++x) {
+                int pixel = y * m_width + x;
+                int p = pixel * m_samples;
+                m_color[pixel] = m_samples == 4
+                    ? ColorMath.average4(
+                        samples[p], samples[p + 1],
+                        samples[p + 2], samples[p + 3])
+                    : ColorMath.lerp(samples[p], samples[p + 1], 128);
+            }
+        }
+    }
+
+    /**
+     * Get the number of triangles culled as back facing last frame.
+     * @return The culled triangle count.
+     */
+    public int getCulledTriangles() {
+        return m_culledTris;
+    }
+
+    /**
+     * Get the number of triangles rejected as entirely off screen last
+     * frame.
+     * @return The clipped triangle count.
+     */
+    public int getClippedTriangles() {
+        return m_clippedTris;
+    }
+
+    /**
+     * Get the number of fragments drawn last frame.
+     * @return The drawn fragment count.
+     */
+    public int getDrawnFragments() {
+        return m_drawnFragments;
+    }
+
+    /**
+     * Get the number of fragments that failed the depth test last frame.
+     * @return The occluded fragment count.
+     */
+    public int getOccludedFragments() {
+        return m_occludedFragments;
+    }
+
+    /**
+     * Get the number of tiles whose color or depth was cleared last frame.
+     * @return The cleared tile count.
+     */
+    public int getClearedTiles() {
+        return m_clearedTiles;
+    }
+
+    /**
+     * Get the number of lights set this frame.
+     * @return The light count.
+     */
+    public int getLightCount() {
+        return m_lightCount;
+    }
+
+    /**
+     * Get the number of lights binned into a tile this frame.
+     * @param tx The tile column.
+     * @param ty The tile row.
+     * @return The number of lights the tile's fragments evaluate.
+     */
+    public int getTileLightCount(int tx, int ty) {
+        return m_tileLightCounts[ty * m_tilesX + tx];
+    }
+
+    /**
+     * Get the largest number of lights binned into one tile this frame.
+     * @return The maximum tile light count.
+     */
+    public int getMaxTileLights() {
+        return m_maxTileLights;
+    }
+}
@@ -0,0 +1,174 @@
+/*
+ * Luke Diamond
+ * 01/22/2018
+ * Grade 11 Final Project
+ * Mr. Patterson
+ */
+
+package rasterizer;
+
+/**
+ * Dynamic resolution controller. Keeps frames within a time budget by
+ * scaling the render resolution (relative to the screen) between a minimum
+ * and maximum, based on an average of recent frame times.
+ *
+ * Render time is assumed to be roughly proportional to the number of
+ * pixels, so a frame that is twice over budget calls for about 1/sqrt(2)
+ * of the scale. Only part of the error is corrected each frame, and small
+ * errors are ignored, so the resolution settles instead of oscillating.
+ */
+public class ResolutionController {
+    // Fraction of the scale change corrected per frame.
+    private static final float GAIN = 0.25f;
+    // Relative frame time error that is tolerated without rescaling.
+    private static final float DEADBAND = 0.1f;
+    // Weight of the newest frame time in the running average.
+    private static final float SMOOTHING = 0.2f;
+
+    // Frame time budget (in milliseconds).
+    private float m_targetMs;
+    // Bounds of the scale.
+    private float m_minScale;
+    private float m_maxScale;
+    // Current scale.
+    private float m_scale;
+    // Average recent frame time (in milliseconds), or 0 before the first
+    // frame.
+    private float m_averageMs = 0.0f;
+    // Whether the scale adapts to the frame time.
+    private boolean m_enabled = true;
+
+    /**
+     * Construct a resolution controller.
+     * @param targetMs The frame time budget in milliseconds.
+     * @param minScale The smallest scale of the screen resolution.
+     * @param maxScale The largest scale of the screen resolution.
+     * @param scale The scale to start at.
+     */
+    public ResolutionController(
+        float targetMs, float minScale, float maxScale, float scale) {
+        m_targetMs = targetMs;
+        setBounds(minScale, maxScale);
+        m_scale = clamp(scale);
+    }
+
+    /**
+     * Record the time of a frame and adjust the scale.
+     * @param frameMs The time the frame took in milliseconds.
+     * @return The scale to render the next frame at.
+     */
+    public float update(float frameMs) {
+        if (m_averageMs <= 0.0f) {
+            m_averageMs = frameMs;
+        } else {
+            m_averageMs += (frameMs - m_averageMs) * SMOOTHING;
+        }
+        if (!m_enabled || !(m_averageMs > 0.0f)) return m_scale;
+
+        float ratio = m_targetMs / m_averageMs;
+        if (Math.abs(ratio - 1.0f) <= DEADBAND) return m_scale;
+        // Move part of the way towards the scale expected to hit the
+        // budget.
+        float ideal = m_scale * (float) Math.sqrt(ratio);
+        float scale = clamp(m_scale + (ideal - m_scale) * GAIN);
+        // Expect the new scale's pixel count to change the frame time,
+        // so the average does not keep pushing in the same direction.
+        float change = scale / m_scale;
+        m_averageMs *= change * change;
+        m_scale = scale;
+        return m_scale;
+    }
+
+    /**
+     * Clamp a scale to the bounds.
+     * @param scale The scale.
+     * @return The clamped scale.
+     */
+    private float clamp(float scale) {
+        return Math.min(Math.max(scale, m_minScale), m_maxScale);
+    }
+
+    /**
+     * Set the frame time budget.
+     * @param targetMs The frame time budget in milliseconds (for example
+     * 16.6 for 60 frames per second).
+     */
+    public void setTarget(float targetMs) {
+        m_targetMs = targetMs;
+    }
+
+    /**
+     * Get the frame time budget.
+     * @return The frame time budget in milliseconds.
+     */
+    public float getTarget() {
+        return m_targetMs;
+    }
+
+    /**
+     * Set the bounds of the scale.
+     * @param minScale The smallest scale of the screen resolution.
+     * @param maxScale The largest scale of the screen resolution.
+     */
+    public void setBounds(float minScale, float maxScale) {
+        m_minScale = Math.max(minScale, 0.01f);
+        m_maxScale = Math.max(maxScale, m_minScale);
+        m_scale = clamp(m_scale);
+    }
+
+    /**
+     * Get the smallest scale.
+     * @return The smallest scale of the screen resolution.
+     */
+    public float getMinScale() {
+        return m_minScale;
+    }
+
+    /**
+     * Get the largest scale.
+     * @return The largest scale of the screen resolution.
+     */
+    public float getMaxScale() {
+        return m_maxScale;
+    }
+
+    /**
+     * Set the scale directly (it still adapts afterwards if enabled).
+     * @param scale The scale of the screen resolution.
+     */
+    public void setScale(float scale) {
+        m_scale = clamp(scale);
+    }
+
+    /**
+     * Get the current scale.
+     * @return The scale of the screen resolution.
+     */
+    public float getScale() {
+        return m_scale;
+    }
+
+    /**
+     * Set whether the scale adapts to the frame time.
+     * @param enabled False to keep the current scale.
+     */
+    public void setEnabled(boolean enabled) {
+        m_enabled = enabled;
+    }
+
+    /**
+     * Get whether the scale adapts to the frame time.
+     * @return True if the scale adapts.
+     */
+    public boolean isEnabled() {
+        return m_enabled;
+    }
+
+    /**
+     * Get the average recent frame time.
+     * @return The average frame time in milliseconds.
+     */
+    public float getAverageFrameTime() {
+        return m_averageMs;
+    }
+}
@@ -0,0 +1,290 @@
+/*
+ * Luke Diamond
+ * 01/22/2018
+ * Grade 11 Final Project
+ * Mr. Patterson
+ */
+
+package rasterizer;
+
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Registry of the meshes in a scene, addressed by handles. Meshes may be
+ * added and removed from any thread without locks: changes are queued and
+ * applied by the rendering thread at the start of each frame, which then
+ * publishes an immutable snapshot of the scene for the frame. Readers get
+ * the latest snapshot, so they never see a half-applied change.
+ *
+ * A handle packs the slot a mesh is stored in with a generation that
+ * changes whenever the slot is reused, so the handle of a removed mesh
+ * never refers to a newer one.
+ */
+public class Scene {
+    // Bits of a handle holding the slot (the rest hold its generation).
+    private static final int SLOT_BITS = 20;
+    private static final int SLOT_MASK = (1 << SLOT_BITS) - 1;
+    private static final int GENERATION_MASK = -1 >>> SLOT_BITS + 1;
+    // Largest number of meshes in a scene at once.
+    public static final int MAX_MESHES = 1 << SLOT_BITS;
+
+    /**
+     * The meshes of a scene at the start of a frame. Snapshots never
+     * change; a new one is published when meshes are added or removed.
+     */
+    public static final class Snapshot {
+        // Meshes in dense order, and the handle of each.
+        private final Mesh[] m_meshes;
+        private final int[] m_handles;
+        private final int m_count;
+        // Dense index of the mesh in each slot, or -1.
+        private final int[] m_indices;
+        // Incremented with every published snapshot.
+        private final int m_version;
+
+        /**
+         * Construct a snapshot. The arrays are kept rather than copied.
+         * @param meshes The meshes.
+         * @param handles The handle of each mesh.
+         * @param count The number of meshes.
+         * @param indices The dense index of the mesh in each slot, or -1.
+         * @param version The version of the snapshot.
+         */
+        Snapshot(
+            Mesh[] meshes, int[] handles, int count, int[] indices,
+            int version) {
+            m_meshes = meshes;
+            m_handles = handles;
+            m_count = count;
+            m_indices = indices;
+            m_version = version;
+        }
+
+        /**
+         * Get the number of meshes.
+         * @return The mesh count.
+         */
+        public int getCount() {
+            return m_count;
+        }
+
+        /**
+         * Get a mesh by its dense index.
+         * @param index The index (below getCount).
+         * @return The mesh.
+         */
+        public Mesh getMesh(int index) {
+            return m_meshes[index];
+        }
+
+        /**
+         * Get the handle of a mesh by its dense index.
+         * @param index The index (below getCount).
+         * @return The handle of the mesh.
+         */
+        public int getHandle(int index) {
+            return m_handles[index];
+        }
+
+        /**
+         * Get the meshes in dense order. The array is shared and must not
+         * be changed.
+         * @return The mesh array (the first getCount entries are used).
+         */
+        public Mesh[] getMeshes() {
+            return m_meshes;
+        }
+
+        /**
+         * Get a mesh by its handle.
+         * @param handle The handle returned by Scene.add.
+         * @return The mesh, or null if it was not in the scene.
+         */
+        public Mesh get(int handle) {
+            int index = indexOf(handle);
+            return index < 0 ? null : m_meshes[index];
+        }
+
+        /**
+         * Get the dense index of a mesh.
+         * @param handle The handle returned by Scene.add.
+         * @return The index of the mesh, or -1 if it was not in the scene.
+         */
+        public int indexOf(int handle) {
+            int slot = handle & SLOT_MASK;
+            if (handle < 0 || slot >= m_indices.length) return -1;
+            int index = m_indices[slot];
+            return index >= 0 && m_handles[index] == handle ? index : -1;
+        }
+
+        /**
+         * Get the version of the snapshot, which changes whenever meshes
+         * are added or removed.
+         * @return The version counter.
+         */
+        public int getVersion() {
+            return m_version;
+        }
+    }
+
+    /**
+     * A queued change: a mesh added under a handle, or a handle removed.
+     */
+    private static class Change {
+        final int handle;
+        final Mesh mesh;
+
+        Change(int handle_, Mesh mesh_) {
+            handle = handle_;
+            mesh = mesh_;
+        }
+    }
+
+    // Changes not yet applied, and handles of free slots (with their next
+    // generation).
+    private final ConcurrentLinkedQueue<Change> m_changes =
+        new ConcurrentLinkedQueue<Change>();
+    private final ConcurrentLinkedQueue<Integer> m_freeHandles =
+        new ConcurrentLinkedQueue<Integer>();
+    // Number of slots ever used.
+    private final AtomicInteger m_slots = new AtomicInteger();
+
+    // Applied state, owned by the rendering thread: meshes in dense order
+    // (removal moves the last mesh into the gap), the handle of each and
+    // the dense index of the mesh in each slot.
+    private Mesh[] m_meshes = new Mesh[32];
+    private int[] m_handles = new int[32];
+    private int m_count = 0;
+    private int[] m_indices = new int[0];
+    // Latest snapshot.
+    private volatile Snapshot m_snapshot =
+        new Snapshot(new Mesh[0], new int[0], 0, new int[0], 0);
+
+    /**
+     * Add a mesh to the scene. It is drawn from the next frame on.
+     * @param mesh The mesh to add.
+     * @return The handle of the mesh, for removing it.
+     * @throws IllegalArgumentException If the mesh is null.
+     * @throws IllegalStateException If the scene already holds MAX_MESHES
+     * meshes.
+     */
+    public int add(Mesh mesh) {
+        if (mesh == null) {
+            throw new IllegalArgumentException("Cannot add a null mesh");
+        }
+        Integer free = m_freeHandles.poll();
+        int handle;
+        if (free != null) {
+            handle = free;
+        } else {
+            handle = m_slots.getAndIncrement();
+            if (handle >= MAX_MESHES) {
+                m_slots.decrementAndGet();
+                throw new IllegalStateException(
+                    "A scene holds at most " + MAX_MESHES + " meshes");
+            }
+        }
+        m_changes.add(new Change(handle, mesh));
+        return handle;
+    }
+
+    /**
+     * Remove a mesh from the scene. It is no longer drawn from the next
+     * frame on. Removing a mesh that was already removed does nothing.
+     * @param handle The handle returned by add.
+     */
+    public void remove(int handle) {
+        if (handle >= 0) m_changes.add(new Change(handle, null));
+    }
+
+    /**
+     * Get the slot of a handle, which stays the same while its mesh is in
+     * the scene and is below the number of slots ever used.
+     * @param handle The handle returned by add.
+     * @return The slot index.
+     */
+    static int slotOf(int handle) {
+        return handle & SLOT_MASK;
+    }
+
+    /**
+     * Get the latest snapshot of the scene. It does not include changes
+     * made since the start of the current frame.
+     * @return The snapshot.
+     */
+    public Snapshot getSnapshot() {
+        return m_snapshot;
+    }
+
+    /**
+     * Apply the queued changes and publish a snapshot of the result. Only
+     * the thread rendering frames calls this, once at the start of each.
+     * @return The snapshot to render.
+     */
+    Snapshot update() {
+        boolean changed = false;
+        Change c;
+        while ((c = m_changes.poll()) != null) {
+            changed |=
+                c.mesh != null
+                ? addSlot(c.handle, c.mesh) : removeSlot(c.handle);
+        }
+        if (!changed) return m_snapshot;
+        Snapshot s = new Snapshot(
+            Arrays.copyOf(m_meshes, m_count),
+            Arrays.copyOf(m_handles, m_count),
+            m_count,
+            m_indices.clone(),
+            m_snapshot.getVersion() + 1);
+        m_snapshot = s;
+        return s;
+    }
+
+    /**
+     * Store an added mesh.
+     * @param handle The handle of the mesh.
+     * @param mesh The mesh.
+     * @return True (the scene changed).
+     */
+    private boolean addSlot(int handle, Mesh mesh) {
+        int slot = handle & SLOT_MASK;
+        if (slot >= m_indices.length) {
+            int length = Math.max(m_indices.length * 2, slot + 1);
+            int old = m_indices.length;
+            m_indices = Arrays.copyOf(m_indices, length);
+            Arrays.fill(m_indices, old, length, -1);
+        }
+        if (m_count == m_meshes.length) {
+            m_meshes = Arrays.copyOf(m_meshes, m_count * 2);
+            m_handles = Arrays.copyOf(m_handles, m_count * 2);
+        }
+        m_meshes[m_count] = mesh;
+        m_handles[m_count] = handle;
+        m_indices[slot] = m_count++;
+        return true;
+    }
+
+    /**
+     * Remove a mesh, moving the last mesh into its place, and free its
+     * slot under the next generation.
+     * @param handle The handle of the mesh.
+     * @return True if the mesh was in the scene.
+     */
+    private boolean removeSlot(int handle) {
+        int slot = handle & SLOT_MASK;
+        if (slot >= m_indices.length) return false;
+        int index = m_indices[slot];
+        if (index < 0 || m_handles[index] != handle) return false;
+        int last = --m_count;
+        m_meshes[index] = m_meshes[last];
+        m_handles[index] = m_handles[last];
+        m_indices[m_handles[index] & SLOT_MASK] = index;
+        m_meshes[last] = null;
+        m_indices[slot] = -1;
+        int generation = ((handle >>> SLOT_BITS) + 1) & GENERATION_MASK;
+        m_freeHandles.add(generation << SLOT_BITS | slot);
+        return true;
+    }
+}
@@ -0,0 +1,418 @@
+/*
+ * Luke Diamond
+ * 01/22/2018
+ * Grade 11 Final Project
+ * Mr. Patterson
+ */
+
+package rasterizer;
+
+import java.nio.FloatBuffer;
+
+/**
+ * Built-in shaders (see Material for the pairs they are used in). Each
+ * shader only computes what its material needs, so cheaper materials skip
+ * the texture and lighting work of the lit path entirely.
+ */
+public class Shaders {
+    // Opaque black (packed RGB).
+    static final int BLACK = 0xFF000000;
+
+    /**
+     * Transform a vertex position to clip space.
+     * @param m The model-view-projection matrix.
+     * @param vertices The interleaved vertex data.
+     * @param base The index of the vertex's first float.
+     * @param out The array to write the clip position to.
+     * @param o The position in out to write to.
+     */
+    static void transform(
+        Matrix4 m, FloatBuffer vertices, int base, float[] out, int o) {
+        float x = vertices.get(base + MeshResource.POSITION_OFFSET);
+        float y = vertices.get(base + MeshResource.POSITION_OFFSET + 1);
+        float z = vertices.get(base + MeshResource.POSITION_OFFSET + 2);
+        out[o + 0] = m.a.x * x + m.a.y * y + m.a.z * z + m.a.w;
+        out[o + 1] = m.b.x * x + m.b.y * y + m.b.z * z + m.b.w;
+        out[o + 2] = m.c.x * x + m.c.y * y + m.c.z * z + m.c.w;
+        out[o + 3] = m.d.x * x + m.d.y * y + m.d.z * z + m.d.w;
+    }
+
+    /**
+     * Sample the texture of a draw with the derivative-based mip level of
+     * a fragment.
+     * @param u The uniforms of the draw.
+     * @param f The fragments.
+     * @param i The fragment index.
+     * @param k The varying index of the texture coordinate (U, then V).
+     * @return The sampled color (packed RGB).
+     */
+    static int sampleTexture(Uniforms u, Fragments f, int i, int k) {
+        int v = i * f.varyingCount + k;
+        float lod = u.texture.computeLod(
+            f.ddx(i, k), f.ddx(i, k + 1), f.ddy(i, k), f.ddy(i, k + 1));
+        return u.texture.sample(
+            f.varyings[v], f.varyings[v + 1], lod, u.filter);
+    }
+
+    /**
+     * Textured, lit vertex stage. Varyings: texture coordinate (2) and
+     * world position (3).
+     */
+    public static class LitVertex implements IVertexShader {
+        @Override
+        public int getVaryingCount() {
+            return 5;
+        }
+
+        @Override
+        public void shade(
+            Uniforms u,
+            FloatBuffer vertices,
+            int[] indices,
+            int count,
+            float[] out,
+            int offset) {
+            Matrix4 m = u.model;
+            for (int i = 0; i < count; ++i) {
+                int base = indices[i] * MeshResource.VERTEX_STRIDE;
+                int o = offset + i * 9;
+                transform(u.mvp, vertices, base, out, o);
+                out[o + 4] = vertices.get(base + MeshResource.COORD_OFFSET);
+                out[o + 5] =
+                    vertices.get(base + MeshResource.COORD_OFFSET + 1);
+                // World position for lighting.
+                float x = vertices.get(base + MeshResource.POSITION_OFFSET);
+                float y =
+                    vertices.get(base + MeshResource.POSITION_OFFSET + 1);
+                float z =
+                    vertices.get(base + MeshResource.POSITION_OFFSET + 2);
+                out[o + 6] = m.a.x * x + m.a.y * y + m.a.z * z + m.a.w;
+                out[o + 7] = m.b.x * x + m.b.y * y + m.b.z * z + m.b.w;
+                out[o + 8] = m.c.x * x + m.c.y * y + m.c.z * z + m.c.w;
+            }
+        }
+    }
+
+    /**
+     * Textured, lit fragment stage. Each point light binned into the
+     * fragment's tile falls off with the inverse square of its distance,
+     * is blocked by its shadow map if it has one, and saturates towards
+     * its color where it is strong.
+     */
+    public static class LitFragment implements IFragmentShader {
+        @Override
+        public void shade(Uniforms u, Fragments f) {
+            int n = f.varyingCount;
+            for (int i = 0; i < f.count; ++i) {
+                int v = i * n;
+                // Sample texture using texture coordinate.
+                int texColor =
+                    u.texture == null ? BLACK : sampleTexture(u, f, i, 0);
+                float wx = f.varyings[v + 2];
+                float wy = f.varyings[v + 3];
+                float wz = f.varyings[v + 4];
+
+                int color = BLACK;
+                for (int j = 0; j < f.lightCount; ++j) {
+                    Light light = f.lights[j];
+                    // Compute surface-to-light direction and distance.
+                    float lx = light.position.x - wx;
+                    float ly = light.position.y - wy;
+                    float lz = light.position.z - wz;
+                    float dist2 = lx * lx + ly * ly + lz * lz;
+                    if (dist2 >= light.range * light.range) continue;
+                    float ndotl =
+                        lx * f.normalX + ly * f.normalY + lz * f.normalZ;
+                    if (!(ndotl > 0.0f)) continue;
+                    ndotl = Math.min(ndotl / (float) Math.sqrt(dist2), 1.0f);
+                    // Inverse square attenuation.
+                    float diffac = light.intensity * ndotl / (1.0f + dist2);
+                    // Shadowing.
+                    if (light.shadow != null) {
+                        int visible = light.shadow.visibility(
+                            wx, wy, wz, f.normalX, f.normalY, f.normalZ);
+                        if (visible == 0) continue;
+                        diffac *= visible * (1.0f / 256.0f);
+                    }
+
+                    // Fade from black to the lit texture color, then
+                    // towards the light color where the light is strong.
+                    int lit = ColorMath.multiply(
+                        texColor,
+                        ColorMath.scale(light.color, ColorMath.weight(diffac)));
+                    lit = ColorMath.lerp(
+                        lit, light.color, ColorMath.weight(diffac * diffac));
+                    color = ColorMath.addSaturate(color, lit);
+                }
+                f.color[i] = color | BLACK;
+            }
+        }
+    }
+
+    /**
+     * Textured vertex stage lit per vertex, using the same lighting as
+     * LitFragment with the smooth vertex normal. The light is passed on as
+     * a color to scale the texture by (256 for full brightness) and a
+     * color to add to it (0-255). Varyings: texture coordinate (2), scale
+     * color (3) and add color (3).
+     */
+    public static class GouraudVertex implements IVertexShader {
+        @Override
+        public int getVaryingCount() {
+            return 8;
+        }
+
+        @Override
+        public void shade(
+            Uniforms u,
+            FloatBuffer vertices,
+            int[] indices,
+            int count,
+            float[] out,
+            int offset) {
+            Matrix4 m = u.model;
+            Matrix4 nm = m.normalMatrix();
+            for (int i = 0; i < count; ++i) {
+                int base = indices[i] * MeshResource.VERTEX_STRIDE;
+                int o = offset + i * 12;
+                transform(u.mvp, vertices, base, out, o);
+                out[o + 4] = vertices.get(base + MeshResource.COORD_OFFSET);
+                out[o + 5] =
+                    vertices.get(base + MeshResource.COORD_OFFSET + 1);
+
+                // World position and normal.
+                float x = vertices.get(base + MeshResource.POSITION_OFFSET);
+                float y =
+                    vertices.get(base + MeshResource.POSITION_OFFSET + 1);
+                float z =
+                    vertices.get(base + MeshResource.POSITION_OFFSET + 2);
+                float wx = m.a.x * x + m.a.y * y + m.a.z * z + m.a.w;
+                float wy = m.b.x * x + m.b.y * y + m.b.z * z + m.b.w;
+                float wz = m.c.x * x + m.c.y * y + m.c.z * z + m.c.w;
+                x = vertices.get(base + MeshResource.NORMAL_OFFSET);
+                y = vertices.get(base + MeshResource.NORMAL_OFFSET + 1);
+                z = vertices.get(base + MeshResource.NORMAL_OFFSET + 2);
+                float nx = nm.a.x * x + nm.a.y * y + nm.a.z * z;
+                float ny = nm.b.x * x + nm.b.y * y + nm.b.z * z;
+                float nz = nm.c.x * x + nm.c.y * y + nm.c.z * z;
+                float len = (float) Math.sqrt(nx * nx + ny * ny + nz * nz);
+                if (len > 0.0f) {
+                    nx /= len;
+                    ny /= len;
+                    nz /= len;
+                }
+
+                float mr = 0.0f, mg = 0.0f, mb = 0.0f;
+                float ar = 0.0f, ag = 0.0f, ab = 0.0f;
+                int lightCount = u.lights == null ? 0 : u.lights.length;
+                for (int j = 0; j < lightCount; ++j) {
+                    Light light = u.lights[j];
+                    // Compute surface-to-light direction and distance.
+                    float lx = light.position.x - wx;
+                    float ly = light.position.y - wy;
+                    float lz = light.position.z - wz;
+                    float dist2 = lx * lx + ly * ly + lz * lz;
+                    if (dist2 >= light.range * light.range) continue;
+                    float ndotl = lx * nx + ly * ny + lz * nz;
+                    if (!(ndotl > 0.0f)) continue;
+                    ndotl = Math.min(ndotl / (float) Math.sqrt(dist2), 1.0f);
+                    // Inverse square attenuation.
+                    float diffac = light.intensity * ndotl / (1.0f + dist2);
+                    // Shadowing.
+                    if (light.shadow != null) {
+                        diffac *= light.shadow.visibility(
+                            wx, wy, wz, nx, ny, nz) * (1.0f / 256.0f);
+                    }
+
+                    // The texture is faded in with the light and then
+                    // towards the light color; split into the parts that
+                    // scale the texture and the parts added to it.
+                    float fade = Math.min(diffac, 1.0f);
+                    float toLight = Math.min(diffac * diffac, 1.0f);
+                    float scale = fade * (1.0f - toLight) * (256.0f / 255.0f);
+                    float add = toLight;
+                    float r = (light.color >> 16) & 0xFF;
+                    float g = (light.color >> 8) & 0xFF;
+                    float b = light.color & 0xFF;
+                    mr += r * scale;
+                    mg += g * scale;
+                    mb += b * scale;
+                    ar += r * add;
+                    ag += g * add;
+                    ab += b * add;
+                }
+                out[o + 6] = mr;
+                out[o + 7] = mg;
+                out[o + 8] = mb;
+                out[o + 9] = ar;
+                out[o + 10] = ag;
+                out[o + 11] = ab;
+            }
+        }
+    }
+
+    /**
+     * Fragment stage of per-vertex lighting: modulates the texture (or the
+     * mesh color) by the interpolated light and adds its highlight.
+     */
+    public static class GouraudFragment implements IFragmentShader {
+        @Override
+        public void shade(Uniforms u, Fragments f) {
+            for (int i = 0; i < f.count; ++i) {
+                int v = i * 8;
+                int texColor =
+                    u.texture == null ? u.color : sampleTexture(u, f, i, 0);
+                // Scale each texel channel by the light (in 1/256ths) and
+                // add the highlight, saturating at 255.
+                int r = ((((texColor >> 16) & 0xFF)
+                    * (int) f.varyings[v + 2]) >> 8)
+                    + (int) f.varyings[v + 5];
+                int g = ((((texColor >> 8) & 0xFF)
+                    * (int) f.varyings[v + 3]) >> 8)
+                    + (int) f.varyings[v + 6];
+                int b = (((texColor & 0xFF)
+                    * (int) f.varyings[v + 4]) >> 8)
+                    + (int) f.varyings[v + 7];
+                f.color[i] = BLACK
+                    | (Math.min(r, 255) << 16)
+                    | (Math.min(g, 255) << 8)
+                    | Math.min(b, 255);
+            }
+        }
+    }
+
+    /**
+     * Textured vertex stage. Varyings: texture coordinate (2).
+     */
+    public static class TexturedVertex implements IVertexShader {
+        @Override
+        public int getVaryingCount() {
+            return 2;
+        }
+
+        @Override
+        public void shade(
+            Uniforms u,
+            FloatBuffer vertices,
+            int[] indices,
+            int count,
+            float[] out,
+            int offset) {
+            for (int i = 0; i < count; ++i) {
+                int base = indices[i] * MeshResource.VERTEX_STRIDE;
+                int o = offset + i * 6;
+                transform(u.mvp, vertices, base, out, o);
+                out[o + 4] = vertices.get(base + MeshResource.COORD_OFFSET);
+                out[o + 5] =
+                    vertices.get(base + MeshResource.COORD_OFFSET + 1);
+            }
+        }
+    }
+
+    /**
+     * Unlit textured fragment stage (the mesh color if it has no texture).
+     */
+    public static class TexturedFragment implements IFragmentShader {
+        @Override
+        public void shade(Uniforms u, Fragments f) {
+            if (u.texture == null) {
+                for (int i = 0; i < f.count; ++i) {
+                    f.color[i] = u.color | BLACK;
+                }
+                return;
+            }
+            for (int i = 0; i < f.count; ++i) {
+                f.color[i] = sampleTexture(u, f, i, 0) | BLACK;
+            }
+        }
+    }
+
+    /**
+     * Vertex color stage. The vertex format has no color attribute, so
+     * each vertex is colored by its normal (x/y/z mapped to r/g/b).
+     * Varyings: color (3).
+     */
+    public static class ColorVertex implements IVertexShader {
+        @Override
+        public int getVaryingCount() {
+            return 3;
+        }
+
+        @Override
+        public void shade(
+            Uniforms u,
+            FloatBuffer vertices,
+            int[] indices,
+            int count,
+            float[] out,
+            int offset) {
+            for (int i = 0; i < count; ++i) {
+                int base = indices[i] * MeshResource.VERTEX_STRIDE;
+                int o = offset + i * 7;
+                transform(u.mvp, vertices, base, out, o);
+                for (int k = 0; k < 3; ++k) {
+                    out[o + 4 + k] =
+                        0.5f
+                        + 0.5f
+                        * vertices.get(base + MeshResource.NORMAL_OFFSET + k);
+                }
+            }
+        }
+    }
+
+    /**
+     * Vertex color fragment stage.
+     */
+    public static class ColorFragment implements IFragmentShader {
+        @Override
+        public void shade(Uniforms u, Fragments f) {
+            for (int i = 0; i < f.count; ++i) {
+                int v = i * 3;
+                f.color[i] =
+                    ColorMath.pack(
+                        f.varyings[v], f.varyings[v + 1], f.varyings[v + 2]);
+            }
+        }
+    }
+
+    /**
+     * Position-only vertex stage.
+     */
+    public static class UnlitVertex implements IVertexShader {
+        @Override
+        public int getVaryingCount() {
+            return 0;
+        }
+
+        @Override
+        public void shade(
+            Uniforms u,
+            FloatBuffer vertices,
+            int[] indices,
+            int count,
+            float[] out,
+            int offset) {
+            for (int i = 0; i < count; ++i) {
+                transform(
+                    u.mvp,
+                    vertices,
+                    indices[i] * MeshResource.VERTEX_STRIDE,
+                    out,
+                    offset + i * 4);
+            }
+        }
+    }
+
+    /**
+     * Solid color fragment stage.
+     */
+    public static class UnlitFragment implements IFragmentShader {
+        @Override
+        public void shade(Uniforms u, Fragments f) {
+            int color = u.color | BLACK;
+            for (int i = 0; i < f.count; ++i) {
+                f.color[i] = color;
+            }
+        }
+    }
+}
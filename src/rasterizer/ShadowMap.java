@@ -0,0 +1,260 @@
+/*
+ * Luke Diamond
+ * 01/22/2018
+ * Grade 11 Final Project
+ * Mr. Patterson
+ */
+
+package rasterizer;
+
+/**
+ * Cube shadow map of a point light. The scene's depth is rendered from the
+ * light into six square faces (one per axis direction, each a 90 degree
+ * view), and a point is in shadow where the face it falls on saw something
+ * closer to the light.
+ *
+ * Maps are re-rendered every few frames, or for static maps only when the
+ * light moves or the map is invalidated, so lights over static geometry
+ * keep their map across frames.
+ */
+public class ShadowMap {
+    // Update interval of maps that are only rendered when invalidated.
+    public static final int STATIC = 0;
+
+    // Right, up and forward axes of each face.
+    private static final float[][] FACES = {
+        { 0, 0, -1, 0, 1, 0, 1, 0, 0 },
+        { 0, 0, 1, 0, 1, 0, -1, 0, 0 },
+        { 1, 0, 0, 0, 0, -1, 0, 1, 0 },
+        { 1, 0, 0, 0, 0, 1, 0, -1, 0 },
+        { 1, 0, 0, 0, 1, 0, 0, 0, 1 },
+        { -1, 0, 0, 0, 1, 0, 0, 0, -1 },
+    };
+    // Fraction of a point's distance it must be behind an occluder by to
+    // be shadowed (keeps surfaces from shadowing themselves).
+    private static final float DEPTH_BIAS = 0.01f;
+    // Distance (in texels) points are moved along their normal before
+    // being looked up.
+    private static final float NORMAL_OFFSET = 1.5f;
+
+    // Side length of each face in texels.
+    private int m_resolution;
+    // Depth of each face (1/distance along the face axis, row order).
+    private float[][] m_faces;
+    // Frames between updates (STATIC to only update when invalidated).
+    private int m_interval;
+    // Frames since the last update.
+    private int m_age = 0;
+    // Whether the map must be rendered at its next update.
+    private boolean m_dirty = true;
+    // Light position the map was rendered from.
+    private float m_lightX;
+    private float m_lightY;
+    private float m_lightZ;
+    // Whether lookups use percentage-closer filtering.
+    private boolean m_pcf = true;
+
+    /**
+     * Construct a shadow map.
+     * @param resolution The side length of each face in texels.
+     * @param interval The number of frames between updates, or STATIC.
+     */
+    public ShadowMap(int resolution, int interval) {
+        setResolution(resolution);
+        m_interval = interval;
+    }
+
+    /**
+     * Set the side length of each face, re-rendering the map at its next
+     * update.
+     * @param resolution The side length in texels.
+     */
+    public void setResolution(int resolution) {
+        m_resolution = Math.max(resolution, 1);
+        m_faces = new float[6][m_resolution * m_resolution];
+        m_dirty = true;
+    }
+
+    /**
+     * Get the side length of each face.
+     * @return The side length in texels.
+     */
+    public int getResolution() {
+        return m_resolution;
+    }
+
+    /**
+     * Set how often the map is re-rendered.
+     * @param interval The number of frames between updates, or STATIC to
+     * only re-render when the light moves or the map is invalidated.
+     */
+    public void setUpdateInterval(int interval) {
+        m_interval = interval;
+    }
+
+    /**
+     * Get how often the map is re-rendered.
+     * @return The number of frames between updates, or STATIC.
+     */
+    public int getUpdateInterval() {
+        return m_interval;
+    }
+
+    /**
+     * Set whether lookups are filtered (percentage-closer filtering over
+     * 3x3 texels) for soft shadow edges.
+     * @param pcf True to filter lookups.
+     */
+    public void setFiltering(boolean pcf) {
+        m_pcf = pcf;
+    }
+
+    /**
+     * Get whether lookups are filtered.
+     * @return True if lookups use percentage-closer filtering.
+     */
+    public boolean isFiltering() {
+        return m_pcf;
+    }
+
+    /**
+     * Re-render the map at its next update (for example after moving
+     * geometry lit by a static map).
+     */
+    public void invalidate() {
+        m_dirty = true;
+    }
+
+    /**
+     * Re-render the map if it is due.
+     * @param light The position of the light.
+     * @param meshes The shadow casting meshes.
+     * @param models The transformation matrix of each mesh.
+     * @param count The number of meshes.
+     * @param r The depth rasterizer to render with.
+     * @return Whether the map was rendered.
+     */
+    public boolean update(
+        Vector3 light, Mesh[] meshes, Matrix4[] models, int count,
+        DepthRasterizer r) {
+        ++m_age;
+        boolean moved =
+            light.x != m_lightX || light.y != m_lightY || light.z != m_lightZ;
+        boolean due = m_interval != STATIC && m_age >= m_interval;
+        if (!m_dirty && !moved && !due) return false;
+
+        m_lightX = light.x;
+        m_lightY = light.y;
+        m_lightZ = light.z;
+        for (int face = 0; face < 6; ++face) {
+            float[] f = FACES[face];
+            // Look along the face axis from the light. Clip z is unused,
+            // and clip w is the distance along the axis.
+            Vector4 right = axisRow(f, 0);
+            Vector4 up = axisRow(f, 3);
+            Vector4 forward = axisRow(f, 6);
+            Matrix4 view = new Matrix4(right, up, forward, forward);
+
+            r.setTarget(m_faces[face], m_resolution, m_resolution);
+            for (int i = 0; i < count; ++i) {
+                r.draw(
+                    meshes[i].getLodResource(),
+                    view.mult(models[i]));
+            }
+        }
+        m_age = 0;
+        m_dirty = false;
+        return true;
+    }
+
+    /**
+     * Build the view row of a face axis, relative to the light.
+     * @param f The axes of the face.
+     * @param o The position of the axis in f.
+     * @return The row mapping a world position to its offset along the
+     * axis from the light.
+     */
+    private Vector4 axisRow(float[] f, int o) {
+        return new Vector4(
+            f[o],
+            f[o + 1],
+            f[o + 2],
+            -(f[o] * m_lightX + f[o + 1] * m_lightY + f[o + 2] * m_lightZ));
+    }
+
+    /**
+     * Compute how much of the light reaches a point.
+     * @param x The x coordinate of the point in world space.
+     * @param y The y coordinate of the point in world space.
+     * @param z The z coordinate of the point in world space.
+     * @param nx The x component of the surface normal at the point.
+     * @param ny The y component of the surface normal at the point.
+     * @param nz The z component of the surface normal at the point.
+     * @return The visibility of the light, in range [0, 256] (256 fully
+     * lit).
+     */
+    public int visibility(
+        float x, float y, float z, float nx, float ny, float nz) {
+        int res = m_resolution;
+        float lx = x - m_lightX;
+        float ly = y - m_lightY;
+        float lz = z - m_lightZ;
+        float ax = Math.abs(lx);
+        float ay = Math.abs(ly);
+        float az = Math.abs(lz);
+
+        // Move the point off the surface by about a texel's footprint.
+        float offset =
+            Math.max(ax, Math.max(ay, az)) * 2.0f / res * NORMAL_OFFSET;
+        lx += nx * offset;
+        ly += ny * offset;
+        lz += nz * offset;
+        ax = Math.abs(lx);
+        ay = Math.abs(ly);
+        az = Math.abs(lz);
+
+        // Find the face the point falls on.
+        int face;
+        if (ax >= ay && ax >= az) {
+            face = lx > 0.0f ? 0 : 1;
+        } else if (ay >= az) {
+            face = ly > 0.0f ? 2 : 3;
+        } else {
+            face = lz > 0.0f ? 4 : 5;
+        }
+        float[] f = FACES[face];
+        float depth = lx * f[6] + ly * f[7] + lz * f[8];
+        if (!(depth > 0.0f)) return 256;
+        float inv = 1.0f / depth;
+        float u = (lx * f[0] + ly * f[1] + lz * f[2]) * inv;
+        float v = (lx * f[3] + ly * f[4] + lz * f[5]) * inv;
+        int tx = clamp((int) ((u + 1.0f) * 0.5f * res), res - 1);
+        int ty = clamp((int) ((v + 1.0f) * 0.5f * res), res - 1);
+        // Occluders must be closer than the biased depth of the point.
+        float threshold = inv / (1.0f - DEPTH_BIAS);
+        float[] map = m_faces[face];
+
+        if (!m_pcf) return map[ty * res + tx] > threshold ? 0 : 256;
+        // Count the lit texels around the point.
+        int lit = 0;
+        for (int dy = -1; dy <= 1; ++dy) {
+            int row = clamp(ty + dy, res - 1) * res;
+            for (int dx = -1; dx <= 1; ++dx) {
+                if (map[row + clamp(tx + dx, res - 1)] <= threshold) ++lit;
+            }
+        }
+        return lit * 256 / 9;
+    }
+
+    /**
+     * Clamp an index to [0, max].
+     * @param i The index.
+     * @param max The largest valid index.
+     * @return The clamped index.
+     */
+    private static int clamp(int i, int max) {
+        if (i < 0) return 0;
+        if (i > max) return max;
+        return i;
+    }
+}
@@ -9,9 +9,12 @@ package rasterizer;
 
 import javax.swing.JFrame;
 import javax.swing.JPanel;
+import java.awt.Canvas;
 import java.awt.Point;
 import java.awt.event.KeyListener;
 import java.awt.event.KeyEvent;
+import java.io.File;
+import java.io.IOException;
 
 import rasterizer.RasterPanel;
 import rasterizer.Mesh;
@@ -21,16 +24,27 @@ import rasterizer.Mesh;
  * RasterPanel.
  */
 public class SoftwareRenderer extends JFrame {
+    // Speed the demo mesh spins at (in degrees per second).
+    static final float SPIN_SPEED = 90.0f;
 
-    float dirX = 0.0f;
-    float dirY = 0.0f;
-    float dirZ = 0.0f;
+    // Input directions (set by the event thread, read by the render
+    // thread).
+    volatile float dirX = 0.0f;
+    volatile float dirY = 0.0f;
+    volatile float dirZ = 0.0f;
 
-    float lookDirX = 0.0f;
-    float lookDirY = 0.0f;
+    volatile float lookDirX = 0.0f;
+    volatile float lookDirY = 0.0f;
 
     // RasterPanel to handle rendering.
     private RasterPanel m_panel;
+    // Canvas the frames are shown on, and the presenter rendering and
+    // showing them.
+    private Canvas m_canvas;
+    private Presenter m_presenter;
+    // Whether the camera's path is being recorded (set by the event
+    // thread; the render thread records and saves it).
+    private volatile boolean m_recordPath = false;
 
     /**
      * Constructor of the renderer. Creates an instance of the renderer.
@@ -92,6 +106,26 @@ public class SoftwareRenderer extends JFrame {
                     lookDirY = 1.0f;
                 }
 
+                if (e.getKeyCode() == KeyEvent.VK_R) {
+                    toggleRecording();
+                }
+                if (e.getKeyCode() == KeyEvent.VK_P) {
+                    toggleProfiling();
+                }
+                if (e.getKeyCode() == KeyEvent.VK_C) {
+                    // Record the camera's path to camera.path, for
+                    // replaying in the benchmark.
+                    m_recordPath = !m_recordPath;
+                }
+                if (e.getKeyCode() == KeyEvent.VK_H) {
+                    // Cycle through the heatmaps.
+                    Rasterizer.Heatmap[] modes = Rasterizer.Heatmap.values();
+                    m_panel.setHeatmap(
+                        modes[
+                            (m_panel.getHeatmap().ordinal() + 1)
+                            % modes.length]);
+                }
+
                 if (e.getKeyCode() == KeyEvent.VK_ESCAPE) {
                     System.exit(0);
                 }
@@ -143,31 +177,23 @@ public class SoftwareRenderer extends JFrame {
             }
         });
 
-        // Set window content pane to render panel.
-        this.setContentPane(m_panel);
+        // Fill the window with a canvas for the presenter to draw to.
+        // Frames are drawn by the presenter rather than by Swing, and key
+        // events go to the window.
+        m_canvas = new Canvas();
+        m_canvas.setFocusable(false);
+        this.setIgnoreRepaint(true);
+        this.add(m_canvas);
 
         // Set up scene.
-        m_panel.addTexture(0, "difmap.png");
-        m_panel.addTexture(1, "floor.png");
-
-        // Load meshes from file.
-        MeshResource meshres = new MeshResource("suzanne.obj");
-        MeshResource floorres = new MeshResource("plane.obj");
-        // Create mesh(es).
-        Mesh mesh0 = new Mesh(0, meshres);
-        Mesh floor = new Mesh(1, floorres);
-        mesh0.setPosition(0.0f, 0.0f, 6.0f);
-        floor.setPosition(0.0f, -1.5f, 6.0f);
-        floor.setScale(2.0f, 2.0f, 1.0f);
-        floor.setRotation(90.0f, 0.0f, 0.0f);
-
-        // Add meshes to panel.
-        m_panel.addMesh(mesh0);
-        m_panel.addMesh(floor);
+        Mesh mesh0 = loadScene(m_panel);
 
         // Set update listener for moving the mesh.
         m_panel.setUpdateListener(new IUpdateListener() {
             float elapsed = 0.0f;
+            // Camera path being recorded, and the time it started.
+            CameraPath path = null;
+            float pathStart = 0.0f;
 
             /**
              * Update the input scene.
@@ -193,16 +219,130 @@ public class SoftwareRenderer extends JFrame {
                         camRot.x + lookDirY * delta * 45.0f,
                         camRot.y + lookDirX * delta * 45.0f,
                         camRot.z));
-                mesh0.setRotation(0.0f, 90.0f * elapsed, 0.0f);
+                mesh0.setRotation(0.0f, SPIN_SPEED * elapsed, 0.0f);
+
+                // Record the camera's path, saving it once stopped.
+                if (m_recordPath) {
+                    if (path == null) {
+                        path = new CameraPath();
+                        pathStart = elapsed;
+                    }
+                    path.addKey(
+                        elapsed - pathStart,
+                        m_panel.getCameraPosition(),
+                        m_panel.getCameraRotation());
+                } else if (path != null) {
+                    try {
+                        path.save(new File("camera.path"));
+                    } catch (IOException e) {
+                        e.printStackTrace();
+                    }
+                    path = null;
+                }
             }
         });
 
 
         // Open window.
         this.setVisible(true);
-        // Start indefinite repaint thread.
-        // Will be killed at window exit.
-        new Thread(() -> { for (;;) { m_panel.repaint(); } }).start();
+        // Start rendering and presenting frames on their own threads
+        // (uncapped; see Presenter.setFrameCap). They are killed at window
+        // exit.
+        m_presenter = new Presenter(m_panel, m_canvas);
+        m_presenter.start();
+    }
+
+    /**
+     * Load the demo scene into a panel: a textured mesh above a floor, lit
+     * by a point light casting shadows.
+     * @param panel The panel to add the scene to.
+     * @return The mesh above the floor (which the demo spins).
+     */
+    static Mesh loadScene(RasterPanel panel) {
+        int meshtex = panel.addTexture("difmap.png");
+        int floortex = panel.addTexture("floor.png");
+
+        // Load meshes from file.
+        MeshResource meshres = new MeshResource("suzanne.obj");
+        MeshResource floorres = new MeshResource("plane.obj");
+        // Create mesh(es).
+        Mesh mesh0 = new Mesh(meshtex, meshres);
+        Mesh floor = new Mesh(floortex, floorres);
+        mesh0.setPosition(0.0f, 0.0f, 6.0f);
+        floor.setPosition(0.0f, -1.5f, 6.0f);
+        floor.setScale(2.0f, 2.0f, 1.0f);
+        floor.setRotation(90.0f, 0.0f, 0.0f);
+
+        // Add meshes to panel.
+        panel.addMesh(mesh0);
+        panel.addMesh(floor);
+        // Add a white point light above and in front of the mesh, with a
+        // shadow map updated every frame (the mesh turns).
+        Light light = new Light(new Vector3(0.0f, 3.0f, 3.0f), 0xFFFFFF, 8.0f);
+        light.shadow = new ShadowMap(256, 1);
+        panel.addLight(light);
+        return mesh0;
+    }
+
+    /**
+     * Start recording frames as PNG files in the capture directory, or stop
+     * recording.
+     */
+    private void toggleRecording() {
+        FrameRecorder recorder = m_panel.getRecorder();
+        if (recorder == null) {
+            try {
+                // Drop frames rather than slow down rendering.
+                m_panel.setRecorder(
+                    new FrameRecorder(
+                        new File("capture"),
+                        FrameRecorder.Format.PNG,
+                        FrameRecorder.Policy.DROP,
+                        2,
+                        8,
+                        30));
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+            return;
+        }
+        m_panel.setRecorder(null);
+        // Finish encoding off the event thread.
+        new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    recorder.close();
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
+        }).start();
+    }
+
+    /**
+     * Start profiling frames, or stop and write the timeline to trace.json
+     * (for chrome://tracing or ui.perfetto.dev).
+     */
+    private void toggleProfiling() {
+        Profiler profiler = m_panel.getProfiler();
+        if (!profiler.isEnabled()) {
+            profiler.clear();
+            profiler.setEnabled(true);
+            return;
+        }
+        profiler.setEnabled(false);
+        // Write the trace off the event thread.
+        new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    profiler.writeTrace(new File("trace.json"));
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
+        }).start();
     }
 
     /**
@@ -0,0 +1,517 @@
+/*
+ * Luke Diamond
+ * 01/22/2018
+ * Grade 11 Final Project
+ * Mr. Patterson
+ */
+
+package rasterizer;
+
+import java.awt.image.BufferedImage;
+
+/**
+ * Mipmapped texture. The full-resolution image is converted to packed ARGB
+ * texels and a chain of half-size levels is generated down to 1x1, so
+ * minified surfaces can sample from a level that matches their screen size.
+ *
+ * Texels are stored swizzled rather than row by row, so texels that are
+ * close in 2D are close in memory whichever direction a triangle is
+ * traversed. Levels with power-of-two sides use Morton (Z-order) layout;
+ * other levels are split into 4x4 tiles (one cache line each).
+ *
+ * Textures can instead be stored block compressed (see BlockCodec), using
+ * an eighth of the memory. Compressed blocks are decoded as they are
+ * sampled, through a small per-thread cache of decoded blocks.
+ */
+public class Texture {
+    /**
+     * Texture filtering modes.
+     */
+    public enum Filter {
+        // Single texel from the nearest mip level.
+        NEAREST,
+        // Four blended texels from the nearest mip level.
+        BILINEAR,
+        // Bilinear samples from the two nearest mip levels, blended.
+        TRILINEAR
+    }
+
+    // Side length of a tile in the tiled layout.
+    private static final int TILE_SIZE = 4;
+    // Offset added before truncating bilinear positions (in 1/256 texels),
+    // so the cast rounds down for positions up to 256 texels below zero.
+    private static final int BILINEAR_BIAS = 256 * 256;
+
+    // Decoded block cache of each thread.
+    private static final ThreadLocal<BlockCodec.Cache> s_blockCache =
+        ThreadLocal.withInitial(BlockCodec.Cache::new);
+
+    // Texel data of each mip level (packed ARGB, swizzled), or its encoded
+    // blocks if compressed.
+    private int[][] m_levels;
+    // Whether the levels are block compressed.
+    private boolean m_compressed;
+    // Offset of each column and each row of a level into its texels. The
+    // texel at (x, y) is at m_columnOffsets[x] + m_rowOffsets[y]. When
+    // compressed, this is the offset of the texel's block instead.
+    private int[][] m_columnOffsets;
+    private int[][] m_rowOffsets;
+    // Dimensions of each mip level.
+    private int[] m_widths;
+    private int[] m_heights;
+    // Number of finer levels dropped from the source image's chain.
+    private int m_droppedLevels = 0;
+    // Set when a fragment wanted more detail than the resident levels hold.
+    private volatile boolean m_wantsDetail = false;
+
+    /**
+     * Construct a texture from an image, generating its mip chain.
+     * @param image The full-resolution image.
+     */
+    public Texture(BufferedImage image) {
+        this(image, false);
+    }
+
+    /**
+     * Construct a texture from an image, generating its mip chain.
+     * @param image The full-resolution image.
+     * @param compressed Whether to store the texture block compressed.
+     */
+    public Texture(BufferedImage image, boolean compressed) {
+        m_compressed = compressed;
+        int width = image.getWidth();
+        int height = image.getHeight();
+
+        // Count the levels down to 1x1.
+        int count = 1;
+        for (int s = Math.max(width, height); s > 1; s = (s + 1) / 2) {
+            ++count;
+        }
+        m_levels = new int[count][];
+        m_columnOffsets = new int[count][];
+        m_rowOffsets = new int[count][];
+        m_widths = new int[count];
+        m_heights = new int[count];
+
+        // Read the base level in one call.
+        int[] linear = image.getRGB(0, 0, width, height, null, 0, width);
+        m_widths[0] = width;
+        m_heights[0] = height;
+        store(0, linear);
+
+        // Box-filter each level down from the previous one (in row order),
+        // then store it swizzled or compressed.
+        for (int l = 1; l < count; ++l) {
+            int pw = m_widths[l - 1];
+            int ph = m_heights[l - 1];
+            int w = Math.max(1, (pw + 1) / 2);
+            int h = Math.max(1, (ph + 1) / 2);
+            linear = downsample(linear, pw, ph, w, h);
+            m_widths[l] = w;
+            m_heights[l] = h;
+            store(l, linear);
+        }
+    }
+
+    /**
+     * Construct a texture from the coarser levels of another texture.
+     * @param other The texture to take the levels from.
+     * @param drop The number of finer levels to leave out.
+     */
+    private Texture(Texture other, int drop) {
+        int count = other.m_levels.length - drop;
+        m_levels = new int[count][];
+        m_columnOffsets = new int[count][];
+        m_rowOffsets = new int[count][];
+        m_widths = new int[count];
+        m_heights = new int[count];
+        // The level data is never modified, so it is shared.
+        System.arraycopy(other.m_levels, drop, m_levels, 0, count);
+        System.arraycopy(
+            other.m_columnOffsets, drop, m_columnOffsets, 0, count);
+        System.arraycopy(other.m_rowOffsets, drop, m_rowOffsets, 0, count);
+        System.arraycopy(other.m_widths, drop, m_widths, 0, count);
+        System.arraycopy(other.m_heights, drop, m_heights, 0, count);
+        m_droppedLevels = other.m_droppedLevels + drop;
+        m_compressed = other.m_compressed;
+    }
+
+    /**
+     * Get a copy of this texture without its finest level. The copy shares
+     * the remaining levels, and this texture is left unchanged so it can
+     * still be sampled by draws in flight.
+     * @return The reduced texture, or null if only one level is left.
+     */
+    public Texture withoutBaseLevel() {
+        if (m_levels.length < 2) return null;
+        return new Texture(this, 1);
+    }
+
+    /**
+     * Check whether the texture is block compressed.
+     * @return True if the texture is block compressed.
+     */
+    public boolean isCompressed() {
+        return m_compressed;
+    }
+
+    /**
+     * Get the number of finer levels missing from this texture.
+     * @return The number of levels dropped to save memory.
+     */
+    public int getDroppedLevels() {
+        return m_droppedLevels;
+    }
+
+    /**
+     * Check whether the texture has been magnified past its resident
+     * levels since it was reduced, meaning the dropped levels are needed.
+     * @return True if dropped levels were wanted.
+     */
+    public boolean wantsDetail() {
+        return m_wantsDetail;
+    }
+
+    /**
+     * Get the memory used by the texture's levels and lookup tables.
+     * @return The size in bytes.
+     */
+    public long getByteSize() {
+        long bytes = 0;
+        for (int l = 0; l < m_levels.length; ++l) {
+            bytes += 4L * m_levels[l].length;
+            bytes += 4L * m_columnOffsets[l].length;
+            bytes += 4L * m_rowOffsets[l].length;
+        }
+        return bytes;
+    }
+
+    /**
+     * Check whether a size is a power of two.
+     * @param n The size.
+     * @return True if n is a power of two.
+     */
+    private static boolean isPowerOfTwo(int n) {
+        return (n & (n - 1)) == 0;
+    }
+
+    /**
+     * Spread the bits of a value out to the even bit positions.
+     * @param n The value (up to 16 bits).
+     * @return The value with a zero bit between each of its bits.
+     */
+    private static int spreadBits(int n) {
+        n = (n | (n << 8)) & 0x00FF00FF;
+        n = (n | (n << 4)) & 0x0F0F0F0F;
+        n = (n | (n << 2)) & 0x33333333;
+        n = (n | (n << 1)) & 0x55555555;
+        return n;
+    }
+
+    /**
+     * Store a level in the texture's format.
+     * @param level The mip level (its size must already be set).
+     * @param linear The texels of the level in row order.
+     */
+    private void store(int level, int[] linear) {
+        if (!m_compressed) {
+            swizzle(level, linear);
+            return;
+        }
+
+        // Blocks are stored in row order.
+        int w = m_widths[level];
+        int h = m_heights[level];
+        int size = BlockCodec.BLOCK_SIZE;
+        int blocksX = (w + size - 1) / size;
+        int[] columns = new int[w];
+        int[] rows = new int[h];
+        for (int x = 0; x < w; ++x) {
+            columns[x] = (x / size) * BlockCodec.BLOCK_INTS;
+        }
+        for (int y = 0; y < h; ++y) {
+            rows[y] = (y / size) * blocksX * BlockCodec.BLOCK_INTS;
+        }
+        m_levels[level] = BlockCodec.encode(linear, w, h);
+        m_columnOffsets[level] = columns;
+        m_rowOffsets[level] = rows;
+    }
+
+    /**
+     * Compute the swizzled layout of a level and store its texels in it.
+     * @param level The mip level (its size must already be set).
+     * @param linear The texels of the level in row order.
+     */
+    private void swizzle(int level, int[] linear) {
+        int w = m_widths[level];
+        int h = m_heights[level];
+        int[] columns = new int[w];
+        int[] rows = new int[h];
+        int size;
+
+        if (isPowerOfTwo(w) && isPowerOfTwo(h)) {
+            // Morton order over the largest square, with the remaining
+            // bits of the longer side above it (so no padding is needed).
+            int square = Math.min(w, h);
+            int bits = Integer.numberOfTrailingZeros(square);
+            for (int x = 0; x < w; ++x) {
+                columns[x] =
+                    spreadBits(x & (square - 1)) | ((x >> bits) << (bits * 2));
+            }
+            for (int y = 0; y < h; ++y) {
+                rows[y] =
+                    (spreadBits(y & (square - 1)) << 1)
+                    | ((y >> bits) << (bits * 2));
+            }
+            size = w * h;
+        } else {
+            // Row-ordered tiles, each holding its texels in row order.
+            int tilesX = (w + TILE_SIZE - 1) / TILE_SIZE;
+            int tilesY = (h + TILE_SIZE - 1) / TILE_SIZE;
+            int tileArea = TILE_SIZE * TILE_SIZE;
+            for (int x = 0; x < w; ++x) {
+                columns[x] = (x / TILE_SIZE) * tileArea + x % TILE_SIZE;
+            }
+            for (int y = 0; y < h; ++y) {
+                rows[y] =
+                    (y / TILE_SIZE) * tilesX * tileArea
+                    + (y % TILE_SIZE) * TILE_SIZE;
+            }
+            size = tilesX * tilesY * tileArea;
+        }
+
+        int[] texels = new int[size];
+        for (int y = 0; y < h; ++y) {
+            for (int x = 0; x < w; ++x) {
+                texels[columns[x] + rows[y]] = linear[y * w + x];
+            }
+        }
+        m_levels[level] = texels;
+        m_columnOffsets[level] = columns;
+        m_rowOffsets[level] = rows;
+    }
+
+    /**
+     * Average 2x2 blocks of a level into a half-size level.
+     * @param src The source texels.
+     * @param sw The source width.
+     * @param sh The source height.
+     * @param w The destination width.
+     * @param h The destination height.
+     * @return The downsampled texels.
+     */
+    private static int[] downsample(int[] src, int sw, int sh, int w, int h) {
+        int[] dst = new int[w * h];
+        for (int y = 0; y < h; ++y) {
+            // Odd sizes reuse the last row/column.
+            int y0 = Math.min(y * 2, sh - 1);
+            int y1 = Math.min(y * 2 + 1, sh - 1);
+            for (int x = 0; x < w; ++x) {
+                int x0 = Math.min(x * 2, sw - 1);
+                int x1 = Math.min(x * 2 + 1, sw - 1);
+                dst[y * w + x] = ColorMath.average4(
+                    src[y0 * sw + x0],
+                    src[y0 * sw + x1],
+                    src[y1 * sw + x0],
+                    src[y1 * sw + x1]);
+            }
+        }
+        return dst;
+    }
+
+    /**
+     * Get the width of the full-resolution level.
+     * @return The width in texels.
+     */
+    public int getWidth() {
+        return m_widths[0];
+    }
+
+    /**
+     * Get the height of the full-resolution level.
+     * @return The height in texels.
+     */
+    public int getHeight() {
+        return m_heights[0];
+    }
+
+    /**
+     * Get the number of mip levels.
+     * @return The mip level count.
+     */
+    public int getLevelCount() {
+        return m_levels.length;
+    }
+
+    /**
+     * Compute the mip level of a fragment from the screen-space derivatives
+     * of its texture coordinate.
+     * @param dudx The change in U per pixel to the right.
+     * @param dvdx The change in V per pixel to the right.
+     * @param dudy The change in U per pixel downwards.
+     * @param dvdy The change in V per pixel downwards.
+     * @return The (fractional) mip level, negative when magnified.
+     */
+    public float computeLod(float dudx, float dvdx, float dudy, float dvdy) {
+        // Texels stepped per pixel along each screen axis.
+        float w = m_widths[0];
+        float h = m_heights[0];
+        float xu = dudx * w;
+        float xv = dvdx * h;
+        float yu = dudy * w;
+        float yv = dvdy * h;
+        float rho2 = Math.max(xu * xu + xv * xv, yu * yu + yv * yv);
+        // log2(sqrt(rho2)), since each level halves the texels per pixel.
+        return 0.5f * log2(rho2);
+    }
+
+    /**
+     * Approximate the base 2 logarithm of a float (accurate to about 0.01,
+     * plenty for picking mip levels).
+     * @param x The value.
+     * @return The approximate log2 of x, or a large negative number if x
+     * is not positive.
+     */
+    static float log2(float x) {
+        if (!(x > 0.0f)) return -128.0f;
+        int bits = Float.floatToRawIntBits(x);
+        // The exponent gives the integer part, and a quadratic through the
+        // ends of the mantissa range gives the fraction.
+        int exponent = ((bits >>> 23) & 0xFF) - 127;
+        float t = Float.intBitsToFloat((bits & 0x007FFFFF) | 0x3F800000) - 1.0f;
+        return exponent + t * (1.3465557f - 0.3465557f * t);
+    }
+
+    /**
+     * Sample the texture.
+     * @param u The horizontal texture coordinate in range [0, 1].
+     * @param v The vertical texture coordinate in range [0, 1] (0 is the
+     * bottom of the image).
+     * @param lod The mip level to sample (fractional for trilinear).
+     * @param filter The filtering mode.
+     * @return The sampled color as packed ARGB.
+     */
+    public int sample(float u, float v, float lod, Filter filter) {
+        // Clamp the level to the chain.
+        int last = m_levels.length - 1;
+        if (!(lod > 0.0f)) {
+            // Note when a dropped level would have been sampled.
+            if (lod < 0.0f && m_droppedLevels > 0) m_wantsDetail = true;
+            lod = 0.0f;
+        }
+        if (lod > last) lod = last;
+        // Compressed textures decode through this thread's block cache.
+        BlockCodec.Cache cache = m_compressed ? s_blockCache.get() : null;
+
+        switch (filter) {
+            case NEAREST:
+                return sampleNearest(Math.round(lod), u, v, cache);
+            case BILINEAR:
+                return sampleBilinear(Math.round(lod), u, v, cache);
+            default:
+                // Blend the two nearest levels.
+                int level = (int) lod;
+                float frac = lod - level;
+                int a = sampleBilinear(level, u, v, cache);
+                if (frac == 0.0f || level == last) return a;
+                int b = sampleBilinear(level + 1, u, v, cache);
+                return ColorMath.lerp(a, b, ColorMath.weight(frac));
+        }
+    }
+
+    /**
+     * Fetch one texel of a level.
+     * @param level The mip level.
+     * @param x The column of the texel.
+     * @param y The row of the texel.
+     * @param cache The decoded block cache (only used if compressed).
+     * @return The texel as packed ARGB.
+     */
+    private int texel(int level, int x, int y, BlockCodec.Cache cache) {
+        int offset = m_columnOffsets[level][x] + m_rowOffsets[level][y];
+        if (!m_compressed) return m_levels[level][offset];
+        int[] block = cache.get(m_levels[level], offset);
+        int size = BlockCodec.BLOCK_SIZE;
+        return block[(y % size) * size + x % size];
+    }
+
+    /**
+     * Sample the nearest texel of a level.
+     * @param level The mip level.
+     * @param u The horizontal texture coordinate.
+     * @param v The vertical texture coordinate.
+     * @param cache The decoded block cache (only used if compressed).
+     * @return The texel as packed ARGB.
+     */
+    private int sampleNearest(
+        int level, float u, float v, BlockCodec.Cache cache) {
+        int w = m_widths[level];
+        int h = m_heights[level];
+        int x = clamp((int) Math.floor(u * w), w - 1);
+        int y = clamp((int) Math.floor((1.0f - v) * h), h - 1);
+        return texel(level, x, y, cache);
+    }
+
+    /**
+     * Sample four texels of a level, blended by distance.
+     * @param level The mip level.
+     * @param u The horizontal texture coordinate.
+     * @param v The vertical texture coordinate.
+     * @param cache The decoded block cache (only used if compressed).
+     * @return The filtered color as packed ARGB.
+     */
+    private int sampleBilinear(
+        int level, float u, float v, BlockCodec.Cache cache) {
+        int w = m_widths[level];
+        int h = m_heights[level];
+        // Position relative to the texel centers, with 8 fractional bits
+        // (biased so the cast floors coordinates just below zero too).
+        int fx =
+            (int) ((u * w - 0.5f) * 256.0f + BILINEAR_BIAS) - BILINEAR_BIAS;
+        int fy =
+            (int) (((1.0f - v) * h - 0.5f) * 256.0f + BILINEAR_BIAS)
+            - BILINEAR_BIAS;
+        int x0 = fx >> 8;
+        int y0 = fy >> 8;
+        int ax = fx & 0xFF;
+        int ay = fy & 0xFF;
+        int x1 = clamp(x0 + 1, w - 1);
+        int y1 = clamp(y0 + 1, h - 1);
+        x0 = clamp(x0, w - 1);
+        y0 = clamp(y0, h - 1);
+
+        if (!m_compressed) {
+            // Read the texels directly.
+            int[] texels = m_levels[level];
+            int[] columns = m_columnOffsets[level];
+            int[] rows = m_rowOffsets[level];
+            int c0 = columns[x0];
+            int c1 = columns[x1];
+            int r0 = rows[y0];
+            int r1 = rows[y1];
+            int top =
+                ColorMath.lerp(texels[r0 + c0], texels[r0 + c1], ax);
+            int bottom =
+                ColorMath.lerp(texels[r1 + c0], texels[r1 + c1], ax);
+            return ColorMath.lerp(top, bottom, ay);
+        }
+
+        int top = ColorMath.lerp(
+            texel(level, x0, y0, cache), texel(level, x1, y0, cache), ax);
+        int bottom = ColorMath.lerp(
+            texel(level, x0, y1, cache), texel(level, x1, y1, cache), ax);
+        return ColorMath.lerp(top, bottom, ay);
+    }
+
+    /**
+     * Clamp an index to [0, max].
+     * @param i The index.
+     * @param max The largest valid index.
+     * @return The clamped index.
+     */
+    private static int clamp(int i, int max) {
+        if (i < 0) return 0;
+        if (i > max) return max;
+        return i;
+    }
+}
@@ -0,0 +1,414 @@
+/*
+ * Luke Diamond
+ * 01/22/2018
+ * Grade 11 Final Project
+ * Mr. Patterson
+ */
+
+package rasterizer;
+
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+
+import javax.imageio.ImageIO;
+
+/**
+ * Texture residency manager. Textures are registered by path and referred
+ * to by handle; the image is only read from disk the first time it is
+ * used. When the resident textures exceed the memory budget, the least
+ * recently used texture first gives up its finer mip levels, and is
+ * unloaded entirely once only small levels are left. A reduced texture
+ * that is later magnified past its resident levels is reloaded in full by
+ * a background thread, and keeps being drawn reduced until the reload
+ * finishes. Images are always decoded outside the manager's lock, so a
+ * load never holds up lookups of other textures.
+ *
+ * To keep textures that do not fit in the budget together from evicting
+ * each other every frame, a reduced texture is only reloaded once it has
+ * stayed reduced for RELOAD_DELAY frames, and at most MAX_RELOADS reloads
+ * are started each frame (frames are counted by beginFrame).
+ *
+ * Textures can optionally be block compressed on load, fitting about
+ * eight times as many in the same budget.
+ */
+public class TextureManager {
+    // Default memory budget (in bytes).
+    public static final long DEFAULT_BUDGET = 256L * 1024 * 1024;
+    // Textures are unloaded rather than reduced once their finest resident
+    // level has at most this many texels.
+    private static final int MIN_REDUCED_TEXELS = 64 * 64;
+    // Frames a texture stays reduced before it may be reloaded in full.
+    public static final int RELOAD_DELAY = 30;
+    // Most reloads started in one frame.
+    public static final int MAX_RELOADS = 1;
+
+    /**
+     * A registered texture.
+     */
+    private static class Entry {
+        // Path of the image on disk.
+        final String path;
+        // Resident texture, or null if not loaded.
+        Texture texture;
+        // Bytes counted against the budget for this texture.
+        long bytes;
+        // Frame the texture was last reduced in.
+        long reducedFrame = Long.MIN_VALUE / 2;
+        // Whether a reload is queued or running.
+        boolean loading;
+
+        Entry(String path) {
+            this.path = path;
+        }
+    }
+
+    // Registered textures, indexed by handle.
+    private ArrayList<Entry> m_entries = new ArrayList<Entry>();
+    // Handles of registered paths.
+    private HashMap<String, Integer> m_handles = new HashMap<String, Integer>();
+    // Resident textures, least recently used first.
+    private LinkedHashMap<Integer, Entry> m_resident =
+        new LinkedHashMap<Integer, Entry>(16, 0.75f, true);
+
+    // Whether textures are loaded block compressed.
+    private boolean m_compression = false;
+    // Current frame, and the reloads started in it.
+    private long m_frame = 0;
+    private int m_frameReloads = 0;
+    // Handles of textures waiting to be reloaded, and the thread reloading
+    // them (started by the first reload).
+    private final BlockingQueue<Integer> m_reloads =
+        new LinkedBlockingQueue<Integer>();
+    private Thread m_loader;
+    // Memory budget and current usage (in bytes).
+    private long m_budget;
+    private long m_residentBytes = 0;
+
+    // Metrics.
+    private long m_hits = 0;
+    private long m_misses = 0;
+    private long m_evictions = 0;
+
+    /**
+     * Construct a texture manager with the default memory budget.
+     */
+    public TextureManager() {
+        this(DEFAULT_BUDGET);
+    }
+
+    /**
+     * Construct a texture manager.
+     * @param budget The memory budget in bytes.
+     */
+    public TextureManager(long budget) {
+        m_budget = budget;
+    }
+
+    /**
+     * Register a texture without loading it.
+     * @param path The path of the image.
+     * @return The handle of the texture (the same handle is returned for
+     * repeated registrations of a path).
+     */
+    public synchronized int register(String path) {
+        Integer handle = m_handles.get(path);
+        if (handle != null) return handle;
+        m_entries.add(new Entry(path));
+        m_handles.put(path, m_entries.size() - 1);
+        return m_entries.size() - 1;
+    }
+
+    /**
+     * Start a new frame, allowing more reloads to start.
+     */
+    public synchronized void beginFrame() {
+        ++m_frame;
+        m_frameReloads = 0;
+    }
+
+    /**
+     * Get a texture, loading it if it is not resident. A resident texture
+     * that was reduced is returned as it is, while its full version is
+     * reloaded in the background.
+     * @param handle The handle of the texture.
+     * @return The texture, or null if the handle is invalid or the image
+     * could not be read.
+     */
+    public Texture get(int handle) {
+        Entry e;
+        boolean compression;
+        synchronized (this) {
+            if (handle < 0 || handle >= m_entries.size()) return null;
+            e = m_entries.get(handle);
+
+            // Resident (the lookup also marks it as used).
+            if (m_resident.get(handle) != null) {
+                if (e.texture.wantsDetail() && requestReload(handle, e)) {
+                    ++m_misses;
+                } else {
+                    ++m_hits;
+                }
+                return e.texture;
+            }
+            ++m_misses;
+            compression = m_compression;
+        }
+
+        // There is nothing to draw meanwhile, so read the image here, but
+        // outside the lock.
+        Texture texture = read(e.path, compression);
+        if (texture == null) return null;
+        synchronized (this) {
+            install(handle, texture);
+            return texture;
+        }
+    }
+
+    /**
+     * Queue a reduced texture to be reloaded in full, unless it is already
+     * queued, was reduced too recently or too many reloads were started
+     * this frame.
+     * @param handle The handle of the texture.
+     * @param e The texture's entry.
+     * @return True if a reload was queued.
+     */
+    private boolean requestReload(int handle, Entry e) {
+        if (
+            e.loading
+            || m_frame - e.reducedFrame < RELOAD_DELAY
+            || m_frameReloads >= MAX_RELOADS) {
+            return false;
+        }
+        e.loading = true;
+        ++m_frameReloads;
+        if (m_loader == null) {
+            m_loader = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    reloadLoop();
+                }
+            }, "Texture loader");
+            m_loader.setDaemon(true);
+            m_loader.start();
+        }
+        m_reloads.add(handle);
+        return true;
+    }
+
+    /**
+     * Reload queued textures until interrupted.
+     */
+    private void reloadLoop() {
+        try {
+            while (true) {
+                int handle = m_reloads.take();
+                String path;
+                boolean compression;
+                synchronized (this) {
+                    path = m_entries.get(handle).path;
+                    compression = m_compression;
+                }
+                Texture texture = null;
+                try {
+                    texture = read(path, compression);
+                } catch (RuntimeException ex) {
+                    // Keep reloading other textures.
+                    ex.printStackTrace();
+                }
+                finishReload(handle, texture);
+            }
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Replace a reduced texture with its reloaded full version.
+     * @param handle The handle of the texture.
+     * @param texture The reloaded texture, or null if it failed to load.
+     */
+    private synchronized void finishReload(int handle, Texture texture) {
+        Entry e = m_entries.get(handle);
+        e.loading = false;
+        // Textures unloaded meanwhile were not used recently, and ones
+        // already loaded in full meanwhile need nothing.
+        if (
+            texture == null
+            || e.texture == null
+            || e.texture.getDroppedLevels() == 0) {
+            return;
+        }
+        install(handle, texture);
+    }
+
+    /**
+     * Make a loaded texture resident in place of any older version,
+     * reducing other textures to fit it in the budget.
+     * @param handle The handle of the texture.
+     * @param texture The loaded texture.
+     */
+    private void install(int handle, Texture texture) {
+        Entry e = m_entries.get(handle);
+        unload(handle);
+        e.texture = texture;
+        e.bytes = texture.getByteSize();
+        m_residentBytes += e.bytes;
+        m_resident.put(handle, e);
+        enforceBudget(handle);
+    }
+
+    /**
+     * Read an image from the disk and build its texture.
+     * @param path The path of the image.
+     * @param compression Whether to block compress the texture.
+     * @return The texture, or null if the image could not be read.
+     */
+    private static Texture read(String path, boolean compression) {
+        // Attempt to read the image from the disk.
+        try {
+            BufferedImage img = ImageIO.read(new File(path));
+            if (img == null) {
+                throw new IOException("Unsupported image: " + path);
+            }
+            return new Texture(img, compression);
+        } catch (IOException ex) {
+            // Print the stack trace if the image failed to load.
+            ex.printStackTrace();
+            return null;
+        }
+    }
+
+    /**
+     * Reduce or unload least recently used textures until the resident
+     * textures fit in the budget.
+     * @param keep The handle of a texture that must stay resident.
+     */
+    private void enforceBudget(int keep) {
+        while (m_residentBytes > m_budget) {
+            // Find the least recently used texture other than the kept one.
+            Iterator<Integer> it = m_resident.keySet().iterator();
+            Integer victim = null;
+            while (it.hasNext()) {
+                Integer handle = it.next();
+                if (handle != keep) {
+                    victim = handle;
+                    break;
+                }
+            }
+            if (victim == null) return;
+
+            Entry e = m_entries.get(victim);
+            Texture reduced = e.texture.withoutBaseLevel();
+            if (
+                reduced != null
+                && e.texture.getWidth() * e.texture.getHeight()
+                    > MIN_REDUCED_TEXELS) {
+                // Drop the finest level (about three quarters of the
+                // memory) but keep the texture usable at a distance.
+                e.texture = reduced;
+                m_residentBytes -= e.bytes;
+                e.bytes = reduced.getByteSize();
+                m_residentBytes += e.bytes;
+                e.reducedFrame = m_frame;
+            } else {
+                unload(victim);
+            }
+            ++m_evictions;
+        }
+    }
+
+    /**
+     * Unload a texture if it is resident.
+     * @param handle The handle of the texture.
+     */
+    private void unload(int handle) {
+        Entry e = m_resident.remove(handle);
+        if (e == null) return;
+        m_residentBytes -= e.bytes;
+        e.texture = null;
+        e.bytes = 0;
+    }
+
+    /**
+     * Set the memory budget, evicting textures if it is now exceeded.
+     * @param budget The memory budget in bytes.
+     */
+    public synchronized void setBudget(long budget) {
+        m_budget = budget;
+        enforceBudget(-1);
+    }
+
+    /**
+     * Set whether textures are block compressed when loaded. Textures
+     * already resident keep their format until they are reloaded.
+     * @param compression True to compress textures loaded from now on.
+     */
+    public synchronized void setCompression(boolean compression) {
+        m_compression = compression;
+    }
+
+    /**
+     * Get the memory budget.
+     * @return The memory budget in bytes.
+     */
+    public synchronized long getBudget() {
+        return m_budget;
+    }
+
+    /**
+     * Get the number of registered textures.
+     * @return The registered texture count.
+     */
+    public synchronized int getTextureCount() {
+        return m_entries.size();
+    }
+
+    /**
+     * Get the number of resident textures.
+     * @return The resident texture count.
+     */
+    public synchronized int getResidentCount() {
+        return m_resident.size();
+    }
+
+    /**
+     * Get the memory used by resident textures.
+     * @return The resident size in bytes.
+     */
+    public synchronized long getResidentBytes() {
+        return m_residentBytes;
+    }
+
+    /**
+     * Get the number of lookups that found their texture resident.
+     * @return The hit count.
+     */
+    public synchronized long getHits() {
+        return m_hits;
+    }
+
+    /**
+     * Get the number of lookups that had to load their texture, either
+     * before returning or in the background.
+     * @return The miss count.
+     */
+    public synchronized long getMisses() {
+        return m_misses;
+    }
+
+    /**
+     * Get the number of times a texture was reduced or unloaded to stay
+     * within the budget.
+     * @return The eviction count.
+     */
+    public synchronized long getEvictions() {
+        return m_evictions;
+    }
+}
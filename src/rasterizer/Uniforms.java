@@ -0,0 +1,30 @@
+/*
+ * Luke Diamond
+ * 01/22/2018
+ * Grade 11 Final Project
+ * Mr. Patterson
+ */
+
+package rasterizer;
+
+/**
+ * Per-draw shader inputs, shared by every vertex and fragment of a draw.
+ */
+public class Uniforms {
+	// Transforms.
+	public Matrix4 model;
+	public Matrix4 view;
+	public Matrix4 proj;
+	// Combined model-view-projection transform.
+	public Matrix4 mvp;
+
+	// Texture to sample (null if none), and how to filter it.
+	public Texture texture;
+	public Texture.Filter filter;
+	// Base color of untextured materials (packed RGB).
+	public int color;
+
+	// Lights of the scene, for lighting in the vertex stage (fragment
+	// stages get the lights of their tile through Fragments).
+	public Light[] lights;
+}
@@ -65,6 +65,39 @@ public class Vector3 {
 		return new Vector3(x - other.x, y - other.y, z - other.z);
 	}
 
+	/**
+	 * Computes the sum of two 3-dimensional vectors.
+	 * @param other The vector to add.
+	 * @return The sum of this and other.
+	 */
+	public Vector3 add(Vector3 other) {
+		return new Vector3(x + other.x, y + other.y, z + other.z);
+	}
+
+	/**
+	 * Computes the component-wise minimum of two 3-dimensional vectors.
+	 * @param other The vector to compare with.
+	 * @return The smallest components of this and other.
+	 */
+	public Vector3 min(Vector3 other) {
+		return new Vector3(
+			Math.min(x, other.x),
+			Math.min(y, other.y),
+			Math.min(z, other.z));
+	}
+
+	/**
+	 * Computes the component-wise maximum of two 3-dimensional vectors.
+	 * @param other The vector to compare with.
+	 * @return The largest components of this and other.
+	 */
+	public Vector3 max(Vector3 other) {
+		return new Vector3(
+			Math.max(x, other.x),
+			Math.max(y, other.y),
+			Math.max(z, other.z));
+	}
+
 	/**
 	 * Computes the cross product between two 3-dimensional vectors.
 	 * @param other The vector to cross with.
@@ -102,6 +135,19 @@ public class Vector3 {
 		return new Vector3(x / len, y / len, z / len);
 	}
 
+	/**
+	 * Compute a normalized version of the current vector, or the zero vector
+	 * if the current vector has no length.
+	 * @return The vector divided by its length, or zero.
+	 */
+	public Vector3 normalizeOrZero() {
+		// Compute length.
+		float len = length();
+		// Avoid dividing by zero for degenerate vectors.
+		if (!(len > 0.0f)) return ZERO;
+		return new Vector3(x / len, y / len, z / len);
+	}
+
 	/**
 	 * Linearly interpolate between the current vector and another vector
 	 * given a float alpha.